@@ -0,0 +1,67 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+
+package net.pointysoftware.worldgenerationcontrol;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Parsing command arguments with NiceArgs
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ArgsBench
+{
+    private String simple[] = { "world", "-50", "-50", "50", "50" };
+    private String options[] = { "\"My", "World\"", "0", "0", "/fast", "/lighting:force", "/budget:10", "/tps:19.5", "/onlyWhenEmpty", "/quitafter" };
+    private String escaped[] = { "My\\", "\\\"quoted\\\"", "World", "0", "0", "/slow" };
+
+    @Benchmark
+    public int simple() throws Throwable
+    {
+        return new WorldGenerationControl.NiceArgs(this.simple).length();
+    }
+
+    @Benchmark
+    public int options() throws Throwable
+    {
+        return new WorldGenerationControl.NiceArgs(this.options).length();
+    }
+
+    @Benchmark
+    public int escaped() throws Throwable
+    {
+        return new WorldGenerationControl.NiceArgs(this.escaped).length();
+    }
+}
@@ -0,0 +1,43 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+
+package net.pointysoftware.worldgenerationcontrol;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+// benchmarks.jar's main. Runs JMH as usual, with the GC profiler on unless
+// some other profiler was asked for, so every result comes with its
+// allocation rate.
+public class Benchmarks
+{
+    public static void main(String args[]) throws Exception
+    {
+        ArrayList<String> all = new ArrayList<String>(Arrays.asList(args));
+        if (!all.contains("-prof") && !all.contains("-l") && !all.contains("-h") && !all.contains("-lprof"))
+        {
+            all.add(0, "gc");
+            all.add(0, "-prof");
+        }
+        org.openjdk.jmh.Main.main(all.toArray(new String[all.size()]));
+    }
+}
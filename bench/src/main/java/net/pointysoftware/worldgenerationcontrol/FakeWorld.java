@@ -0,0 +1,225 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+
+package net.pointysoftware.worldgenerationcontrol;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.BitSet;
+
+import org.bukkit.Chunk;
+import org.bukkit.World;
+import org.bukkit.entity.Entity;
+import org.bukkit.generator.BlockPopulator;
+
+// An in-memory World for the benchmarks, standing in for a server.
+//
+// It only knows which chunks exist and which are loaded, within radius
+// chunks of 0,0. They're kept as bits so the world adds little to the
+// allocation rates of what's being measured, beyond the argument arrays
+// every call through the Proxy makes. Loading a chunk that exists costs
+// loadCost nanoseconds and creating one genCost more, spent spinning, so the
+// plugin's own overhead can be compared against servers of different
+// speeds. SchedulerSim overrides what loading, creating and unloading cost
+// to run on its own clock instead. Anything else asked of it returns null, 0
+// or false.
+class FakeWorld implements InvocationHandler
+{
+    private int radius, width;
+    private BitSet generated, loaded;
+    private ArrayList<BlockPopulator> populators = new ArrayList<BlockPopulator>();
+    private long loadCost, genCost;
+    private long loads = 0, creates = 0, unloads = 0;
+    private World world;
+
+    FakeWorld(int radius, long loadCost, long genCost)
+    {
+        this.radius = radius;
+        this.width = radius * 2 + 1;
+        this.generated = new BitSet(this.width * this.width);
+        this.loaded = new BitSet(this.width * this.width);
+        this.loadCost = loadCost;
+        this.genCost = genCost;
+        this.world = (World)Proxy.newProxyInstance(World.class.getClassLoader(), new Class<?>[] { World.class }, this);
+    }
+
+    // Bit for a chunk, -1 if it's off the edge of the world
+    private int index(int x, int z)
+    {
+        if (x < -this.radius || x > this.radius || z < -this.radius || z > this.radius)
+            return -1;
+        return (x + this.radius) * this.width + z + this.radius;
+    }
+
+    public World getWorld() { return this.world; }
+    public long getLoads() { return this.loads; }
+    public long getCreates() { return this.creates; }
+    public long getUnloads() { return this.unloads; }
+    public int getLoaded() { return this.loaded.cardinality(); }
+
+    // Mark an area as already generated
+    public void generate(int x1, int z1, int x2, int z2)
+    {
+        for (int x = x1; x <= x2; x++)
+            for (int z = z1; z <= z2; z++)
+                if (this.index(x, z) >= 0)
+                    this.generated.set(this.index(x, z));
+    }
+
+    // Forget everything, between benchmark invocations
+    public void reset()
+    {
+        this.generated.clear();
+        this.loaded.clear();
+        this.loads = this.creates = this.unloads = 0;
+    }
+
+    public boolean isChunkLoaded(int x, int z)
+    {
+        int i = this.index(x, z);
+        return i >= 0 && this.loaded.get(i);
+    }
+
+    public boolean loadChunk(int x, int z, boolean generate)
+    {
+        int i = this.index(x, z);
+        if (i < 0)
+            return false;
+        if (this.loaded.get(i))
+            return true;
+        if (!this.generated.get(i))
+        {
+            if (!generate)
+                return false;
+            this.created(x, z);
+            this.generated.set(i);
+            this.creates++;
+        }
+        this.loaded(x, z);
+        this.loaded.set(i);
+        this.loads++;
+        return true;
+    }
+
+    public boolean unloadChunk(int x, int z, boolean save)
+    {
+        if (!this.isChunkLoaded(x, z))
+            return false;
+        this.unloaded(x, z, save);
+        this.loaded.clear(this.index(x, z));
+        this.unloads++;
+        return true;
+    }
+
+    // What the server spends creating a chunk, on top of loading it
+    protected void created(int x, int z) { spin(this.genCost); }
+    // Loading one, created or not
+    protected void loaded(int x, int z) { spin(this.loadCost); }
+    // Unloading one, free here
+    protected void unloaded(int x, int z, boolean save) {}
+
+    private static void spin(long nanos)
+    {
+        if (nanos <= 0)
+            return;
+        long until = System.nanoTime() + nanos;
+        while (System.nanoTime() < until);
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args)
+    {
+        String name = method.getName();
+        if (name.equals("isChunkLoaded") && args.length == 2)
+            return this.isChunkLoaded((Integer)args[0], (Integer)args[1]);
+        if (name.equals("loadChunk") && args.length >= 2 && args[0] instanceof Integer)
+            return this.loadChunk((Integer)args[0], (Integer)args[1], args.length < 3 || (Boolean)args[2]);
+        if (name.equals("unloadChunk") && args.length >= 2 && args[0] instanceof Integer)
+            return this.unloadChunk((Integer)args[0], (Integer)args[1], args.length < 3 || (Boolean)args[2]);
+        if (name.equals("regenerateChunk"))
+        {
+            int i = this.index((Integer)args[0], (Integer)args[1]);
+            if (i >= 0)
+                this.generated.clear(i);
+            return this.loadChunk((Integer)args[0], (Integer)args[1], true);
+        }
+        if (name.equals("getLoadedChunks"))
+        {
+            Chunk chunks[] = new Chunk[this.loaded.cardinality()];
+            int n = 0;
+            for (int i = this.loaded.nextSetBit(0); i >= 0; i = this.loaded.nextSetBit(i + 1))
+                chunks[n++] = this.chunk(i / this.width - this.radius, i % this.width - this.radius);
+            return chunks;
+        }
+        if (name.equals("getChunkAt") && args.length == 2 && args[0] instanceof Integer)
+            return this.chunk((Integer)args[0], (Integer)args[1]);
+        if (name.equals("getPopulators"))
+            return this.populators;
+        if (name.equals("getName"))
+            return "fake";
+        if (name.equals("getMaxHeight"))
+            return 256;
+        if (name.equals("hashCode"))
+            return System.identityHashCode(proxy);
+        if (name.equals("equals"))
+            return proxy == args[0];
+        if (name.equals("toString"))
+            return "FakeWorld";
+        return defaultFor(method.getReturnType());
+    }
+
+    private Chunk chunk(final int x, final int z)
+    {
+        return (Chunk)Proxy.newProxyInstance(Chunk.class.getClassLoader(), new Class<?>[] { Chunk.class }, new InvocationHandler()
+        {
+            public Object invoke(Object proxy, Method method, Object[] args)
+            {
+                String name = method.getName();
+                if (name.equals("getX"))
+                    return x;
+                if (name.equals("getZ"))
+                    return z;
+                if (name.equals("getWorld"))
+                    return FakeWorld.this.world;
+                if (name.equals("isLoaded"))
+                    return FakeWorld.this.isChunkLoaded(x, z);
+                if (name.equals("getEntities"))
+                    return new Entity[0];
+                return defaultFor(method.getReturnType());
+            }
+        });
+    }
+
+    static Object defaultFor(Class<?> type)
+    {
+        if (type == boolean.class) return Boolean.FALSE;
+        if (type == int.class) return 0;
+        if (type == long.class) return 0L;
+        if (type == double.class) return 0.0D;
+        if (type == float.class) return 0.0F;
+        if (type == short.class) return (short)0;
+        if (type == byte.class) return (byte)0;
+        if (type == char.class) return (char)0;
+        return null;
+    }
+}
@@ -0,0 +1,114 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+
+package net.pointysoftware.worldgenerationcontrol;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Planning a generation: what _addRegion and plan() do when one is queued,
+// and the per-section ChunkBatch.fill that hands out each section's chunks.
+// None of it touches the world, so it's measured on its own.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PlannerBench
+{
+    // Width of the area in blocks
+    @Param({ "2000", "10000" })
+    public int blocks;
+    @Param({ "square", "circle" })
+    public String shape;
+    // Section size in chunks
+    @Param({ "12", "32" })
+    public int size;
+
+    private int xStart, zStart, xEnd, zEnd;
+    private ChunkShape area;
+    private ChunkBatch batch;
+
+    @Setup
+    public void setup()
+    {
+        int radius = this.blocks / 32;
+        this.xStart = this.zStart = -radius;
+        this.xEnd = this.zEnd = radius;
+        this.area = this.shape.equals("circle") ? new ChunkShape.Ellipse(0, 0, radius, radius) : null;
+        this.batch = new ChunkBatch(this.planner().getMaxChunks());
+    }
+
+    private SectionPlanner planner()
+    {
+        return new SectionPlanner(this.xStart, this.zStart, this.xEnd, this.zEnd, this.area, this.size, false, false, SectionPlanner.Order.ROWS);
+    }
+
+    // Setting the planner up and counting its sections, as queueing does
+    @Benchmark
+    public int plan()
+    {
+        return this.planner().getTotal();
+    }
+
+    // Walking every section without filling them
+    @Benchmark
+    public int walk()
+    {
+        SectionPlanner p = this.planner();
+        int sections = 0;
+        while (p.next())
+            sections++;
+        return sections;
+    }
+
+    // Walking and filling every section's batch, which is most of what
+    // the plugin does between sections
+    @Benchmark
+    public long fill()
+    {
+        SectionPlanner p = this.planner();
+        long chunks = 0;
+        while (p.next())
+            chunks += this.batch.fill(p, null, false);
+        return chunks;
+    }
+
+    // A batch big enough for the largest section
+    @Benchmark
+    public ChunkBatch allocate()
+    {
+        return new ChunkBatch(this.planner().getMaxChunks());
+    }
+}
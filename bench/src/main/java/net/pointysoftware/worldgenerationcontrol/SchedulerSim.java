@@ -0,0 +1,170 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+
+
+package net.pointysoftware.worldgenerationcontrol;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+
+import org.bukkit.Bukkit;
+import org.bukkit.plugin.PluginDescriptionFile;
+
+// Runs the plugin's own scheduling - the tick task, GenerationRegion and
+// everything it drives - against a SimulatedServer, to see what each speed
+// setting does to a server before trying it on a real one. Every cost is
+// drawn from a seeded Random and the plugin reads the time from the
+// simulation, so a run takes seconds, comes out the same every time, and a
+// change to the scheduling shows up as a change in the numbers.
+//
+// For each speed it generates a circle of radius chunks from scratch, with
+// /gencircle as a console would, and prints:
+//   chunks     - chunks created
+//   time       - simulated time it took, up to hours
+//   chunks/h   - chunks created per simulated hour
+//   TPS        - ticks per simulated second
+//   worst tick - longest tick, in milliseconds
+//   late       - ticks over 50ms
+//   heap peak  - most heap in use, garbage included, in MiB
+//   live peak  - most heap still in use after a collection, in MiB
+//
+// Options are name=value: radius (chunks), hours, speeds (a comma separated
+// list, all of them by default) or any of SimulatedServer.Settings, e.g.
+// genMs=40 for a slow generator or joinsPerHour=0 for an empty server.
+// Anything starting with / is passed on to /gencircle, and verbose prints
+// the plugin's status messages as it goes. After mvn package, run it with
+//   java -cp bench/target/benchmarks.jar net.pointysoftware.worldgenerationcontrol.SchedulerSim
+public class SchedulerSim
+{
+    public static void main(String args[]) throws Exception
+    {
+        SimulatedServer.Settings settings = new SimulatedServer.Settings();
+        int radius = 100;
+        double hours = 6;
+        boolean verbose = false;
+        ArrayList<WorldGenerationControl.GenerationSpeed> speeds = new ArrayList<WorldGenerationControl.GenerationSpeed>();
+        ArrayList<String> switches = new ArrayList<String>();
+        for (String a:args)
+        {
+            int eq = a.indexOf('=');
+            if (a.startsWith("/"))
+                switches.add(a);
+            else if (a.equals("verbose"))
+                verbose = true;
+            else if (eq < 0)
+                throw new IllegalArgumentException("Expected name=value, not " + a);
+            else if (a.startsWith("radius="))
+                radius = Integer.parseInt(a.substring(eq + 1));
+            else if (a.startsWith("hours="))
+                hours = Double.parseDouble(a.substring(eq + 1));
+            else if (a.startsWith("speeds="))
+            {
+                for (String s:a.substring(eq + 1).split(","))
+                    speeds.add(WorldGenerationControl.GenerationSpeed.valueOf(s.toUpperCase()));
+            }
+            else
+                set(settings, a.substring(0, eq), a.substring(eq + 1));
+        }
+        if (speeds.isEmpty())
+        {
+            for (WorldGenerationControl.GenerationSpeed s:WorldGenerationControl.GenerationSpeed.values())
+                speeds.add(s);
+        }
+
+        File folder = File.createTempFile("schedulersim", "");
+        folder.delete();
+        folder.mkdirs();
+        final SimulatedServer server = new SimulatedServer(settings, folder, verbose);
+        Bukkit.setServer(server.getServer());
+
+        System.out.println("Radius " + radius + " chunks, seed " + settings.seed + ", " + settings.heapMiB + "MiB heap, up to " + hours + " hours each"
+            + (switches.isEmpty() ? "" : ", with " + switches));
+        boolean capped = false;
+        System.out.println(String.format("  %-9s %8s %9s %9s %6s %11s %13s %10s %10s", "speed", "chunks", "time", "chunks/h", "TPS", "worst tick", "late", "heap peak", "live peak"));
+        for (WorldGenerationControl.GenerationSpeed speed:speeds)
+        {
+            server.begin(radius + 64);
+            // Enabled as the server would, with a data folder of its own so
+            // nothing carries over from the last speed
+            final File data = new File(folder, "plugin-" + speed.name().toLowerCase());
+            WorldGenerationControl plugin = new WorldGenerationControl(server.getHost())
+            {
+                {
+                    this.initialize(null, server.getServer(), new PluginDescriptionFile("WorldGenerationControl", "sim", WorldGenerationControl.class.getName()), data, null, WorldGenerationControl.class.getClassLoader());
+                }
+            };
+            plugin.onEnable();
+
+            ArrayList<String> command = new ArrayList<String>();
+            command.add(Integer.toString(radius * 16));
+            command.add(server.getWorldName());
+            command.add("0");
+            command.add("0");
+            if (speed != WorldGenerationControl.GenerationSpeed.NORMAL)
+                command.add("/" + speed.name().toLowerCase());
+            command.addAll(switches);
+            plugin.onCommand(server.getConsole(), null, "gencircle", command.toArray(new String[command.size()]));
+            if (!server.isRunning())
+                throw new IllegalStateException("/gencircle " + command + " didn't start a generation");
+
+            long cap = (long)(hours * 3600 * 1000000000L);
+            while (server.isRunning() && !server.isOutOfMemory() && server.getElapsed() < cap)
+                server.tick();
+
+            capped |= server.isRunning() && !server.isOutOfMemory();
+            double elapsed = (double)server.getElapsed() / 1000000000L;
+            String time = server.isOutOfMemory() ? "OOM" : String.format("%d:%02d:%02d%s", (long)elapsed / 3600, (long)elapsed / 60 % 60, (long)elapsed % 60, server.isRunning() ? "+" : "");
+            System.out.println(String.format("  %-9s %8d %9s %9.0f %6.2f %9.1fms %6d (%4.1f%%) %7.0fMiB %7.0fMiB", speed, server.getCreated(), time,
+                server.getCreated() * 3600 / elapsed, server.getTicks() / elapsed, (double)server.getWorstTick() / 1000000,
+                server.getLateTicks(), 100.0D * server.getLateTicks() / Math.max(1, server.getTicks()),
+                (double)server.getHeapPeak() / (1024 * 1024), (double)server.getLivePeak() / (1024 * 1024)));
+            plugin.onDisable();
+        }
+        if (capped)
+            System.out.println("  (+ didn't finish in time)");
+        delete(folder);
+    }
+
+    // Sets a field of Settings by name
+    private static void set(SimulatedServer.Settings settings, String name, String value) throws Exception
+    {
+        Field f;
+        try { f = SimulatedServer.Settings.class.getDeclaredField(name); }
+        catch (NoSuchFieldException e) { throw new IllegalArgumentException("No such setting: " + name); }
+        if (f.getType() == long.class)
+            f.setLong(settings, Long.parseLong(value));
+        else if (f.getType() == int.class)
+            f.setInt(settings, Integer.parseInt(value));
+        else
+            f.setDouble(settings, Double.parseDouble(value));
+    }
+
+    private static void delete(File f)
+    {
+        File files[] = f.listFiles();
+        if (files != null)
+            for (File c:files)
+                delete(c);
+        f.delete();
+    }
+}
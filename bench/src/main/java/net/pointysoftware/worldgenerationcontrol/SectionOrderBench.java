@@ -0,0 +1,158 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package net.pointysoftware.worldgenerationcontrol;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Compares the region file I/O of the different section orderings, without a
+// server. Every chunk a section loads is a read from its region file and
+// every chunk it unloads is a write back to it, in the order the plugin would
+// do them.
+//
+// For each traversal it prints:
+//   loads     - chunk loads, counting reloads along section seams
+//   files/sec - average region files each section touches
+//   switches  - I/O operations that hit a different region file than the one
+//               before, per 1000 - how much the disk has to seek around
+//   opens     - region files opened with an LRU cache of CACHE handles, ie
+//               how often the server would have to reopen a file it just
+//               closed
+//   cache hit - loads a ChunkCache of CHUNK_CACHE chunks would have saved,
+//               ie chunks still loaded from an earlier section
+//
+// It's a plain program rather than a JMH benchmark, as it counts I/O rather
+// than timing anything. After mvn package, run it with
+//   java -cp bench/target/benchmarks.jar net.pointysoftware.worldgenerationcontrol.SectionOrderBench
+class SectionOrderBench
+{
+    private final static int CACHE = 16;
+    private final static int CHUNK_CACHE = 256;
+
+    // Least recently used region file handles
+    private static class HandleCache extends LinkedHashMap<Long, Boolean>
+    {
+        private final static long serialVersionUID = 1L;
+        private int opens = 0;
+        HandleCache() { super(CACHE, 0.75f, true); }
+        protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) { return this.size() > CACHE; }
+        void touch(long region)
+        {
+            if (this.get(region) == null)
+            {
+                this.put(region, Boolean.TRUE);
+                this.opens++;
+            }
+        }
+    }
+
+    private static class Result
+    {
+        long loads = 0, ops = 0, switches = 0, regionsTouched = 0, sections = 0, hits = 0;
+        ChunkCache chunks = new ChunkCache();
+        long last = Long.MIN_VALUE;
+        HandleCache cache = new HandleCache();
+
+        void io(int x, int z)
+        {
+            long region = ChunkBatch.pack(x >> 5, z >> 5);
+            if (region != this.last)
+                this.switches++;
+            this.last = region;
+            this.ops++;
+            this.cache.touch(region);
+        }
+    }
+
+    public static void main(String args[])
+    {
+        // name, xStart, zStart, xEnd, zEnd, radius (in chunks)
+        Object areas[][] = {
+            { "square 2000 blocks", -63, -63, 62, 62, 0 },
+            { "offset 5000 blocks", -150, -170, 162, 142, 0 },
+            { "circle r=4000", -250, -250, 250, 250, 250 },
+        };
+        int sizes[] = { 32, 24, 12, 8, 6 };
+
+        for (Object a[]:areas)
+        {
+            System.out.println(a[0]);
+            System.out.println(String.format("  %-5s %-16s %10s %10s %10s %10s %10s", "size", "traversal", "loads", "files/sec", "switches", "opens", "cache hit"));
+            for (int size:sizes)
+            {
+                for (int t = 0; t < 7; t++)
+                {
+                    boolean frontier = t == 6;
+                    boolean align = t >= 3 && t < 6;
+                    SectionPlanner.Order order = SectionPlanner.Order.values()[t % 3];
+                    String name = frontier ? "frontier" : (align ? "aligned " : "") + order.toString().toLowerCase();
+                    Result r = run((Integer)a[1], (Integer)a[2], (Integer)a[3], (Integer)a[4], (Integer)a[5], size, frontier, align, order);
+                    System.out.println(String.format("  %-5d %-16s %10d %10.2f %10.1f %10d %9.1f%%", size, name, r.loads,
+                        (double)r.regionsTouched / Math.max(1, r.sections), 1000.0D * r.switches / Math.max(1, r.ops), r.cache.opens,
+                        100.0D * r.hits / Math.max(1, r.loads)));
+                }
+            }
+            System.out.println();
+        }
+    }
+
+    private static Result run(int xStart, int zStart, int xEnd, int zEnd, int radius, int size, boolean frontier, boolean align, SectionPlanner.Order order)
+    {
+        int xCenter = radius == 0 ? 0 : (xStart + xEnd) / 2;
+        int zCenter = radius == 0 ? 0 : (zStart + zEnd) / 2;
+        ChunkShape shape = radius == 0 ? null : new ChunkShape.Ellipse(xCenter, zCenter, radius, radius);
+        SectionPlanner planner = new SectionPlanner(xStart, zStart, xEnd, zEnd, shape, size, frontier, align, order);
+        ChunkBatch batch = new ChunkBatch(planner.getMaxChunks());
+        Result r = new Result();
+        while (planner.next())
+        {
+            int n = batch.fill(planner, null);
+            if (n == 0)
+                continue;
+            r.sections++;
+            LinkedHashMap<Long, Boolean> touched = new LinkedHashMap<Long, Boolean>();
+            for (int i = 0; i < n; i++)
+            {
+                if (batch.is(i, ChunkBatch.LOAD))
+                {
+                    r.loads++;
+                    r.io(batch.getX(i), batch.getZ(i));
+                    if (r.chunks.take(batch.getX(i), batch.getZ(i)) != null)
+                        r.hits++;
+                    touched.put(ChunkBatch.pack(batch.getX(i) >> 5, batch.getZ(i) >> 5), Boolean.TRUE);
+                }
+            }
+            for (int i = 0; i < n; i++)
+            {
+                if (batch.is(i, ChunkBatch.UNLOAD))
+                {
+                    r.io(batch.getX(i), batch.getZ(i));
+                    r.chunks.put(batch.getX(i), batch.getZ(i), 0);
+                    if (r.chunks.size() > CHUNK_CACHE)
+                        r.chunks.remove(r.chunks.getOldest().getKey());
+                }
+            }
+            r.regionsTouched += touched.size();
+        }
+        return r;
+    }
+}
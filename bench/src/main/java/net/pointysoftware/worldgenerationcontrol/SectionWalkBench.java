@@ -0,0 +1,111 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+
+package net.pointysoftware.worldgenerationcontrol;
+
+import java.util.concurrent.TimeUnit;
+
+import org.bukkit.World;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// A whole generation's loads and unloads, section by section, against a
+// FakeWorld that charges loadCost/genCost microseconds for each. With the
+// costs at 0 it's the plugin's own overhead per generation, with them set
+// it's how much of a real one that overhead would be.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SectionWalkBench
+{
+    // In chunks
+    @Param({ "32" })
+    public int radius;
+    @Param({ "12" })
+    public int size;
+    @Param({ "0", "20" })
+    public long loadCost;
+    @Param({ "0", "200" })
+    public long genCost;
+    // Percent of the area that already exists
+    @Param({ "0", "50" })
+    public int existing;
+
+    private FakeWorld fake;
+    private ChunkBatch batch;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        this.fake = new FakeWorld(this.radius, this.loadCost * 1000, this.genCost * 1000);
+        this.batch = new ChunkBatch(this.planner().getMaxChunks());
+    }
+
+    @Setup(Level.Invocation)
+    public void clear()
+    {
+        this.fake.reset();
+        if (this.existing > 0)
+            this.fake.generate(-this.radius, -this.radius, this.radius, -this.radius + (2 * this.radius + 1) * this.existing / 100);
+    }
+
+    private SectionPlanner planner()
+    {
+        return new SectionPlanner(-this.radius, -this.radius, this.radius, this.radius, null, this.size, false, false, SectionPlanner.Order.ROWS);
+    }
+
+    @Benchmark
+    public long generate()
+    {
+        World world = this.fake.getWorld();
+        SectionPlanner p = this.planner();
+        while (p.next())
+        {
+            int n = this.batch.fill(p, null, false);
+            for (int i = 0; i < n; i++)
+            {
+                if (this.batch.is(i, ChunkBatch.LOAD) && !world.isChunkLoaded(this.batch.getX(i), this.batch.getZ(i))
+                    && !world.loadChunk(this.batch.getX(i), this.batch.getZ(i), false))
+                    world.loadChunk(this.batch.getX(i), this.batch.getZ(i), true);
+            }
+            for (int i = 0; i < n; i++)
+            {
+                if (this.batch.is(i, ChunkBatch.UNLOAD))
+                    world.unloadChunk(this.batch.getX(i), this.batch.getZ(i), true, true);
+            }
+        }
+        return this.fake.getLoads();
+    }
+}
@@ -0,0 +1,99 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+
+package net.pointysoftware.worldgenerationcontrol;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Which chunks a circle covers, by ChunkShape's spans against testing every
+// chunk of its bounding box, the old way and through contains()
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShapeBench
+{
+    // In chunks
+    @Param({ "64", "256" })
+    public int radius;
+
+    private ChunkShape.Ellipse circle;
+    private int spans[];
+
+    @Setup
+    public void setup()
+    {
+        this.circle = new ChunkShape.Ellipse(0, 0, this.radius, this.radius);
+        this.spans = new int[this.circle.getMaxSpans() * 2];
+    }
+
+    @Benchmark
+    public long spans()
+    {
+        long count = 0;
+        for (int z = -this.radius; z <= this.radius; z++)
+        {
+            int n = this.circle.getSpans(z, this.spans);
+            for (int i = 0; i < n; i++)
+                count += this.spans[i * 2 + 1] - this.spans[i * 2] + 1;
+        }
+        return count;
+    }
+
+    @Benchmark
+    public long contains()
+    {
+        long count = 0;
+        for (int z = -this.radius; z <= this.radius; z++)
+            for (int x = -this.radius; x <= this.radius; x++)
+                if (this.circle.contains(x, z))
+                    count++;
+        return count;
+    }
+
+    // dx^2 + dz^2 <= r^2 for every chunk, as generation used to
+    @Benchmark
+    public long perChunk()
+    {
+        long count = 0;
+        long r2 = (long)this.radius * this.radius;
+        for (int z = -this.radius; z <= this.radius; z++)
+            for (int x = -this.radius; x <= this.radius; x++)
+                if ((long)x * x + (long)z * z <= r2)
+                    count++;
+        return count;
+    }
+}
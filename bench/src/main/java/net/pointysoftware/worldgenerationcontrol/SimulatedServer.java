@@ -0,0 +1,439 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+
+
+package net.pointysoftware.worldgenerationcontrol;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.command.ConsoleCommandSender;
+import org.bukkit.entity.Player;
+import org.bukkit.scheduler.BukkitScheduler;
+
+// The server SchedulerSim runs the plugin against: a tick clock, a world, a
+// heap, a save thread and players coming and going, all drawn from one
+// seeded Random so the same settings always play out the same way.
+//
+// Nothing here really takes any time. Whatever the server or the plugin
+// does moves the clock on by what it would have cost, and since the plugin
+// reads the time from us (we're its GenerationClock) its scheduling sees
+// exactly those costs. A tick is over when the clock says so, and the next
+// one starts 50ms after it began, or straight away if it ran long.
+//
+// The heap is old generation only: what's live is a baseline, plus what
+// every loaded chunk and every chunk waiting on the save thread holds, plus
+// the players. Generating and loading chunks makes garbage, and each time
+// YOUNG_MIB of it has built up there's a collection, which the plugin's
+// MemoryGovernor hears about as it would from the JVM. The plugin is handed
+// that governor, the adapter and our clock by getHost().
+//
+// There are no scheduled block updates and no relighting, the adapter
+// reports neither, so those phases are passed over as on a plain Bukkit
+// server.
+class SimulatedServer extends GenerationClock implements InvocationHandler
+{
+    private final static long TICK = 50000000L;
+    private final static long MIB = 1024L * 1024L;
+    private final static String WORLD = "world";
+
+    // What the server is like, set from SchedulerSim's name=value options.
+    // Times are in milliseconds, a cost's median with its spread as the
+    // sigma of a lognormal, so a few chunks cost a lot more than most.
+    static class Settings
+    {
+        long seed = 1;
+        // Creating a chunk, on top of loading it
+        double genMs = 15, genSpread = 0.6;
+        // Loading a chunk from its region file
+        double loadMs = 1, loadSpread = 0.5;
+        // Unloading one on the main thread, and serializing it when it's
+        // saved
+        double unloadMs = 0.05, serializeMs = 0.5;
+        // The save thread writing one out
+        double saveMs = 3, saveSpread = 0.5;
+        // The server's own work each tick, and what every loaded chunk and
+        // player adds to it
+        double tickMs = 10, tickSpread = 0.3, chunkTickMs = 0.002, playerTickMs = 1;
+        // Heap, in MiB except for chunks
+        int heapMiB = 2048, baseMiB = 700, youngMiB = 256;
+        double chunkKiB = 400, playerMiB = 10;
+        // Garbage made by creating and loading a chunk, and by every tick
+        double createdMiB = 6, loadedMiB = 0.5, tickMiB = 1.5;
+        // Players joining, how long they stay, and the hitch a join causes
+        double joinsPerHour = 4, sessionMinutes = 30, joinMs = 150;
+    }
+
+    private Settings settings;
+    private File folder;
+    private Logger logger;
+    private Server server;
+    private BukkitScheduler scheduler;
+    private ConsoleCommandSender console;
+    private Adapter adapter = new Adapter();
+    private Host host = new Host();
+
+    // Everything below starts again with begin()
+    private Random random;
+    private long now;
+    private long start;
+    private SimulatedWorld world;
+    private Heap memory;
+    private Runnable task = null;
+    // Online players, and when each of them leaves
+    private ArrayList<Player> players = new ArrayList<Player>();
+    private ArrayList<Long> leaving = new ArrayList<Long>();
+    private long nextjoin;
+    // When each chunk on the save thread will have been written, in order
+    private ArrayDeque<Long> writes = new ArrayDeque<Long>();
+    private long writing;
+    private long garbage;
+    private boolean oom;
+
+    // What happened
+    private long ticks, late, worst, heappeak, livepeak;
+    private int collections;
+
+    SimulatedServer(Settings settings, File folder, boolean verbose)
+    {
+        this.settings = settings;
+        this.folder = folder;
+        // Status messages, stamped with the simulated time
+        this.logger = Logger.getAnonymousLogger();
+        this.logger.setUseParentHandlers(false);
+        if (verbose)
+        {
+            this.logger.addHandler(new Handler()
+            {
+                public void publish(LogRecord r)
+                {
+                    System.out.println(String.format("%10.1fs  %s", (double)SimulatedServer.this.getElapsed() / 1000000000L, r.getMessage()));
+                }
+                public void flush() {}
+                public void close() {}
+            });
+        }
+        this.server = (Server)Proxy.newProxyInstance(Server.class.getClassLoader(), new Class<?>[] { Server.class }, this);
+        this.scheduler = (BukkitScheduler)Proxy.newProxyInstance(BukkitScheduler.class.getClassLoader(), new Class<?>[] { BukkitScheduler.class }, new InvocationHandler()
+        {
+            public Object invoke(Object proxy, Method method, Object[] args)
+            {
+                String name = method.getName();
+                // The plugin only ever has the one task, run every tick
+                if (name.equals("scheduleSyncRepeatingTask"))
+                {
+                    SimulatedServer.this.task = (Runnable)args[1];
+                    return 1;
+                }
+                if (name.equals("cancelTask") || name.equals("cancelTasks"))
+                    SimulatedServer.this.task = null;
+                return FakeWorld.defaultFor(method.getReturnType());
+            }
+        });
+        this.console = (ConsoleCommandSender)Proxy.newProxyInstance(ConsoleCommandSender.class.getClassLoader(), new Class<?>[] { ConsoleCommandSender.class }, new InvocationHandler()
+        {
+            public Object invoke(Object proxy, Method method, Object[] args)
+            {
+                String name = method.getName();
+                if (name.equals("sendMessage"))
+                    SimulatedServer.this.logger.info((String)args[0]);
+                if (name.equals("isOp") || name.equals("hasPermission"))
+                    return true;
+                if (name.equals("getName"))
+                    return "CONSOLE";
+                return FakeWorld.defaultFor(method.getReturnType());
+            }
+        });
+    }
+
+    public Server getServer() { return this.server; }
+    public GenerationHost getHost() { return this.host; }
+    public ConsoleCommandSender getConsole() { return this.console; }
+    public String getWorldName() { return WORLD; }
+
+    // Starts over with a world of radius chunks that's never been generated,
+    // an empty server and the heap's baseline, reported to a new governor as
+    // if a collection had just happened
+    public void begin(int radius)
+    {
+        this.random = new Random(this.settings.seed);
+        // The scheduler takes 0 to mean it hasn't started
+        this.now = this.start = 1000000000L;
+        this.world = new SimulatedWorld(radius);
+        this.memory = new Heap();
+        this.task = null;
+        this.players.clear();
+        this.leaving.clear();
+        this.nextjoin = this.now + this.nextJoin();
+        this.writes.clear();
+        this.writing = 0;
+        this.garbage = 0;
+        this.oom = false;
+        this.ticks = this.late = this.worst = this.heappeak = this.livepeak = 0;
+        this.collections = 0;
+        this.memory.collected(this.getLive(), this.settings.heapMiB * MIB);
+    }
+
+    public long nanoTime() { return this.now; }
+
+    // Runs one tick: players come and go, the server does its own work and
+    // then the plugin's task, if it has one
+    public void tick()
+    {
+        long begin = this.now;
+        for (int i = this.players.size() - 1; i >= 0; i--)
+        {
+            if (this.leaving.get(i) > this.now)
+                continue;
+            this.players.remove(i);
+            this.leaving.remove(i);
+        }
+        while (this.nextjoin <= this.now)
+        {
+            this.players.add(this.newPlayer(this.players.size()));
+            this.leaving.add(this.now + (long)(this.exponential(this.settings.sessionMinutes * 60) * 1000000000L));
+            this.nextjoin += this.nextJoin();
+            this.spend(this.settings.joinMs, 0.3D);
+        }
+        this.advance((long)((this.world.getLoadedCount() * this.settings.chunkTickMs + this.players.size() * this.settings.playerTickMs) * 1000000L));
+        this.spend(this.settings.tickMs, this.settings.tickSpread);
+        this.allocate(this.settings.tickMiB);
+        if (this.task != null)
+            this.task.run();
+
+        long took = this.now - begin;
+        this.ticks++;
+        this.worst = Math.max(this.worst, took);
+        if (took > TICK)
+            this.late++;
+        else
+            this.now = begin + TICK;
+    }
+
+    // The plugin's task is still scheduled
+    public boolean isRunning() { return this.task != null; }
+    public boolean isOutOfMemory() { return this.oom; }
+    public long getElapsed() { return this.now - this.start; }
+    public long getTicks() { return this.ticks; }
+    public long getLateTicks() { return this.late; }
+    public long getWorstTick() { return this.worst; }
+    // Most heap in use, garbage and all, and most of it live
+    public long getHeapPeak() { return this.heappeak; }
+    public long getLivePeak() { return this.livepeak; }
+    public int getCollections() { return this.collections; }
+    public long getCreated() { return this.world.getCreates(); }
+    public long getLoads() { return this.world.getLoads(); }
+
+    private void advance(long nanos) { this.now += Math.max(0, nanos); }
+
+    // Moves the clock on by a draw from the lognormal with this median, in
+    // milliseconds, and spread
+    private void spend(double medianMs, double spread)
+    {
+        this.advance((long)(medianMs * 1000000L * Math.exp(spread * this.random.nextGaussian())));
+    }
+
+    private double exponential(double mean) { return -Math.log(1 - this.random.nextDouble()) * mean; }
+
+    private long nextJoin()
+    {
+        if (this.settings.joinsPerHour <= 0)
+            return Long.MAX_VALUE / 2;
+        return (long)(this.exponential(3600 / this.settings.joinsPerHour) * 1000000000L);
+    }
+
+    private long getLive()
+    {
+        return this.settings.baseMiB * MIB + (long)((this.world.getLoadedCount() + this.writes.size()) * this.settings.chunkKiB * 1024)
+            + (long)(this.players.size() * this.settings.playerMiB * MIB);
+    }
+
+    // Makes mib of garbage, collecting once the young generation is full
+    private void allocate(double mib)
+    {
+        this.garbage += (long)(mib * MIB);
+        long live = this.getLive();
+        this.heappeak = Math.max(this.heappeak, live + Math.min(this.garbage, this.settings.youngMiB * MIB));
+        if (this.garbage < this.settings.youngMiB * MIB)
+            return;
+        this.garbage = 0;
+        this.collections++;
+        this.livepeak = Math.max(this.livepeak, live);
+        if (live > this.settings.heapMiB * MIB)
+            this.oom = true;
+        this.memory.collected(live, this.settings.heapMiB * MIB);
+    }
+
+    // Chunks on the save thread that haven't been written yet
+    private int getSaveQueueDepth()
+    {
+        while (!this.writes.isEmpty() && this.writes.peek() <= this.now)
+            this.writes.poll();
+        return this.writes.size();
+    }
+
+    private Player newPlayer(final int n)
+    {
+        return (Player)Proxy.newProxyInstance(Player.class.getClassLoader(), new Class<?>[] { Player.class }, new InvocationHandler()
+        {
+            public Object invoke(Object proxy, Method method, Object[] args)
+            {
+                String name = method.getName();
+                if (name.equals("getName"))
+                    return "Player" + n;
+                if (name.equals("hashCode"))
+                    return System.identityHashCode(proxy);
+                if (name.equals("equals"))
+                    return proxy == args[0];
+                return FakeWorld.defaultFor(method.getReturnType());
+            }
+        });
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args)
+    {
+        String name = method.getName();
+        if (name.equals("getOnlinePlayers"))
+            return this.players.toArray(new Player[this.players.size()]);
+        if (name.equals("getWorld"))
+            return WORLD.equals(args[0]) ? this.world.getWorld() : null;
+        if (name.equals("getWorlds"))
+            return Collections.singletonList(this.world.getWorld());
+        if (name.equals("getScheduler"))
+            return this.scheduler;
+        if (name.equals("getLogger"))
+            return this.logger;
+        if (name.equals("getName"))
+            return "SchedulerSim";
+        if (name.equals("getVersion") || name.equals("getBukkitVersion"))
+            return "simulated";
+        if (name.equals("hashCode"))
+            return System.identityHashCode(proxy);
+        if (name.equals("equals"))
+            return proxy == args[0];
+        if (name.equals("toString"))
+            return "SimulatedServer";
+        return FakeWorld.defaultFor(method.getReturnType());
+    }
+
+    // A FakeWorld whose chunks cost simulated time and heap rather than
+    // real time, and whose saved chunks go to the save thread
+    private class SimulatedWorld extends FakeWorld
+    {
+        private int count = 0;
+
+        SimulatedWorld(int radius) { super(radius, 0, 0); }
+
+        public int getLoadedCount() { return this.count; }
+
+        protected void created(int x, int z)
+        {
+            Settings s = SimulatedServer.this.settings;
+            SimulatedServer.this.spend(s.genMs, s.genSpread);
+            SimulatedServer.this.allocate(s.createdMiB);
+        }
+
+        protected void loaded(int x, int z)
+        {
+            Settings s = SimulatedServer.this.settings;
+            SimulatedServer.this.spend(s.loadMs, s.loadSpread);
+            this.count++;
+            SimulatedServer.this.allocate(s.loadedMiB);
+        }
+
+        protected void unloaded(int x, int z, boolean save)
+        {
+            Settings s = SimulatedServer.this.settings;
+            SimulatedServer.this.spend(s.unloadMs, 0);
+            this.count--;
+            if (!save)
+                return;
+            SimulatedServer.this.spend(s.serializeMs, 0);
+            // Written one after another, as the save thread does
+            long start = Math.max(SimulatedServer.this.writing, SimulatedServer.this.now);
+            SimulatedServer.this.writing = start + (long)(s.saveMs * 1000000L * Math.exp(s.saveSpread * SimulatedServer.this.random.nextGaussian()));
+            SimulatedServer.this.writes.add(SimulatedServer.this.writing);
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args)
+        {
+            String name = method.getName();
+            if (name.equals("getName"))
+                return WORLD;
+            // Somewhere with no region files, so the prescan finds nothing
+            if (name.equals("getWorldFolder"))
+                return new File(SimulatedServer.this.folder, WORLD);
+            return super.invoke(proxy, method, args);
+        }
+    }
+
+    private class Adapter extends ServerAdapter
+    {
+        public String getName() { return "SchedulerSim"; }
+        public long getSaveQueueDepth() { return SimulatedServer.this.getSaveQueueDepth(); }
+    }
+
+    // What the plugin is constructed with in place of the real server's
+    // internals, clock and heap
+    private class Host extends GenerationHost
+    {
+        public ServerAdapter getAdapter(Server server) { return SimulatedServer.this.adapter; }
+        public GenerationClock getClock() { return SimulatedServer.this; }
+        public MemoryGovernor getMemory() { return SimulatedServer.this.memory; }
+    }
+
+    // A MemoryGovernor reading our heap instead of the JVM's, told about
+    // each collection by allocate()
+    private static class Heap extends MemoryGovernor
+    {
+        private long used, max;
+        private int collections;
+
+        void collected(long used, long max)
+        {
+            this.used = used;
+            this.max = max;
+            this.collections++;
+        }
+
+        // Nothing to listen to or poll
+        public void start() {}
+        void refresh() {}
+
+        public double getOccupancy() { return (double)this.used / this.max; }
+        public long getHeadroom() { return Math.max(0, this.max - this.used); }
+        public int getCollections() { return this.collections; }
+        public long getHeapAfterGc() { return this.used; }
+        public long getHeapMax() { return this.max; }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package net.pointysoftware.worldgenerationcontrol;
+
+// The chunks of one section, as packed x/z coordinates plus a few flag bits
+// saying what the section wants done with each.
+//
+// One of these is reused for every section of a generation, so stepping
+// through a job doesn't allocate anything once it has grown to the largest
+// section size.
+class ChunkBatch
+{
+    // Needs loading this section
+    public final static byte LOAD = 1;
+    // Can be lit this section
+    public final static byte LIGHT = 2;
+    // Done with after this section
+    public final static byte UNLOAD = 4;
+    // On the rim of its section
+    public final static byte EDGE = 8;
+    // Didn't exist before we loaded it
+    public final static byte CREATED = 16;
+
+    private long keys[];
+    private byte flags[];
+    // Scratch grid for fill()
+    private boolean missing[];
+    private int size = 0;
+
+    ChunkBatch(int capacity)
+    {
+        this.ensureCapacity(capacity);
+    }
+
+    private void ensureCapacity(int capacity)
+    {
+        if (this.keys == null || this.keys.length < capacity)
+        {
+            this.keys = new long[capacity];
+            this.flags = new byte[capacity];
+            this.missing = new boolean[capacity];
+        }
+    }
+
+    public static long pack(int x, int z) { return ((long)x << 32) | (z & 0xFFFFFFFFL); }
+    public static int unpackX(long key) { return (int)(key >> 32); }
+    public static int unpackZ(long key) { return (int)key; }
+
+    // Fill with the planner's current section. existing may be null,
+    // otherwise chunks it knows about are only loaded if a missing chunk
+    // next to them needs them for its populators and lighting, and only
+    // missing chunks are lit.
+    // Returns the number of chunks, 0 if there's nothing to do here.
+    public int fill(SectionPlanner planner, RegionFileIndex existing)
+    {
+        return this.fill(planner, existing, false);
+    }
+
+    // As above, or when repairing, the other way around: chunks existing
+    // says were saved lately are lit, along with what exists around them to
+    // light them with, and nothing missing is ever loaded.
+    public int fill(SectionPlanner planner, RegionFileIndex existing, boolean repair)
+    {
+        int x1 = planner.getX1(), z1 = planner.getZ1(), x2 = planner.getX2(), z2 = planner.getZ2();
+        // A frontier band has to know about the rows on either side of it
+        // to agree with its neighbours on what they load
+        int g1 = z1, g2 = z2;
+        if (planner.isFrontier())
+        {
+            g1 = Math.max(z1 - 1, planner.getZStart());
+            g2 = Math.min(z2 + 1, planner.getZEnd());
+        }
+        int width = x2 - x1 + 1;
+        this.ensureCapacity(width * (g2 - g1 + 1));
+        this.size = 0;
+
+        if (existing != null)
+        {
+            boolean any = false;
+            for (int z = g1; z <= g2; z++)
+            {
+                int row = (z - g1) * width - x1;
+                for (int x = x1; x <= x2; x++)
+                    this.missing[row + x] = false;
+                int n = planner.getSpans(z);
+                for (int s = 0; s < n; s++)
+                {
+                    for (int x = planner.getSpanX1(s); x <= planner.getSpanX2(s); x++)
+                    {
+                        boolean m = repair ? existing.isModifiedSince(x, z) : !existing.exists(x, z);
+                        this.missing[row + x] = m;
+                        any |= m;
+                    }
+                }
+            }
+            // Nothing to do here at all
+            if (!any)
+                return 0;
+        }
+
+        for (int z = z1; z <= z2; z++)
+        {
+            boolean load = z >= planner.getLoadZ1() && z <= planner.getLoadZ2();
+            boolean light = z >= planner.getLightZ1() && z <= planner.getLightZ2();
+            boolean unload = z >= planner.getUnloadZ1() && z <= planner.getUnloadZ2();
+            int n = planner.getSpans(z);
+            for (int s = 0; s < n; s++)
+            {
+                for (int x = planner.getSpanX1(s); x <= planner.getSpanX2(s); x++)
+                {
+                    boolean wanted = true, missing = true;
+                    if (existing != null)
+                    {
+                        wanted = this.nearMissing(x, z, x1, g1, x2, g2) && (!repair || existing.exists(x, z));
+                        missing = this.missing[(z - g1) * width + (x - x1)];
+                    }
+                    byte f = 0;
+                    if (planner.isEdge(x, z))
+                        f |= EDGE;
+                    else if (light && missing)
+                        f |= LIGHT;
+                    if (load && wanted)
+                        f |= LOAD;
+                    if (unload && wanted)
+                        f |= UNLOAD;
+                    if ((f & (LOAD | LIGHT | UNLOAD)) == 0)
+                        continue;
+                    this.keys[this.size] = pack(x, z);
+                    this.flags[this.size] = f;
+                    this.size++;
+                }
+            }
+        }
+        return this.size;
+    }
+
+    // Is this chunk, or any chunk touching it, missing?
+    private boolean nearMissing(int x, int z, int x1, int z1, int x2, int z2)
+    {
+        int width = x2 - x1 + 1;
+        for (int nz = Math.max(z - 1, z1); nz <= Math.min(z + 1, z2); nz++)
+            for (int nx = Math.max(x - 1, x1); nx <= Math.min(x + 1, x2); nx++)
+                if (this.missing[(nz - z1) * width + (nx - x1)])
+                    return true;
+        return false;
+    }
+
+    public int size() { return this.size; }
+    public void clear() { this.size = 0; }
+    public int getX(int i) { return unpackX(this.keys[i]); }
+    public int getZ(int i) { return unpackZ(this.keys[i]); }
+    public boolean is(int i, byte flag) { return (this.flags[i] & flag) != 0; }
+    public boolean isEdge(int i) { return this.is(i, EDGE); }
+    public boolean wasCreated(int i) { return this.is(i, CREATED); }
+    public void setCreated(int i) { this.flags[i] |= CREATED; }
+    // Mark everything for unloading, for giving up on a section partway
+    public void unloadAll()
+    {
+        for (int i = 0; i < this.size; i++)
+            this.flags[i] |= UNLOAD;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package net.pointysoftware.worldgenerationcontrol;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Chunks a section is done with but that we've kept loaded, least recently
+// used first, in case a later section wants them again.
+//
+// Sections overlap, so the chunks along every seam are loaded by the section
+// on each side of it. Keeping the last few hundred chunks around means the
+// second section usually finds its seam still loaded instead of reading it
+// back from disk. The owner decides how many to keep and trims the oldest a
+// batch at a time, see GenerationRegion.trimCache.
+//
+// Chunks we created are tagged with the earliest section whose journal
+// record is waiting for them to be saved, see GenerationRegion.recordProgress.
+class ChunkCache
+{
+    // Packed coordinates -> tag, 0 if we didn't create the chunk
+    private LinkedHashMap<Long, Integer> chunks = new LinkedHashMap<Long, Integer>(64, 0.75f, true);
+    private long hits = 0;
+    private long misses = 0;
+
+    public void put(int x, int z, int tag)
+    {
+        Long key = ChunkBatch.pack(x, z);
+        Integer was = this.chunks.get(key);
+        if (was != null && was != 0 && (tag == 0 || was < tag))
+            tag = was;
+        this.chunks.put(key, tag);
+    }
+
+    // Take a chunk back out for use, with its tag, null if we don't have it
+    public Integer take(int x, int z)
+    {
+        Integer tag = this.chunks.remove(ChunkBatch.pack(x, z));
+        if (tag != null)
+            this.hits++;
+        return tag;
+    }
+
+    // A chunk we didn't have had to be loaded
+    public void miss() { this.misses++; }
+
+    // Next to be evicted, null if empty
+    public Map.Entry<Long, Integer> getOldest()
+    {
+        return this.chunks.isEmpty() ? null : this.chunks.entrySet().iterator().next();
+    }
+
+    public void remove(long key) { this.chunks.remove(key); }
+
+    // Earliest tag of anything we hold, 0 if none
+    public int getEarliest()
+    {
+        int earliest = 0;
+        for (Integer tag:this.chunks.values())
+            if (tag != 0 && (earliest == 0 || tag < earliest))
+                earliest = tag;
+        return earliest;
+    }
+
+    public int size() { return this.chunks.size(); }
+    public boolean isEmpty() { return this.chunks.isEmpty(); }
+    public long getHits() { return this.hits; }
+    public long getMisses() { return this.misses; }
+    public double getHitRate() { return this.hits + this.misses > 0 ? (double)this.hits / (this.hits + this.misses) : 0; }
+}
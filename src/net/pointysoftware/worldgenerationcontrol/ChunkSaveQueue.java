@@ -0,0 +1,125 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package net.pointysoftware.worldgenerationcontrol;
+
+import java.io.File;
+import java.util.HashMap;
+
+// Chunks a generation created, waiting to be saved and unloaded.
+//
+// Rather than flushing the whole world - every chunk players have touched
+// included - we save only the chunks we generated, a few at a time as the
+// budget allows, behind the section that made them. The queue is bounded:
+// once it's full the generation has to wait for it, so saving can never fall
+// more than about a section behind.
+//
+// Each chunk is tagged with the earliest section whose journal record is
+// waiting for it to be saved, see GenerationRegion.recordProgress.
+//
+// The server writes chunks out on its own thread and doesn't say how much,
+// so all we report is how much the region files we've saved into have
+// grown. Chunks rewritten in place don't show up in that.
+class ChunkSaveQueue
+{
+    private File folder;
+    // Ring of packed chunk coordinates
+    private long keys[];
+    private int tags[];
+    private int head = 0;
+    private int count = 0;
+    private long saved = 0;
+    // Region file -> its length before we first saved into it
+    private HashMap<Long, Long> lengths = new HashMap<Long, Long>();
+
+    ChunkSaveQueue(File regionFolder, int capacity)
+    {
+        this.folder = regionFolder;
+        this.keys = new long[Math.max(1, capacity)];
+        this.tags = new int[this.keys.length];
+    }
+
+    // False if there's no room, try again once some have been saved
+    public boolean offer(int x, int z, int tag)
+    {
+        if (this.count == this.keys.length)
+            return false;
+        int i = (this.head + this.count++) % this.keys.length;
+        this.keys[i] = ChunkBatch.pack(x, z);
+        this.tags[i] = tag;
+        return true;
+    }
+
+    // The tag of the chunk poll() returns next
+    public int peekTag() { return this.tags[this.head]; }
+
+    public long poll()
+    {
+        long key = this.keys[this.head];
+        this.head = (this.head + 1) % this.keys.length;
+        this.count--;
+        return key;
+    }
+
+    public int size() { return this.count; }
+    public int getCapacity() { return this.keys.length; }
+    public boolean isEmpty() { return this.count == 0; }
+
+    // Earliest tag still waiting, 0 if none
+    public int getEarliest()
+    {
+        int earliest = 0;
+        for (int i = 0; i < this.count; i++)
+        {
+            int tag = this.tags[(this.head + i) % this.keys.length];
+            if (tag != 0 && (earliest == 0 || tag < earliest))
+                earliest = tag;
+        }
+        return earliest;
+    }
+
+    // Call just before saving a chunk, and saved() once it has been
+    public void saving(int x, int z)
+    {
+        Long region = ChunkBatch.pack(x >> 5, z >> 5);
+        if (!this.lengths.containsKey(region))
+            this.lengths.put(region, this.getLength(region));
+    }
+
+    public void saved() { this.saved++; }
+
+    public long getSaved() { return this.saved; }
+
+    // Bytes the region files we've saved into have grown by. Touches every
+    // one of them, so not for every tick.
+    public long getRegionGrowth()
+    {
+        long bytes = 0;
+        for (Long region:this.lengths.keySet())
+            bytes += Math.max(0, this.getLength(region) - this.lengths.get(region));
+        return bytes;
+    }
+
+    private long getLength(long region)
+    {
+        return RegionFileIndex.getRegionFile(this.folder, ChunkBatch.unpackX(region), ChunkBatch.unpackZ(region)).length();
+    }
+}
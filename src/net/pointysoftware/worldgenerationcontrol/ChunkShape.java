@@ -0,0 +1,301 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package net.pointysoftware.worldgenerationcontrol;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+// The chunks an area covers, as runs of x for each z row.
+//
+// Rather than asking whether each chunk is inside, callers ask for a row's
+// spans and walk them, so chunks outside the shape are never looked at and
+// chunks inside it are never tested. All values are in chunk coordinates.
+abstract class ChunkShape
+{
+    // Scratch for count()
+    private int counted[] = null;
+
+    // Fills spans with [x1, x2] pairs covered on row z, sorted and not
+    // overlapping or touching, returning how many there are. spans must have
+    // room for getMaxSpans() pairs.
+    public abstract int getSpans(int z, int spans[]);
+    // Most spans any one row can have
+    public abstract int getMaxSpans();
+    // Bounding box
+    public abstract int getXMin();
+    public abstract int getZMin();
+    public abstract int getXMax();
+    public abstract int getZMax();
+
+    public boolean contains(int x, int z)
+    {
+        int spans[] = new int[this.getMaxSpans() * 2];
+        int n = this.getSpans(z, spans);
+        for (int i = 0; i < n; i++)
+            if (x >= spans[i * 2] && x <= spans[i * 2 + 1])
+                return true;
+        return false;
+    }
+
+    // Chunks of the shape inside a rectangle
+    public long count(int x1, int z1, int x2, int z2)
+    {
+        if (this.counted == null || this.counted.length < this.getMaxSpans() * 2)
+            this.counted = new int[this.getMaxSpans() * 2];
+        long count = 0;
+        for (int z = Math.max(z1, this.getZMin()); z <= Math.min(z2, this.getZMax()); z++)
+        {
+            int n = this.getSpans(z, this.counted);
+            for (int i = 0; i < n; i++)
+                count += Math.max(0, Math.min(this.counted[i * 2 + 1], x2) - Math.max(this.counted[i * 2], x1) + 1);
+        }
+        return count;
+    }
+
+    // Largest w where w*w <= v
+    private static long isqrt(long v)
+    {
+        if (v < 0)
+            return -1;
+        long w = (long)Math.sqrt((double)v);
+        while (w * w > v)
+            w--;
+        while ((w + 1) * (w + 1) <= v)
+            w++;
+        return w;
+    }
+
+    public static class Rect extends ChunkShape
+    {
+        private int xMin, zMin, xMax, zMax;
+        Rect(int xMin, int zMin, int xMax, int zMax)
+        {
+            this.xMin = xMin;
+            this.zMin = zMin;
+            this.xMax = xMax;
+            this.zMax = zMax;
+        }
+        public int getSpans(int z, int spans[])
+        {
+            if (z < this.zMin || z > this.zMax)
+                return 0;
+            spans[0] = this.xMin;
+            spans[1] = this.xMax;
+            return 1;
+        }
+        public int getMaxSpans() { return 1; }
+        public int getXMin() { return this.xMin; }
+        public int getZMin() { return this.zMin; }
+        public int getXMax() { return this.xMax; }
+        public int getZMax() { return this.zMax; }
+        public boolean contains(int x, int z) { return x >= this.xMin && x <= this.xMax && z >= this.zMin && z <= this.zMax; }
+    }
+
+    // Chunks within xRadius/zRadius of the center - a circle if they're the
+    // same, which matches the old per-chunk test, dx^2 + dz^2 <= r^2, exactly.
+    public static class Ellipse extends ChunkShape
+    {
+        private int xCenter, zCenter, xRadius, zRadius;
+        Ellipse(int xCenter, int zCenter, int xRadius, int zRadius)
+        {
+            this.xCenter = xCenter;
+            this.zCenter = zCenter;
+            this.xRadius = Math.max(0, xRadius);
+            this.zRadius = Math.max(0, zRadius);
+        }
+        public int getSpans(int z, int spans[])
+        {
+            long w = this.getHalfWidth(z - this.zCenter);
+            if (w < 0)
+                return 0;
+            spans[0] = (int)(this.xCenter - w);
+            spans[1] = (int)(this.xCenter + w);
+            return 1;
+        }
+        // How far either side of the center row dz reaches, -1 if it's
+        // outside entirely
+        private long getHalfWidth(long dz)
+        {
+            long rz2 = (long)this.zRadius * this.zRadius;
+            if (dz * dz > rz2)
+                return -1;
+            // Circles are exact. Ellipses overflow a long doing the same, so
+            // they're done in floating point.
+            if (this.xRadius == this.zRadius)
+                return isqrt(rz2 - dz * dz);
+            return (long)Math.floor(this.xRadius * Math.sqrt(1 - (double)(dz * dz) / rz2) + 1e-9);
+        }
+        public int getMaxSpans() { return 1; }
+        public int getXMin() { return this.xCenter - this.xRadius; }
+        public int getZMin() { return this.zCenter - this.zRadius; }
+        public int getXMax() { return this.xCenter + this.xRadius; }
+        public int getZMax() { return this.zCenter + this.zRadius; }
+        public boolean contains(int x, int z)
+        {
+            return Math.abs((long)x - this.xCenter) <= this.getHalfWidth(z - this.zCenter);
+        }
+    }
+
+    // Chunks whose center lies inside a polygon given in block coordinates,
+    // by the even-odd rule so self-intersecting outlines still mean something
+    public static class Polygon extends ChunkShape
+    {
+        private double xs[], zs[];
+        private int xMin, zMin, xMax, zMax;
+        // Scratch for crossings
+        private double crossings[];
+
+        Polygon(double xs[], double zs[])
+        {
+            this.xs = xs;
+            this.zs = zs;
+            this.crossings = new double[xs.length];
+            double bx1 = Double.MAX_VALUE, bz1 = Double.MAX_VALUE, bx2 = -Double.MAX_VALUE, bz2 = -Double.MAX_VALUE;
+            for (int i = 0; i < xs.length; i++)
+            {
+                bx1 = Math.min(bx1, xs[i]);
+                bz1 = Math.min(bz1, zs[i]);
+                bx2 = Math.max(bx2, xs[i]);
+                bz2 = Math.max(bz2, zs[i]);
+            }
+            this.xMin = toChunk(bx1);
+            this.zMin = toChunk(bz1);
+            this.xMax = toChunk(bx2);
+            this.zMax = toChunk(bz2);
+        }
+
+        private static int toChunk(double block) { return (int)Math.floor(block / 16); }
+
+        public int getSpans(int z, int spans[])
+        {
+            // Scan along the middle of the row
+            double bz = z * 16 + 8;
+            int n = 0;
+            for (int i = 0, j = this.xs.length - 1; i < this.xs.length; j = i++)
+            {
+                double z1 = this.zs[j], z2 = this.zs[i];
+                // Half-open so a vertex exactly on the line counts once
+                if ((z1 <= bz) != (z2 <= bz))
+                    this.crossings[n++] = this.xs[j] + (bz - z1) / (z2 - z1) * (this.xs[i] - this.xs[j]);
+            }
+            Arrays.sort(this.crossings, 0, n);
+            int count = 0;
+            for (int i = 0; i + 1 < n; i += 2)
+            {
+                // Chunks with their middle in [a, b)
+                int x1 = (int)Math.ceil((this.crossings[i] - 8) / 16);
+                int x2 = (int)Math.ceil((this.crossings[i + 1] - 8) / 16) - 1;
+                if (x1 > x2)
+                    continue;
+                if (count > 0 && x1 <= spans[count * 2 - 1] + 1)
+                    spans[count * 2 - 1] = Math.max(spans[count * 2 - 1], x2);
+                else
+                {
+                    spans[count * 2] = x1;
+                    spans[count * 2 + 1] = x2;
+                    count++;
+                }
+            }
+            return count;
+        }
+        public int getMaxSpans() { return Math.max(1, this.xs.length / 2); }
+        public int getXMin() { return this.xMin; }
+        public int getZMin() { return this.zMin; }
+        public int getXMax() { return this.xMax; }
+        public int getZMax() { return this.zMax; }
+    }
+
+    public static class Union extends ChunkShape
+    {
+        private ArrayList<ChunkShape> shapes = new ArrayList<ChunkShape>();
+        private int xMin = Integer.MAX_VALUE, zMin = Integer.MAX_VALUE, xMax = Integer.MIN_VALUE, zMax = Integer.MIN_VALUE;
+        private int maxspans = 0;
+        // Scratch for merging
+        private int scratch[] = new int[0];
+        private int merged[] = new int[0];
+
+        public void add(ChunkShape s)
+        {
+            // Keep it flat
+            if (s instanceof Union)
+            {
+                for (ChunkShape c:((Union)s).shapes)
+                    this.add(c);
+                return;
+            }
+            this.shapes.add(s);
+            this.xMin = Math.min(this.xMin, s.getXMin());
+            this.zMin = Math.min(this.zMin, s.getZMin());
+            this.xMax = Math.max(this.xMax, s.getXMax());
+            this.zMax = Math.max(this.zMax, s.getZMax());
+            this.maxspans += s.getMaxSpans();
+            this.scratch = new int[this.maxspans * 2];
+            this.merged = new int[this.maxspans * 2];
+        }
+
+        public int getSpans(int z, int spans[])
+        {
+            // Gather everyone's spans then sort them by start
+            int n = 0;
+            for (ChunkShape s:this.shapes)
+            {
+                if (z < s.getZMin() || z > s.getZMax())
+                    continue;
+                int c = s.getSpans(z, this.scratch);
+                System.arraycopy(this.scratch, 0, this.merged, n * 2, c * 2);
+                n += c;
+            }
+            // Insertion sort, there's only ever a handful
+            for (int i = 1; i < n; i++)
+            {
+                int a = this.merged[i * 2], b = this.merged[i * 2 + 1];
+                int j = i - 1;
+                for (; j >= 0 && this.merged[j * 2] > a; j--)
+                {
+                    this.merged[j * 2 + 2] = this.merged[j * 2];
+                    this.merged[j * 2 + 3] = this.merged[j * 2 + 1];
+                }
+                this.merged[j * 2 + 2] = a;
+                this.merged[j * 2 + 3] = b;
+            }
+            int count = 0;
+            for (int i = 0; i < n; i++)
+            {
+                int x1 = this.merged[i * 2], x2 = this.merged[i * 2 + 1];
+                if (count > 0 && x1 <= spans[count * 2 - 1] + 1)
+                    spans[count * 2 - 1] = Math.max(spans[count * 2 - 1], x2);
+                else
+                {
+                    spans[count * 2] = x1;
+                    spans[count * 2 + 1] = x2;
+                    count++;
+                }
+            }
+            return count;
+        }
+        public int getMaxSpans() { return Math.max(1, this.maxspans); }
+        public int getXMin() { return this.xMin; }
+        public int getZMin() { return this.zMin; }
+        public int getXMax() { return this.xMax; }
+        public int getZMax() { return this.zMax; }
+    }
+}
@@ -0,0 +1,383 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+
+package net.pointysoftware.worldgenerationcontrol;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.TreeSet;
+
+import org.bukkit.Chunk;
+import org.bukkit.Server;
+import org.bukkit.World;
+
+// CraftBukkit, found and bound to at runtime so the plugin isn't built
+// against any one version of it.
+//
+// The server's classes are looked up by reflection once, in create(), and
+// turned into MethodHandles, which the JIT can call as directly as if we'd
+// linked against them. Each feature is looked up separately, so a build
+// where, say, the lighting method has moved still gets the rest.
+class CraftBukkitAdapter extends ServerAdapter
+{
+    // Obfuscated minecraft names we rely on, which move between versions
+    private static class Mappings
+    {
+        // Candidates for Chunk's private no argument method that relights
+        // the columns initLighting marks, in the order to try them
+        final String relight[];
+        // Candidates for the world's private TreeSet of pending block
+        // updates, or null to take the only TreeSet it has. Builds without
+        // one are tried for CHUNK_TICK_LIST instead.
+        final String ticklist[];
+        // World method taking a boolean that runs a batch of pending
+        // block updates
+        final String tick;
+        // FileIOThread's long counts of writes queued and writes done
+        final String queued, written;
+        // RegionFileCache's static no argument method that closes every
+        // region file it has open
+        final String closeRegions;
+        Mappings(String relight[], String ticklist[], String tick, String queued, String written, String closeRegions)
+        {
+            this.relight = relight;
+            this.ticklist = ticklist;
+            this.tick = tick;
+            this.queued = queued;
+            this.written = written;
+            this.closeRegions = closeRegions;
+        }
+    }
+
+    // Unversioned builds, before 1.4.5
+    //   relight: pre 1.0 h() calls the private i(), after 1.0 the public
+    //            i() calls the private k(), 1.3 removed that and the
+    //            private q() (recheckGaps) does the same job
+    //   ticklist: b1.8.1 N, b1.9p5 through 1.1 K, 1.2.3 H
+    //   save thread: 1.3 on, c and d. Before that there isn't one.
+    //   region files: a() since beta
+    private final static Mappings LEGACY = new Mappings(new String[] { "i", "k", "q" }, new String[] { "K", "H", "N" }, "a", "c", "d", "a");
+    // Versioned builds. Add a version here when it moves something, anything
+    // not listed gets LATEST.
+    private final static Mappings LATEST = new Mappings(new String[] { "q" }, null, "a", "c", "d", "a");
+    // 1.3.1 CB keeps its pending updates in a protected LongHashset by this
+    // name, which has a size() but isn't a Collection
+    private final static String CHUNK_TICK_LIST = "chunkTickList";
+    private final static HashMap<String, Mappings> VERSIONS = new HashMap<String, Mappings>();
+    static
+    {
+        VERSIONS.put("", LEGACY);
+        VERSIONS.put("v1_6_R3", LATEST);
+    }
+
+    // Object(Object) - CraftWorld.getHandle(), CraftChunk.getHandle()
+    private MethodHandle worldHandle = null, chunkHandle = null;
+    // void(Object) - Chunk.initLighting(), then the relight method
+    private MethodHandle initLighting = null, relightColumns = null;
+    private boolean forcedLighting = false;
+    // int(Object) - the size of the world's pending update set
+    private MethodHandle ticklist = null;
+    // void(Object, boolean)
+    private MethodHandle tick = null;
+    // long(Object) - the save thread's two counters, see SaveQueueMonitor
+    private Object saveThread = null;
+    private MethodHandle queued = null, written = null;
+    // void() - RegionFileCache's clear
+    private MethodHandle closeRegions = null;
+    private String version;
+
+    private final static MethodType GETTER = MethodType.methodType(Object.class, Object.class);
+    private final static MethodType ACTION = MethodType.methodType(void.class, Object.class);
+
+    private CraftBukkitAdapter(String version) { this.version = version; }
+
+    // null if this isn't CraftBukkit, or not one we can find our way
+    // around at all
+    public static CraftBukkitAdapter create(Server server)
+    {
+        // org.bukkit.craftbukkit.CraftServer or
+        // org.bukkit.craftbukkit.v1_6_R3.CraftServer
+        String cb = server.getClass().getName();
+        if (!cb.startsWith("org.bukkit.craftbukkit."))
+            return null;
+        cb = cb.substring(0, cb.lastIndexOf('.'));
+        String version = cb.equals("org.bukkit.craftbukkit") ? "" : cb.substring(cb.lastIndexOf('.') + 1);
+        Mappings names = VERSIONS.get(version);
+        if (names == null)
+            names = LATEST;
+
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        CraftBukkitAdapter adapter = new CraftBukkitAdapter(version);
+        Class<?> world;
+        try
+        {
+            Method getHandle = Class.forName(cb + ".CraftWorld").getMethod("getHandle");
+            adapter.worldHandle = lookup.unreflect(getHandle).asType(GETTER);
+            world = getHandle.getReturnType();
+        }
+        catch (Exception e)
+        {
+            return null;
+        }
+        String nms = world.getName().substring(0, world.getName().lastIndexOf('.'));
+
+        adapter.findLighting(lookup, cb, names);
+        adapter.findTickList(lookup, world, names);
+        adapter.findSaveThread(lookup, nms, names);
+        adapter.findRegionCache(lookup, nms, names);
+        return adapter;
+    }
+
+    private void findLighting(MethodHandles.Lookup lookup, String cb, Mappings names)
+    {
+        try
+        {
+            Method getHandle = Class.forName(cb + ".CraftChunk").getMethod("getHandle");
+            Class<?> chunk = getHandle.getReturnType();
+            MethodHandle init = lookup.findVirtual(chunk, "initLighting", MethodType.methodType(void.class)).asType(ACTION);
+            for (String n:names.relight)
+            {
+                Method m;
+                try { m = chunk.getDeclaredMethod(n); }
+                catch (NoSuchMethodException e) { continue; }
+                if (!Modifier.isPrivate(m.getModifiers()))
+                    continue;
+                m.setAccessible(true);
+                this.relightColumns = lookup.unreflect(m).asType(ACTION);
+                this.initLighting = init;
+                this.chunkHandle = lookup.unreflect(getHandle).asType(GETTER);
+                // 1.3+ doesn't light new chunks at all, so they always need
+                // initLighting first
+                this.forcedLighting = n.equals("q");
+                return;
+            }
+        }
+        catch (Exception e) {} // Lighting just won't be available
+    }
+
+    private void findTickList(MethodHandles.Lookup lookup, Class<?> world, Mappings names)
+    {
+        try
+        {
+            // The set is declared on World, the tick method on WorldServer
+            ArrayList<Field> found = new ArrayList<Field>();
+            for (Class<?> c = world; c != null && c != Object.class; c = c.getSuperclass())
+                for (Field f:c.getDeclaredFields())
+                    if (f.getType() == TreeSet.class && !Modifier.isStatic(f.getModifiers())
+                        && (names.ticklist == null || Arrays.asList(names.ticklist).contains(f.getName())))
+                        found.add(f);
+            Field list;
+            if (found.size() == 1)
+                list = found.get(0);
+            else if (found.isEmpty())
+                list = findField(world, CHUNK_TICK_LIST);
+            else
+                return;
+            if (list == null)
+                return;
+            list.setAccessible(true);
+            // Straight to its size, so asking is one call
+            MethodHandle size;
+            if (Collection.class.isAssignableFrom(list.getType()))
+                size = lookup.findVirtual(Collection.class, "size", MethodType.methodType(int.class));
+            else
+                size = lookup.findVirtual(list.getType(), "size", MethodType.methodType(int.class));
+            MethodHandle get = lookup.unreflectGetter(list).asType(GETTER);
+            this.tick = lookup.unreflect(world.getMethod(names.tick, boolean.class)).asType(MethodType.methodType(void.class, Object.class, boolean.class));
+            this.ticklist = MethodHandles.filterReturnValue(get, size.asType(MethodType.methodType(int.class, Object.class)));
+        }
+        catch (Exception e)
+        {
+            this.tick = null;
+            this.ticklist = null;
+        }
+    }
+
+    // A field declared anywhere up c's superclasses, null if there isn't one
+    private static Field findField(Class<?> c, String name)
+    {
+        for (; c != null && c != Object.class; c = c.getSuperclass())
+        {
+            try { return c.getDeclaredField(name); }
+            catch (NoSuchFieldException e) {}
+        }
+        return null;
+    }
+
+    // Since 1.3 chunks are written by a single FileIOThread next to the
+    // world class, which counts writes queued and done, and keeps its one
+    // instance in a static field
+    private void findSaveThread(MethodHandles.Lookup lookup, String nms, Mappings names)
+    {
+        try
+        {
+            Class<?> c = Class.forName(nms + ".FileIOThread");
+            Object instance = null;
+            for (Field f:c.getDeclaredFields())
+            {
+                if (Modifier.isStatic(f.getModifiers()) && f.getType() == c)
+                {
+                    f.setAccessible(true);
+                    instance = f.get(null);
+                }
+            }
+            Field queued = c.getDeclaredField(names.queued), written = c.getDeclaredField(names.written);
+            if (instance == null || queued.getType() != long.class || written.getType() != long.class
+                || Modifier.isStatic(queued.getModifiers()) || Modifier.isStatic(written.getModifiers()))
+                return;
+            MethodType counter = MethodType.methodType(long.class, Object.class);
+            queued.setAccessible(true);
+            written.setAccessible(true);
+            this.queued = lookup.unreflectGetter(queued).asType(counter);
+            this.written = lookup.unreflectGetter(written).asType(counter);
+            this.saveThread = instance;
+        }
+        catch (Exception e)
+        {
+            this.saveThread = null;
+        }
+    }
+
+    // RegionFileCache keeps every region file it's opened, and has a
+    // static method that closes them all
+    private void findRegionCache(MethodHandles.Lookup lookup, String nms, Mappings names)
+    {
+        try
+        {
+            Method m = Class.forName(nms + ".RegionFileCache").getDeclaredMethod(names.closeRegions);
+            if (!Modifier.isStatic(m.getModifiers()) || m.getReturnType() != void.class)
+                return;
+            m.setAccessible(true);
+            this.closeRegions = lookup.unreflect(m);
+        }
+        catch (Exception e) {} // Bulk resets just won't be available
+    }
+
+    // Throwables from invokeExact, as something callers can catch
+    private static RuntimeException rethrow(Throwable t)
+    {
+        if (t instanceof Error)
+            throw (Error)t;
+        if (t instanceof RuntimeException)
+            return (RuntimeException)t;
+        return new RuntimeException(t);
+    }
+
+    public String getName()
+    {
+        return "CraftBukkit" + (this.version.length() > 0 ? " " + this.version : "")
+            + " (lighting " + (this.canRelight() ? "yes" : "no")
+            + ", block updates " + (this.ticklist != null ? "yes" : "no")
+            + ", save queue " + (this.saveThread != null ? "yes" : "no")
+            + ", region files " + (this.closeRegions != null ? "yes" : "no") + ")";
+    }
+
+    public boolean canRelight() { return this.relightColumns != null; }
+    public boolean isForcedLightingRequired() { return this.forcedLighting; }
+
+    public void relight(Chunk chunk)
+    {
+        if (this.relightColumns == null)
+            throw new UnsupportedOperationException();
+        try
+        {
+            Object raw = (Object)this.chunkHandle.invokeExact((Object)chunk);
+            this.initLighting.invokeExact(raw);
+            this.relightColumns.invokeExact(raw);
+        }
+        catch (Throwable t)
+        {
+            throw rethrow(t);
+        }
+    }
+
+    public int getTickListSize(World world)
+    {
+        if (this.ticklist == null)
+            return -1;
+        try
+        {
+            return (int)this.ticklist.invokeExact((Object)this.worldHandle.invokeExact((Object)world));
+        }
+        catch (Throwable t)
+        {
+            return -1;
+        }
+    }
+
+    public boolean tickPending(World world)
+    {
+        if (this.tick == null)
+            return false;
+        try
+        {
+            this.tick.invokeExact((Object)this.worldHandle.invokeExact((Object)world), true);
+            return true;
+        }
+        catch (Throwable t)
+        {
+            return false;
+        }
+    }
+
+    public long getSaveQueueDepth()
+    {
+        if (this.saveThread == null)
+            return -1;
+        try
+        {
+            long depth = (long)this.queued.invokeExact(this.saveThread) - (long)this.written.invokeExact(this.saveThread);
+            // Queued is never behind written, so these aren't the counters
+            // we think they are
+            return depth >= 0 ? depth : -1;
+        }
+        catch (Throwable t)
+        {
+            return -1;
+        }
+    }
+
+    public boolean canCloseRegionFiles() { return this.closeRegions != null; }
+
+    public boolean closeRegionFiles()
+    {
+        if (this.closeRegions == null)
+            return false;
+        try
+        {
+            this.closeRegions.invokeExact();
+            return true;
+        }
+        catch (Throwable t)
+        {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,280 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+
+package net.pointysoftware.worldgenerationcontrol;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// GenerationTrace as Java Flight Recorder events, under WorldGenerationControl
+// in JDK Mission Control. Only ever loaded by GenerationTrace.forJvm().
+//
+// Begin checks whether anything is recording the event, and only then
+// makes one, so with recording off a span costs a field read. Stack traces
+// are left off, they'd cost more than most of what's being timed.
+class FlightRecorderTrace extends GenerationTrace
+{
+    private final static String PREFIX = "net.pointysoftware.worldgenerationcontrol.";
+
+    @Name(PREFIX + "Step") @Label("Generation Step") @Category("WorldGenerationControl") @StackTrace(false)
+    @Description("One tick's worth of a generation")
+    static class StepEvent extends Event
+    {
+        @Label("World") String world;
+        @Label("Stage") String stage;
+        @Label("Section") int section;
+        @Label("Chunks Loaded") int chunks;
+        @Label("Finished") boolean done;
+    }
+
+    @Name(PREFIX + "Section") @Label("Section") @Category("WorldGenerationControl") @StackTrace(false)
+    @Description("A section from start to finish, over however many ticks it took")
+    static class SectionEvent extends Event
+    {
+        @Label("World") String world;
+        @Label("Section") int section;
+        @Label("Chunk X1") int x1;
+        @Label("Chunk Z1") int z1;
+        @Label("Chunk X2") int x2;
+        @Label("Chunk Z2") int z2;
+        @Label("Chunks") int chunks;
+        @Label("Ticks") int ticks;
+    }
+
+    @Name(PREFIX + "ChunkLoad") @Label("Chunk Load") @Category("WorldGenerationControl") @StackTrace(false)
+    static class LoadEvent extends Event
+    {
+        @Label("Chunk X") int x;
+        @Label("Chunk Z") int z;
+        @Label("Created") @Description("Didn't exist before, so was generated and populated") boolean created;
+        @Label("Regenerated") boolean regenerated;
+        @Label("Edge") @Description("On the edge of its section") boolean edge;
+    }
+
+    @Name(PREFIX + "ChunkLight") @Label("Chunk Lighting") @Category("WorldGenerationControl") @StackTrace(false)
+    static class LightEvent extends Event
+    {
+        @Label("Chunk X") int x;
+        @Label("Chunk Z") int z;
+        @Label("Relit") @Description("False if its lighting was fine or its neighbours weren't loaded") boolean relit;
+    }
+
+    @Name(PREFIX + "ChunkUnload") @Label("Chunk Unload") @Category("WorldGenerationControl") @StackTrace(false)
+    static class UnloadEvent extends Event
+    {
+        @Label("Chunk X") int x;
+        @Label("Chunk Z") int z;
+        @Label("Saved") boolean saved;
+    }
+
+    @Name(PREFIX + "Save") @Label("Save Queue Drain") @Category("WorldGenerationControl") @StackTrace(false)
+    static class SaveEvent extends Event
+    {
+        @Label("Chunks") int chunks;
+        @Label("Still Queued") int queued;
+    }
+
+    @Name(PREFIX + "TickListDrain") @Label("Block Update Drain") @Category("WorldGenerationControl") @StackTrace(false)
+    static class DrainEvent extends Event
+    {
+        @Label("Before") int before;
+        @Label("After") int after;
+    }
+
+    private final static EventType STEP = EventType.getEventType(StepEvent.class);
+    private final static EventType SECTION = EventType.getEventType(SectionEvent.class);
+    private final static EventType LOAD = EventType.getEventType(LoadEvent.class);
+    private final static EventType LIGHT = EventType.getEventType(LightEvent.class);
+    private final static EventType UNLOAD = EventType.getEventType(UnloadEvent.class);
+    private final static EventType SAVE = EventType.getEventType(SaveEvent.class);
+    private final static EventType DRAIN = EventType.getEventType(DrainEvent.class);
+
+    // The open span of each kind, null if it isn't being recorded
+    private StepEvent step = null;
+    private SectionEvent sect = null;
+    private LoadEvent load = null;
+    private LightEvent light = null;
+    private UnloadEvent unload = null;
+    private SaveEvent save = null;
+    private DrainEvent drain = null;
+
+    public boolean isAvailable() { return true; }
+
+    public void stepBegin()
+    {
+        this.step = null;
+        if (STEP.isEnabled())
+        {
+            this.step = new StepEvent();
+            this.step.begin();
+        }
+    }
+    public void stepEnd(String world, String stage, int section, int chunks, boolean done)
+    {
+        StepEvent e = this.step;
+        if (e == null)
+            return;
+        this.step = null;
+        e.world = world;
+        e.stage = stage;
+        e.section = section;
+        e.chunks = chunks;
+        e.done = done;
+        e.commit();
+    }
+
+    public void sectionBegin()
+    {
+        this.sect = null;
+        if (SECTION.isEnabled())
+        {
+            this.sect = new SectionEvent();
+            this.sect.begin();
+        }
+    }
+    public void sectionEnd(String world, int section, int x1, int z1, int x2, int z2, int chunks, int ticks)
+    {
+        SectionEvent e = this.sect;
+        if (e == null)
+            return;
+        this.sect = null;
+        e.world = world;
+        e.section = section;
+        e.x1 = x1;
+        e.z1 = z1;
+        e.x2 = x2;
+        e.z2 = z2;
+        e.chunks = chunks;
+        e.ticks = ticks;
+        e.commit();
+    }
+
+    public void loadBegin()
+    {
+        this.load = null;
+        if (LOAD.isEnabled())
+        {
+            this.load = new LoadEvent();
+            this.load.begin();
+        }
+    }
+    public void loadEnd(int x, int z, boolean created, boolean regenerated, boolean edge)
+    {
+        LoadEvent e = this.load;
+        if (e == null)
+            return;
+        this.load = null;
+        e.x = x;
+        e.z = z;
+        e.created = created;
+        e.regenerated = regenerated;
+        e.edge = edge;
+        e.commit();
+    }
+
+    public void lightBegin()
+    {
+        this.light = null;
+        if (LIGHT.isEnabled())
+        {
+            this.light = new LightEvent();
+            this.light.begin();
+        }
+    }
+    public void lightEnd(int x, int z, boolean relit)
+    {
+        LightEvent e = this.light;
+        if (e == null)
+            return;
+        this.light = null;
+        e.x = x;
+        e.z = z;
+        e.relit = relit;
+        e.commit();
+    }
+
+    public void unloadBegin()
+    {
+        this.unload = null;
+        if (UNLOAD.isEnabled())
+        {
+            this.unload = new UnloadEvent();
+            this.unload.begin();
+        }
+    }
+    public void unloadEnd(int x, int z, boolean saved)
+    {
+        UnloadEvent e = this.unload;
+        if (e == null)
+            return;
+        this.unload = null;
+        e.x = x;
+        e.z = z;
+        e.saved = saved;
+        e.commit();
+    }
+
+    public void saveBegin()
+    {
+        this.save = null;
+        if (SAVE.isEnabled())
+        {
+            this.save = new SaveEvent();
+            this.save.begin();
+        }
+    }
+    public void saveEnd(int chunks, int queued)
+    {
+        SaveEvent e = this.save;
+        if (e == null)
+            return;
+        this.save = null;
+        e.chunks = chunks;
+        e.queued = queued;
+        e.commit();
+    }
+
+    public void drainBegin()
+    {
+        this.drain = null;
+        if (DRAIN.isEnabled())
+        {
+            this.drain = new DrainEvent();
+            this.drain.begin();
+        }
+    }
+    public void drainEnd(int before, int after)
+    {
+        DrainEvent e = this.drain;
+        if (e == null)
+            return;
+        this.drain = null;
+        e.before = before;
+        e.after = after;
+        e.commit();
+    }
+}
@@ -0,0 +1,37 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+
+
+package net.pointysoftware.worldgenerationcontrol;
+
+import org.bukkit.Server;
+
+// What the plugin runs on beyond the Bukkit API: the server's internals,
+// the time and the heap. These are the real ones. SchedulerSim in the bench
+// module constructs the plugin with its own, to run it against a simulated
+// server.
+class GenerationHost
+{
+    public ServerAdapter getAdapter(Server server) { return ServerAdapter.forServer(server); }
+    public GenerationClock getClock() { return new GenerationClock(); }
+    public MemoryGovernor getMemory() { return new MemoryGovernor(); }
+}
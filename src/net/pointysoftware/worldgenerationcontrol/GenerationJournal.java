@@ -0,0 +1,328 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package net.pointysoftware.worldgenerationcontrol;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.TreeMap;
+
+// Append-only record of queued generations and how far they got, so a
+// crash or restart doesn't throw away days of progress.
+//
+// The file is plain text, one record per line:
+//   job <id> <spec>          - a generation was queued, spec is opaque to us
+//   area <id> <area>         - a region added to that generation, possibly
+//                              long after the job record
+//   spec <id> <spec>         - the job's spec changed before any of it was
+//                              done, replacing the one in its job record
+//   start <id>               - the generation became the active one
+//   done <id> <sections>     - that many sections of it are finished
+//   end <id>                 - the generation finished or was canceled
+//
+// Job and end records are synced to disk immediately, done records are
+// batched since losing a few of them just means redoing a few sections.
+// The file is only ever rewritten when we load it, to drop finished jobs,
+// and truncated once nothing is left unfinished.
+class GenerationJournal
+{
+    // Sync batched records once this many are waiting...
+    private final static int SYNC_RECORDS = 64;
+    // ...or they've been waiting this long
+    private final static long SYNC_NANOS = 5000000000L;
+
+    // An unfinished job read back from the journal
+    public static class Entry
+    {
+        private long id;
+        private String spec;
+        private ArrayList<String> areas = new ArrayList<String>();
+        private int done = 0;
+        private boolean started = false;
+        Entry(long id, String spec)
+        {
+            this.id = id;
+            this.spec = spec;
+        }
+        public long getId() { return this.id; }
+        public String getSpec() { return this.spec; }
+        public ArrayList<String> getAreas() { return this.areas; }
+        // Number of sections already completed
+        public int getDone() { return this.done; }
+        // Was this the generation in progress?
+        public boolean wasStarted() { return this.started; }
+    }
+
+    private File file;
+    private BufferedWriter writer = null;
+    private FileChannel channel = null;
+    private long nextid = 1;
+    private int pending = 0;
+    private long lastsync = 0;
+    private int unfinished = 0;
+    private IOException error = null;
+
+    GenerationJournal(File file)
+    {
+        this.file = file;
+    }
+
+    // Reads back the journal, returning the unfinished jobs with the one that
+    // was in progress first, then in the order they were queued. Leaves the
+    // journal open for appending, rewritten to contain only those jobs.
+    public ArrayList<Entry> open()
+    {
+        TreeMap<Long, Entry> jobs = new TreeMap<Long, Entry>();
+        ArrayList<Entry> ret = new ArrayList<Entry>();
+        try
+        {
+            if (this.file.exists())
+            {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(this.file), "UTF-8"));
+                try
+                {
+                    String line;
+                    while ((line = reader.readLine()) != null)
+                    {
+                        String parts[] = line.split(" ", 3);
+                        if (parts.length < 2)
+                            continue; // Torn write from a crash
+                        long id;
+                        try { id = Long.parseLong(parts[1]); }
+                        catch (NumberFormatException e) { continue; }
+                        this.nextid = Math.max(this.nextid, id + 1);
+
+                        if (parts[0].equals("job") && parts.length == 3)
+                            jobs.put(id, new Entry(id, parts[2]));
+                        else if (jobs.containsKey(id))
+                        {
+                            Entry e = jobs.get(id);
+                            if (parts[0].equals("area") && parts.length == 3)
+                                e.areas.add(parts[2]);
+                            else if (parts[0].equals("spec") && parts.length == 3)
+                                e.spec = parts[2];
+                            else if (parts[0].equals("start"))
+                                e.started = true;
+                            else if (parts[0].equals("done") && parts.length == 3)
+                            {
+                                try { e.done = Math.max(e.done, Integer.parseInt(parts[2])); }
+                                catch (NumberFormatException ex) {}
+                            }
+                            else if (parts[0].equals("end"))
+                                jobs.remove(id);
+                        }
+                    }
+                }
+                finally
+                {
+                    reader.close();
+                }
+            }
+
+            for (Entry e:jobs.values())
+                if (e.started) ret.add(e);
+            for (Entry e:jobs.values())
+                if (!e.started) ret.add(e);
+
+            // Compact - write what's left to a new file and swap it in
+            File tmp = new File(this.file.getPath() + ".tmp");
+            this.openWriter(tmp, false);
+            for (Entry e:ret)
+            {
+                this.writeJob(e.id, e.spec, e.areas);
+                if (e.started)
+                    this.write("start " + e.id);
+                if (e.done > 0)
+                    this.write("done " + e.id + " " + e.done);
+            }
+            this.writer.flush();
+            this.channel.force(true);
+            this.writer.close();
+            if (!tmp.renameTo(this.file))
+            {
+                // Windows won't rename over an existing file
+                this.file.delete();
+                if (!tmp.renameTo(this.file))
+                    throw new IOException("Failed to replace " + this.file);
+            }
+            this.openWriter(this.file, true);
+            this.unfinished = ret.size();
+            this.pending = 0;
+        }
+        catch (IOException e)
+        {
+            this.fail(e);
+        }
+        return ret;
+    }
+
+    public long nextId() { return this.nextid++; }
+
+    public void recordJob(long id, String spec, ArrayList<String> areas)
+    {
+        if (this.writer == null) return;
+        try
+        {
+            this.writeJob(id, spec, areas);
+            this.unfinished++;
+            this.sync(true);
+        }
+        catch (IOException e) { this.fail(e); }
+    }
+
+    // Another area added to a job after it was recorded
+    public void recordArea(long id, String area)
+    {
+        if (this.writer == null) return;
+        try
+        {
+            this.write("area " + id + " " + area);
+            this.sync(true);
+        }
+        catch (IOException e) { this.fail(e); }
+    }
+
+    // New options for a job that hasn't done anything yet
+    public void recordSpec(long id, String spec)
+    {
+        if (this.writer == null) return;
+        try
+        {
+            this.write("spec " + id + " " + spec);
+            this.sync(true);
+        }
+        catch (IOException e) { this.fail(e); }
+    }
+
+    public void recordStart(long id) { this.append("start " + id); }
+
+    public void recordDone(long id, int sections) { this.append("done " + id + " " + sections); }
+
+    public void recordEnd(long id)
+    {
+        if (this.writer == null) return;
+        try
+        {
+            if (--this.unfinished <= 0)
+            {
+                // Nothing left to resume, no point keeping any of it around
+                this.writer.flush();
+                this.channel.truncate(0);
+                this.channel.force(true);
+                this.unfinished = 0;
+                this.pending = 0;
+            }
+            else
+            {
+                this.write("end " + id);
+                this.sync(true);
+            }
+        }
+        catch (IOException e) { this.fail(e); }
+    }
+
+    // Sync batched records if it's been a while. Cheap enough to call every tick.
+    public void sync(boolean force)
+    {
+        if (this.writer == null || this.pending == 0) return;
+        long now = System.nanoTime();
+        if (!force && this.pending < SYNC_RECORDS && now - this.lastsync < SYNC_NANOS)
+            return;
+        try
+        {
+            this.writer.flush();
+            this.channel.force(false);
+            this.pending = 0;
+            this.lastsync = now;
+        }
+        catch (IOException e) { this.fail(e); }
+    }
+
+    public void close()
+    {
+        if (this.writer == null) return;
+        this.sync(true);
+        try { this.writer.close(); }
+        catch (IOException e) {}
+        this.writer = null;
+        this.channel = null;
+    }
+
+    // Returns the error that stopped the journal, once
+    public IOException takeError()
+    {
+        IOException e = this.error;
+        this.error = null;
+        return e;
+    }
+
+    private void append(String record)
+    {
+        if (this.writer == null) return;
+        try
+        {
+            this.write(record);
+            this.sync(false);
+        }
+        catch (IOException e) { this.fail(e); }
+    }
+
+    private void writeJob(long id, String spec, ArrayList<String> areas) throws IOException
+    {
+        this.write("job " + id + " " + spec);
+        for (String a:areas)
+            this.write("area " + id + " " + a);
+    }
+
+    private void write(String record) throws IOException
+    {
+        this.writer.write(record);
+        this.writer.newLine();
+        this.pending++;
+    }
+
+    private void openWriter(File f, boolean append) throws IOException
+    {
+        FileOutputStream out = new FileOutputStream(f, append);
+        this.channel = out.getChannel();
+        this.writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+    }
+
+    private void fail(IOException e)
+    {
+        this.error = e;
+        if (this.writer != null)
+        {
+            try { this.writer.close(); }
+            catch (IOException ex) {}
+        }
+        this.writer = null;
+        this.channel = null;
+    }
+}
@@ -0,0 +1,139 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+
+package net.pointysoftware.worldgenerationcontrol;
+
+import java.lang.management.ManagementFactory;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+// Counters and phase timings for every generation, for graphing over JMX,
+// see GenerationMetricsMBean. Like PhaseTimer, nothing here allocates or
+// locks, the server thread just bumps fields that JMX reads as they are.
+class GenerationMetrics implements GenerationMetricsMBean
+{
+    public final static String DOMAIN = "net.pointysoftware.worldgenerationcontrol";
+
+    public enum Phase
+    {
+        LOAD("Load"), LIGHT("Light"), SAVE("Save"), TICKDRAIN("TickDrain"), UNLOAD("Unload");
+
+        private String name;
+        Phase(String name) { this.name = name; }
+        public String getName() { return this.name; }
+    }
+    public enum Pause { MEMORY, PLAYERS }
+
+    private PhaseTimer timers[] = new PhaseTimer[Phase.values().length];
+    private int generations = 0;
+    private long loaded = 0, created = 0, relit = 0, lightskipped = 0, unloaded = 0, saved = 0, drained = 0;
+    private long paused[] = new long[Pause.values().length];
+    private MBeanServer server = null;
+
+    GenerationMetrics()
+    {
+        for (int i = 0; i < this.timers.length; i++)
+            this.timers[i] = new PhaseTimer();
+    }
+
+    // Puts us and the phase timers on the platform MBean server, throwing
+    // if they couldn't be. Replaces any left behind by an earlier load of
+    // the plugin, which /reload can do.
+    public void register() throws JMException
+    {
+        this.unregister();
+        this.server = ManagementFactory.getPlatformMBeanServer();
+        this.register(new StandardMBean(this, GenerationMetricsMBean.class), getName(null));
+        for (Phase p:Phase.values())
+            this.register(new StandardMBean(this.timers[p.ordinal()], PhaseTimerMBean.class), getName(p));
+    }
+
+    private void register(StandardMBean bean, ObjectName name) throws JMException
+    {
+        if (this.server.isRegistered(name))
+            this.server.unregisterMBean(name);
+        this.server.registerMBean(bean, name);
+    }
+
+    public void unregister()
+    {
+        if (this.server == null)
+            return;
+        try
+        {
+            if (this.server.isRegistered(getName(null)))
+                this.server.unregisterMBean(getName(null));
+            for (Phase p:Phase.values())
+                if (this.server.isRegistered(getName(p)))
+                    this.server.unregisterMBean(getName(p));
+        }
+        catch (JMException e) {} // Already gone
+        this.server = null;
+    }
+
+    private static ObjectName getName(Phase p) throws JMException
+    {
+        return new ObjectName(DOMAIN + ":type=WorldGenerationControl" + (p != null ? ",phase=" + p.getName() : ""));
+    }
+
+    public PhaseTimer getTimer(Phase p) { return this.timers[p.ordinal()]; }
+
+    public void setGenerations(int n) { this.generations = n; }
+    public void loaded(boolean created)
+    {
+        this.loaded++;
+        if (created)
+            this.created++;
+    }
+    public void relit() { this.relit++; }
+    public void lightSkipped() { this.lightskipped++; }
+    public void unloaded(boolean saved)
+    {
+        this.unloaded++;
+        if (saved)
+            this.saved++;
+    }
+    public void drained(long updates) { this.drained += Math.max(0, updates); }
+    public void paused(Pause why, long nanos) { this.paused[why.ordinal()] += nanos; }
+
+    public int getGenerations() { return this.generations; }
+    public long getChunksLoaded() { return this.loaded; }
+    public long getChunksCreated() { return this.created; }
+    public long getChunksRelit() { return this.relit; }
+    public long getChunksLightSkipped() { return this.lightskipped; }
+    public long getChunksUnloaded() { return this.unloaded; }
+    public long getChunksSaved() { return this.saved; }
+    public long getBlockUpdatesDrained() { return this.drained; }
+    public long getMemoryPauseNanos() { return this.paused[Pause.MEMORY.ordinal()]; }
+    public long getPlayerPauseNanos() { return this.paused[Pause.PLAYERS.ordinal()]; }
+
+    public void resetStatistics()
+    {
+        for (PhaseTimer t:this.timers)
+            t.reset();
+        this.loaded = this.created = this.relit = this.lightskipped = this.unloaded = this.saved = this.drained = 0;
+        for (int i = 0; i < this.paused.length; i++)
+            this.paused[i] = 0;
+    }
+}
@@ -0,0 +1,51 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+
+package net.pointysoftware.worldgenerationcontrol;
+
+// JMX view of GenerationMetrics, registered as
+// net.pointysoftware.worldgenerationcontrol:type=WorldGenerationControl.
+// Each phase's timings are their own PhaseTimerMBean under the same type,
+// with phase=Load, Light, Save, TickDrain and Unload. Everything counts up
+// from when the plugin was enabled, or the last resetStatistics().
+public interface GenerationMetricsMBean
+{
+    // Generations queued, including the ones running
+    public int getGenerations();
+    // Chunks we loaded, and of those the ones that didn't exist before
+    public long getChunksLoaded();
+    public long getChunksCreated();
+    // Chunks relit, and those whose lighting checked out or that couldn't
+    // be relit yet
+    public long getChunksRelit();
+    public long getChunksLightSkipped();
+    // Chunks we unloaded, and of those the ones saved first
+    public long getChunksUnloaded();
+    public long getChunksSaved();
+    // Scheduled block updates the server ran for /forceKeepUp
+    public long getBlockUpdatesDrained();
+    // Time generations spent waiting instead of generating, for memory and
+    // for /onlyWhenEmpty
+    public long getMemoryPauseNanos();
+    public long getPlayerPauseNanos();
+    public void resetStatistics();
+}
@@ -0,0 +1,254 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package net.pointysoftware.worldgenerationcontrol;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+// Every generation that hasn't finished yet, and which of them get to run.
+//
+// Jobs are grouped by a key (the world) and at most one job per key runs at
+// a time - the highest priority one that isn't paused, oldest first. A job
+// that is partway through something (a section) is never switched away
+// from, a higher priority one just takes over once it's between sections.
+//
+// Jobs of different keys all run, sharing each tick between them by stride
+// scheduling: a job is charged the time it used divided by its priority,
+// and whoever has been charged least goes first and gets the most of the
+// tick, so over time each world gets time in proportion to its priority.
+//
+// Like GenerationScheduler this doesn't know about Bukkit, the plugin calls
+// schedule() every tick and charge() with what each job did.
+class GenerationQueue<J extends GenerationQueue.Job>
+{
+    public final static int MIN_PRIORITY = 1;
+    public final static int MAX_PRIORITY = 10;
+    public final static int DEFAULT_PRIORITY = 5;
+    // Throughput is averaged over about this much wall time
+    private final static long RATE_WINDOW = 60000000000L;
+
+    interface Job
+    {
+        // Jobs with the same key never run at the same time
+        String getQueueKey();
+        int getPriority();
+        // Partway through something and mustn't be switched away from
+        boolean isBusy();
+        // Told when it is switched in or out
+        void setActive(boolean active);
+    }
+
+    // Exponentially decaying totals, so recent work counts the most
+    public static class Rate
+    {
+        private double chunks = 0, nanos = 0;
+        private long last = 0;
+
+        void add(long nanos, int chunks, long now)
+        {
+            this.decay(now);
+            this.chunks += chunks;
+            this.nanos += nanos;
+        }
+        private void decay(long now)
+        {
+            if (this.last != 0 && now > this.last)
+            {
+                double f = Math.exp(-(double)(now - this.last) / RATE_WINDOW);
+                this.chunks *= f;
+                this.nanos *= f;
+            }
+            this.last = now;
+        }
+        // Chunks loaded per second of wall time, lately
+        public double getChunksPerSecond(long now)
+        {
+            this.decay(now);
+            return this.chunks * 1000000000L / RATE_WINDOW;
+        }
+        // Time spent working, lately
+        public double getNanos(long now)
+        {
+            this.decay(now);
+            return this.nanos;
+        }
+    }
+
+    public static class Entry<J>
+    {
+        private J job;
+        private int id;
+        private boolean paused = false;
+        private boolean active = false;
+        // Virtual time used, see charge()
+        private double pass = 0;
+        private Rate rate = new Rate();
+
+        Entry(J job, int id)
+        {
+            this.job = job;
+            this.id = id;
+        }
+        public J getJob() { return this.job; }
+        public int getId() { return this.id; }
+        public boolean isPaused() { return this.paused; }
+        public boolean isActive() { return this.active; }
+        public Rate getRate() { return this.rate; }
+    }
+
+    private ArrayList<Entry<J>> entries = new ArrayList<Entry<J>>();
+    // The running job of each key
+    private HashMap<String, Entry<J>> running = new HashMap<String, Entry<J>>();
+    private HashMap<String, Rate> rates = new HashMap<String, Rate>();
+    private int nextid = 1;
+
+    public Entry<J> add(J job)
+    {
+        Entry<J> e = new Entry<J>(job, this.nextid++);
+        this.entries.add(e);
+        return e;
+    }
+
+    public void remove(Entry<J> e)
+    {
+        this.entries.remove(e);
+        String key = e.job.getQueueKey();
+        if (this.running.get(key) == e)
+            this.running.remove(key);
+        e.active = false;
+    }
+
+    public Entry<J> get(int id)
+    {
+        for (Entry<J> e:this.entries)
+            if (e.id == id)
+                return e;
+        return null;
+    }
+
+    // Oldest first
+    public ArrayList<Entry<J>> getEntries() { return new ArrayList<Entry<J>>(this.entries); }
+    public int size() { return this.entries.size(); }
+    public boolean isEmpty() { return this.entries.isEmpty(); }
+    public void clear()
+    {
+        this.entries.clear();
+        this.running.clear();
+    }
+
+    // Takes effect once the job is between sections
+    public void setPaused(Entry<J> e, boolean paused) { e.paused = paused; }
+
+    // Throughput of everything with this key
+    public Rate getRate(String key)
+    {
+        Rate r = this.rates.get(key);
+        if (r == null)
+        {
+            r = new Rate();
+            this.rates.put(key, r);
+        }
+        return r;
+    }
+
+    // Fraction of the work time lately that went to this key
+    public double getShare(String key, long now)
+    {
+        double total = 0;
+        for (Rate r:this.rates.values())
+            total += r.getNanos(now);
+        return total > 0 ? this.getRate(key).getNanos(now) / total : 0;
+    }
+
+    // Decides who runs, switching jobs in and out as needed, and returns
+    // the running jobs in the order they should go this tick
+    public ArrayList<Entry<J>> schedule()
+    {
+        HashMap<String, Entry<J>> best = new HashMap<String, Entry<J>>();
+        for (Entry<J> e:this.entries)
+        {
+            if (e.paused)
+                continue;
+            String key = e.job.getQueueKey();
+            Entry<J> b = best.get(key);
+            // Oldest wins a tie, unless the other one is already running
+            if (b == null || e.job.getPriority() > b.job.getPriority()
+                || (e.job.getPriority() == b.job.getPriority() && e.active && !b.active))
+                best.put(key, e);
+        }
+
+        // New arrivals start level with whoever is running, rather than
+        // with all the time they've missed out on in hand
+        double minpass = Double.MAX_VALUE;
+        for (Entry<J> e:this.running.values())
+            minpass = Math.min(minpass, e.pass);
+
+        for (Entry<J> cur:new ArrayList<Entry<J>>(this.running.values()))
+        {
+            String key = cur.job.getQueueKey();
+            if (cur.job.isBusy() || best.get(key) == cur)
+            {
+                best.remove(key);
+                continue;
+            }
+            this.running.remove(key);
+            cur.active = false;
+            cur.job.setActive(false);
+        }
+        for (Entry<J> e:best.values())
+        {
+            if (minpass != Double.MAX_VALUE)
+                e.pass = Math.max(e.pass, minpass);
+            this.running.put(e.job.getQueueKey(), e);
+            e.active = true;
+            e.job.setActive(true);
+        }
+
+        ArrayList<Entry<J>> order = new ArrayList<Entry<J>>(this.running.values());
+        Collections.sort(order, new Comparator<Entry<J>>()
+        {
+            public int compare(Entry<J> a, Entry<J> b) { return Double.compare(a.pass, b.pass); }
+        });
+        return order;
+    }
+
+    // The running job that should decide the tick budget, the highest
+    // priority one
+    public Entry<J> getLeader()
+    {
+        Entry<J> leader = null;
+        for (Entry<J> e:this.entries)
+            if (e.active && (leader == null || e.job.getPriority() > leader.job.getPriority()))
+                leader = e;
+        return leader;
+    }
+
+    // Record what a job did with its turn
+    public void charge(Entry<J> e, long nanos, int chunks, long now)
+    {
+        e.pass += (double)nanos / Math.max(MIN_PRIORITY, e.job.getPriority());
+        e.rate.add(nanos, chunks, now);
+        this.getRate(e.job.getQueueKey()).add(nanos, chunks, now);
+    }
+}
@@ -0,0 +1,168 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package net.pointysoftware.worldgenerationcontrol;
+
+// Decides how much generation work we're allowed to do each server tick.
+//
+// We're given a budget of milliseconds per tick (from the speed profile or
+// /budget) and optionally a target TPS. Every tick the budget is added to a
+// credit pool, and every bit of work we do is paid for out of it. Work can
+// overdraw the pool, in which case we sit out ticks until the debt is paid
+// back, so on average we never use more than budget-per-tick.
+//
+// To notice the server falling behind we count how many ticks actually
+// happened over a short window of wall time. If that drops below the target
+// TPS the effective budget is cut multiplicatively, and it creeps back up
+// additively while the server keeps up (the usual AIMD dance).
+//
+// The MemoryGovernor and SaveQueueMonitor scale the budget down further as
+// the heap fills up or the server's save thread falls behind.
+//
+// When several generations share a tick, each one is handed a slice of the
+// credit in turn with beginSlice(), and allowances are capped by what's
+// left of the slice.
+//
+// This doesn't talk to Bukkit at all, the plugin just calls tick() at the
+// start of every scheduled run and spend() with what it used.
+class GenerationScheduler
+{
+    // Ticks per TPS measurement window, two seconds on a healthy server
+    private final static int WINDOW_TICKS = 40;
+    // Never throttle below this fraction of the configured budget, otherwise
+    // a server that is lagging for other reasons would stall us completely
+    private final static double MIN_FACTOR = 0.05D;
+    private final static double BACKOFF = 0.75D;
+    private final static double RECOVER = 0.05D;
+
+    // nanoseconds per tick, <= 0 is unlimited
+    private long budget = 12000000L;
+    private double targettps = 19.0D;
+    private boolean adaptive = true;
+
+    private double factor = 1.0D;
+    private double memoryfactor = 1.0D;
+    private double savefactor = 1.0D;
+    private long credit = 0;
+    // What's left of the current slice, < 0 when there isn't one
+    private long slice = -1;
+    private double tps = 20.0D;
+
+    private long windowstart = 0;
+    private int windowticks = 0;
+
+    public void configure(long budgetNanos, double targetTps, boolean adaptive)
+    {
+        this.budget = budgetNanos;
+        this.targettps = targetTps;
+        this.adaptive = adaptive && budgetNanos > 0 && targetTps > 0;
+        if (!this.adaptive)
+            this.factor = 1.0D;
+        // Don't carry a debt (or savings) over from a differently configured job
+        this.credit = 0;
+    }
+
+    // Call once per server tick, before doing any work
+    public void tick(long now)
+    {
+        if (this.windowstart == 0)
+            this.windowstart = now;
+        else if (++this.windowticks >= WINDOW_TICKS)
+        {
+            this.tps = Math.min(20.0D, (double)this.windowticks * 1000000000L / (now - this.windowstart));
+            this.windowticks = 0;
+            this.windowstart = now;
+            if (this.adaptive)
+            {
+                if (this.tps < this.targettps)
+                    this.factor = Math.max(MIN_FACTOR, this.factor * BACKOFF);
+                else
+                    this.factor = Math.min(1.0D, this.factor + RECOVER);
+            }
+        }
+
+        if (this.budget > 0)
+        {
+            // Unspent credit doesn't accumulate past a single tick's worth,
+            // otherwise sitting paused would let us burst later.
+            this.credit = Math.min(this.credit + this.getEffectiveBudget(), this.getEffectiveBudget());
+        }
+    }
+
+    // Work may start whenever we aren't in debt
+    public boolean hasCredit() { return this.budget <= 0 || this.credit > 0; }
+
+    // Remaining credit this tick, in nanoseconds
+    public long getCredit() { return this.budget <= 0 ? Long.MAX_VALUE : Math.max(0, this.credit); }
+
+    // How many units of work costing costNanos each we can afford this tick.
+    // Always allows at least one while we have any credit, so that work more
+    // expensive than a whole tick's budget still makes progress (by going into
+    // debt for a few ticks).
+    public int getAllowance(long costNanos)
+    {
+        if (this.budget <= 0)
+            return Integer.MAX_VALUE;
+        long available = this.slice < 0 ? this.credit : Math.min(this.credit, this.slice);
+        if (available <= 0)
+            return 0;
+        return (int)Math.max(1, Math.min(Integer.MAX_VALUE, available / Math.max(1, costNanos)));
+    }
+
+    public void spend(long nanos)
+    {
+        if (this.budget > 0)
+            this.credit -= nanos;
+        if (this.slice >= 0)
+            this.slice = Math.max(0, this.slice - nanos);
+    }
+
+    // Limit allowances to this much until endSlice(). Ignored when the
+    // budget is unlimited.
+    public void beginSlice(long nanos)
+    {
+        if (this.budget > 0)
+            this.slice = Math.max(0, nanos);
+    }
+
+    public void endSlice() { this.slice = -1; }
+
+    public long getEffectiveBudget()
+    {
+        if (this.budget <= 0)
+            return Long.MAX_VALUE;
+        // Even with no memory to spare, sections in progress have to be
+        // finished to free any up
+        return (long)(this.budget * this.factor * Math.max(MIN_FACTOR, this.memoryfactor * this.savefactor));
+    }
+
+    // From MemoryGovernor.update()
+    public void setMemoryFactor(double f) { this.memoryfactor = f; }
+    public double getMemoryFactor() { return this.memoryfactor; }
+    // From SaveQueueMonitor.update()
+    public void setSaveFactor(double f) { this.savefactor = f; }
+    public double getSaveFactor() { return this.savefactor; }
+
+    public long getBudget() { return this.budget; }
+    public double getTargetTps() { return this.targettps; }
+    public double getFactor() { return this.factor; }
+    public double getTps() { return this.tps; }
+}
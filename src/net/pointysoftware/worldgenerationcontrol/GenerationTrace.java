@@ -0,0 +1,72 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+
+package net.pointysoftware.worldgenerationcontrol;
+
+// Timed spans around the work generation does, for a profiler to pick up.
+//
+// Each kind of span is begun then ended with what it was about, and only
+// one of each kind is open at once. This class does nothing with them, and
+// is what servers get when there's nothing to send them to. With Java
+// Flight Recorder around, forJvm() gives a FlightRecorderTrace instead.
+// That's the only class referring to jdk.jfr, and it's only loaded once
+// we know jdk.jfr is there, so the plugin still runs on JVMs without it.
+class GenerationTrace
+{
+    // Whether the spans go anywhere
+    public boolean isAvailable() { return false; }
+
+    // One runStep of a generation
+    public void stepBegin() {}
+    public void stepEnd(String world, String stage, int section, int chunks, boolean done) {}
+    // A whole section, from being handed out to its last chunk unloading
+    public void sectionBegin() {}
+    public void sectionEnd(String world, int section, int x1, int z1, int x2, int z2, int chunks, int ticks) {}
+    // Loading or generating a chunk
+    public void loadBegin() {}
+    public void loadEnd(int x, int z, boolean created, boolean regenerated, boolean edge) {}
+    // Checking and relighting a chunk
+    public void lightBegin() {}
+    public void lightEnd(int x, int z, boolean relit) {}
+    // Unloading a chunk, saving it first or not
+    public void unloadBegin() {}
+    public void unloadEnd(int x, int z, boolean saved) {}
+    // A batch of chunks from the save queue
+    public void saveBegin() {}
+    public void saveEnd(int chunks, int queued) {}
+    // One batch of the server's scheduled block updates
+    public void drainBegin() {}
+    public void drainEnd(int before, int after) {}
+
+    public static GenerationTrace forJvm()
+    {
+        try
+        {
+            Class.forName("jdk.jfr.Event");
+            return (GenerationTrace)Class.forName(GenerationTrace.class.getPackage().getName() + ".FlightRecorderTrace").getDeclaredConstructor().newInstance();
+        }
+        // No JFR, or it's turned off
+        catch (ReflectiveOperationException e) {}
+        catch (LinkageError e) {}
+        return new GenerationTrace();
+    }
+}
@@ -0,0 +1,94 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package net.pointysoftware.worldgenerationcontrol;
+
+// Works out how much heap each chunk we hold loaded costs, so sections can
+// be made as big as memory allows and no bigger.
+//
+// What a chunk costs varies a lot - vanilla terrain, modded generators and
+// worlds full of tile entities are all different - so it's measured rather
+// than guessed. Every garbage collection gives us a sample of how much heap
+// is in use right after it against how many chunks we were holding at the
+// time, and a least squares fit of the two gives the cost per chunk as its
+// slope. Old samples decay away so the fit follows the world as it changes.
+class HeapCostModel
+{
+    // Weight kept by older samples with each new one
+    private final static double DECAY = 0.98D;
+    // Samples needed before the fit means anything...
+    private final static int MIN_SAMPLES = 8;
+    // ...and how much the number of chunks held has to vary across them
+    private final static double MIN_SPREAD = 16.0D;
+    public final static int MIN_SIZE = 6;
+    public final static int MAX_SIZE = 32;
+
+    private double n = 0, sx = 0, sy = 0, sxx = 0, sxy = 0;
+    private int samples = 0;
+    // From a previous run, until we've measured for ourselves
+    private long prior = -1;
+
+    public void sample(int held, long heapUsed)
+    {
+        this.n = this.n * DECAY + 1;
+        this.sx = this.sx * DECAY + held;
+        this.sy = this.sy * DECAY + heapUsed;
+        this.sxx = this.sxx * DECAY + (double)held * held;
+        this.sxy = this.sxy * DECAY + (double)held * heapUsed;
+        this.samples++;
+    }
+
+    public void setPrior(long bytesPerChunk) { this.prior = bytesPerChunk; }
+
+    // Bytes of heap each held chunk costs, -1 if we don't know yet
+    public long getBytesPerChunk()
+    {
+        double varx = this.n > 0 ? this.sxx / this.n - (this.sx / this.n) * (this.sx / this.n) : 0;
+        if (this.samples < MIN_SAMPLES || varx < MIN_SPREAD * MIN_SPREAD)
+            return this.prior;
+        double slope = (this.sxy / this.n - (this.sx / this.n) * (this.sy / this.n)) / varx;
+        // Noise can make it come out negative early on
+        if (slope <= 0)
+            return this.prior;
+        return (long)slope;
+    }
+
+    // Heap in use holding nothing, -1 if we don't know yet
+    public long getBaseline()
+    {
+        long cost = this.getBytesPerChunk();
+        if (cost < 0 || this.n == 0)
+            return -1;
+        return Math.max(0, (long)((this.sy - cost * this.sx) / this.n));
+    }
+
+    // Widest section whose chunks fit in the given number of bytes, or -1 if
+    // we don't know what a chunk costs. Sections hold about width squared
+    // chunks at their peak, and so does a frontier of the same size.
+    public int getSectionSize(long available)
+    {
+        long cost = this.getBytesPerChunk();
+        if (cost <= 0)
+            return -1;
+        long chunks = Math.max(0, available) / cost;
+        return (int)Math.max(MIN_SIZE, Math.min(MAX_SIZE, (long)Math.sqrt((double)chunks)));
+    }
+}
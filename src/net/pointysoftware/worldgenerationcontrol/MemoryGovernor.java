@@ -0,0 +1,208 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package net.pointysoftware.worldgenerationcontrol;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+
+// Decides how fast we may generate based on how full the heap is.
+//
+// Looking at used vs free memory is misleading, the heap is usually full of
+// garbage that the next collection will clear out. What matters is how much
+// of the old generation is still in use straight after a collection. We
+// listen for the collectors' notifications and read the old generation's
+// usage as each one arrives. Young collections don't clear the old
+// generation (and G1 doesn't even update its collection usage for them), so
+// that's on the high side until the next old or mixed collection, which is
+// the safe side to be on.
+//
+// JVMs without collector notifications get the old generation's collection
+// usage threshold notification instead, and we read its collection usage
+// every tick. That threshold is shared by everything in the JVM, so we only
+// set it when we have to and put the old one back when we stop. With no
+// such pool at all we fall back to the whole heap's current usage.
+//
+// Below LOW occupancy we run flat out, above HIGH we stop starting sections,
+// and in between the budget is scaled down linearly. Speeding back up is
+// rate limited so we don't bounce between the two. We never ask for a GC,
+// if memory is tight the server's own collections will tell us when it
+// isn't anymore.
+class MemoryGovernor implements NotificationListener
+{
+    public final static double LOW = 0.60D;
+    public final static double HIGH = 0.85D;
+    // How much the factor may recover per tick
+    private final static double RECOVER = 0.02D;
+
+    private MemoryPoolMXBean pool = null;
+    private ArrayList<NotificationEmitter> emitters = new ArrayList<NotificationEmitter>();
+    // Set from the notification thread
+    private volatile long used = 0;
+    private volatile long max = 0;
+    // The whole heap after the last collection, and how many we've seen,
+    // for HeapCostModel
+    private volatile long heapaftergc = -1;
+    private volatile int collections = 0;
+    private double factor = 1.0D;
+    // Whether collectors tell us when they run
+    private boolean notified = false;
+    // The pool's threshold before we set ours, -1 if we didn't
+    private long threshold = -1;
+
+    // Finds the old generation and starts listening to it
+    public void start()
+    {
+        this.stop();
+        for (MemoryPoolMXBean p:ManagementFactory.getMemoryPoolMXBeans())
+        {
+            if (p.getType() != MemoryType.HEAP || !p.isCollectionUsageThresholdSupported())
+                continue;
+            // Young generation pools support it too, but only the old
+            // generation's occupancy means anything
+            String name = p.getName();
+            boolean old = name.contains("Old") || name.contains("Tenured");
+            if (this.pool == null || old)
+                this.pool = p;
+            if (old)
+                break;
+        }
+        if (this.pool == null)
+        {
+            this.refresh();
+            return;
+        }
+        
+        // Collections everywhere but the old generation tell us about it
+        // being filled up, so listen to all of them
+        for (GarbageCollectorMXBean gc:ManagementFactory.getGarbageCollectorMXBeans())
+            if (gc instanceof NotificationEmitter)
+                this.listen((NotificationEmitter)gc);
+        this.notified = !this.emitters.isEmpty();
+        if (!this.notified)
+        {
+            long max = this.pool.getUsage().getMax();
+            if (max > 0)
+            {
+                this.threshold = this.pool.getCollectionUsageThreshold();
+                this.pool.setCollectionUsageThreshold((long)(max * HIGH));
+            }
+            if (ManagementFactory.getMemoryMXBean() instanceof NotificationEmitter)
+                this.listen((NotificationEmitter)ManagementFactory.getMemoryMXBean());
+        }
+        this.refresh();
+    }
+
+    private void listen(NotificationEmitter e)
+    {
+        e.addNotificationListener(this, null, null);
+        this.emitters.add(e);
+    }
+
+    // Listeners outlive a plugin reload otherwise
+    public void stop()
+    {
+        for (NotificationEmitter e:this.emitters)
+        {
+            try { e.removeNotificationListener(this); }
+            catch (ListenerNotFoundException ex) {}
+        }
+        this.emitters.clear();
+        if (this.pool != null && this.threshold >= 0)
+            this.pool.setCollectionUsageThreshold(this.threshold);
+        this.threshold = -1;
+        this.pool = null;
+        this.notified = false;
+    }
+
+    public void handleNotification(Notification n, Object handback)
+    {
+        if (this.pool != null)
+        {
+            MemoryUsage u = this.pool.getUsage();
+            this.max = u.getMax() > 0 ? u.getMax() : Runtime.getRuntime().maxMemory();
+            this.used = u.getUsed();
+        }
+        this.heapaftergc = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        this.collections++;
+    }
+
+    // Reads the pool after its last collection, for when collectors don't
+    // tell us about them
+    void refresh()
+    {
+        if (this.pool == null)
+        {
+            Runtime r = Runtime.getRuntime();
+            this.max = r.maxMemory();
+            this.used = r.totalMemory() - r.freeMemory();
+            return;
+        }
+        MemoryUsage u = this.pool.getCollectionUsage();
+        if (u == null)
+            return;
+        long max = u.getMax() > 0 ? u.getMax() : Runtime.getRuntime().maxMemory();
+        this.max = max;
+        this.used = u.getUsed();
+    }
+
+    // Call once per tick, returns the fraction of the budget we may use. 0
+    // means don't start anything new.
+    public double update()
+    {
+        // No collector notifications, ask instead
+        if (!this.notified)
+            this.refresh();
+        double target = Math.max(0.0D, Math.min(1.0D, (HIGH - this.getOccupancy()) / (HIGH - LOW)));
+        // Slow down straight away, speed up gradually
+        this.factor = target < this.factor ? target : Math.min(target, this.factor + RECOVER);
+        return this.factor;
+    }
+
+    public double getFactor() { return this.factor; }
+    public boolean isPaused() { return this.factor <= 0; }
+    // Of the old generation, after the last collection
+    public double getOccupancy() { return this.max > 0 ? (double)this.used / this.max : 0; }
+    public long getHeadroom() { return Math.max(0, this.max - this.used); }
+    // Only counts collections we were told about
+    public int getCollections() { return this.collections; }
+    public long getHeapAfterGc()
+    {
+        long h = this.heapaftergc;
+        if (h < 0)
+        {
+            Runtime r = Runtime.getRuntime();
+            h = r.totalMemory() - r.freeMemory();
+        }
+        return h;
+    }
+    public long getHeapMax() { return Runtime.getRuntime().maxMemory(); }
+    public String getPoolName() { return this.pool != null ? this.pool.getName() : null; }
+}
@@ -0,0 +1,87 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+
+package net.pointysoftware.worldgenerationcontrol;
+
+// Time spent in one phase of generation, as a histogram of what each item
+// cost. Recording is a handful of arithmetic on fields, so it's always on.
+//
+// Only the server thread records. JMX reads without locking, so a reading
+// taken mid-update may be an item out, which doesn't matter for graphs.
+class PhaseTimer implements PhaseTimerMBean
+{
+    private final static int BUCKETS = 64;
+
+    private long buckets[] = new long[BUCKETS];
+    private long count = 0;
+    private long total = 0;
+    private long slices = 0;
+    private long max = 0;
+
+    // items took nanos between them, on a tick. Items of 0 still counts
+    // the time, for work that got nowhere.
+    public void record(long nanos, int items)
+    {
+        if (nanos < 0)
+            return;
+        this.slices++;
+        this.total += nanos;
+        if (items <= 0)
+            return;
+        long each = nanos / items;
+        this.buckets[BUCKETS - 1 - Long.numberOfLeadingZeros(Math.max(1, each))] += items;
+        this.count += items;
+        if (each > this.max)
+            this.max = each;
+    }
+
+    public void reset()
+    {
+        for (int i = 0; i < BUCKETS; i++)
+            this.buckets[i] = 0;
+        this.count = this.total = this.slices = this.max = 0;
+    }
+
+    public long getCount() { return this.count; }
+    public long getTotalNanos() { return this.total; }
+    public long getSlices() { return this.slices; }
+    public long getMeanNanos() { return this.count > 0 ? this.total / this.count : 0; }
+    public long getP50Nanos() { return this.getPercentile(0.50D); }
+    public long getP90Nanos() { return this.getPercentile(0.90D); }
+    public long getP99Nanos() { return this.getPercentile(0.99D); }
+    public long getMaxNanos() { return this.max; }
+    public long[] getHistogram() { return this.buckets.clone(); }
+
+    private long getPercentile(double p)
+    {
+        long want = (long)Math.ceil(this.count * p), seen = 0;
+        if (want <= 0)
+            return 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            seen += this.buckets[i];
+            if (seen >= want)
+                return Math.min(this.max, i >= 62 ? Long.MAX_VALUE : (1L << (i + 1)) - 1);
+        }
+        return this.max;
+    }
+}
@@ -0,0 +1,43 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+
+package net.pointysoftware.worldgenerationcontrol;
+
+// JMX view of a PhaseTimer. Times are per item - a chunk for the chunk
+// phases, a call into the server for TickDrain.
+public interface PhaseTimerMBean
+{
+    // Items done and the time they took in total
+    public long getCount();
+    public long getTotalNanos();
+    // Ticks' worth of work this was done in
+    public long getSlices();
+    public long getMeanNanos();
+    // Percentiles are the upper bound of the power of two bucket they fall
+    // in, so within a factor of two
+    public long getP50Nanos();
+    public long getP90Nanos();
+    public long getP99Nanos();
+    public long getMaxNanos();
+    // Items in each bucket, bucket n being [2^n, 2^(n+1)) nanoseconds
+    public long[] getHistogram();
+}
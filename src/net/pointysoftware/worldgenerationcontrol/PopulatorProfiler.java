@@ -0,0 +1,150 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+
+package net.pointysoftware.worldgenerationcontrol;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.bukkit.Chunk;
+import org.bukkit.World;
+import org.bukkit.generator.BlockPopulator;
+
+// Times each of a world's BlockPopulators, for /profile.
+//
+// install() swaps every populator in the world's list for a Timed one that
+// runs it between two nanoTime()s, and uninstall() puts them back. Bukkit
+// has no way to swap out a world's ChunkGenerator, and vanilla terrain and
+// its trees and ores aren't BlockPopulators at all, so those are measured
+// as what's left of the time chunks took to be created once the
+// populators that ran during it are taken out.
+class PopulatorProfiler
+{
+    private static class Timed extends BlockPopulator
+    {
+        private BlockPopulator populator;
+        private PhaseTimer timer = new PhaseTimer();
+        private PopulatorProfiler profiler;
+        Timed(BlockPopulator populator, PopulatorProfiler profiler)
+        {
+            this.populator = populator;
+            this.profiler = profiler;
+        }
+        public void populate(World world, Random random, Chunk source)
+        {
+            long start = System.nanoTime();
+            try
+            {
+                this.populator.populate(world, random, source);
+            }
+            finally
+            {
+                long took = System.nanoTime() - start;
+                this.timer.record(took, 1);
+                this.profiler.populating += took;
+            }
+        }
+    }
+
+    private World world;
+    // Everything we've wrapped, in the order they were found, kept after
+    // uninstall() for the report
+    private ArrayList<Timed> timed = new ArrayList<Timed>();
+    // Populator time so far, so loads can take it out of theirs
+    private long populating = 0;
+    // Chunks created and what they cost without the populators, as a
+    // Timed so it ranks alongside them
+    private Timed terrain = new Timed(null, this);
+    private long loadstart = 0, populatingstart = 0;
+
+    PopulatorProfiler(World world)
+    {
+        this.world = world;
+    }
+
+    public void install()
+    {
+        List<BlockPopulator> populators = this.world.getPopulators();
+        for (int i = 0; i < populators.size(); i++)
+        {
+            BlockPopulator p = populators.get(i);
+            if (p instanceof Timed)
+                continue;
+            Timed t = new Timed(p, this);
+            populators.set(i, t);
+            this.timed.add(t);
+        }
+    }
+
+    // Puts back whatever we swapped out that's still there, wherever it is
+    // now
+    public void uninstall()
+    {
+        List<BlockPopulator> populators = this.world.getPopulators();
+        for (int i = 0; i < populators.size(); i++)
+        {
+            BlockPopulator p = populators.get(i);
+            if (p instanceof Timed && this.timed.contains(p))
+                populators.set(i, ((Timed)p).populator);
+        }
+    }
+
+    // Around a chunk load
+    public void loadBegin()
+    {
+        this.loadstart = System.nanoTime();
+        this.populatingstart = this.populating;
+    }
+    public void loadEnd(boolean created)
+    {
+        if (created)
+            this.terrain.timer.record(System.nanoTime() - this.loadstart - (this.populating - this.populatingstart), 1);
+    }
+
+    // Lines of the report, costliest first
+    public ArrayList<String> getReport()
+    {
+        ArrayList<Timed> ranked = new ArrayList<Timed>(this.timed);
+        ranked.add(this.terrain);
+        Collections.sort(ranked, new Comparator<Timed>()
+        {
+            public int compare(Timed a, Timed b)
+            {
+                return Long.valueOf(b.timer.getTotalNanos()).compareTo(a.timer.getTotalNanos());
+            }
+        });
+        long total = this.terrain.timer.getTotalNanos() + this.populating;
+        ArrayList<String> lines = new ArrayList<String>();
+        for (Timed t:ranked)
+            lines.add(line(t.populator == null ? "Terrain and vanilla population" : t.populator.getClass().getName(), t.timer, total));
+        return lines;
+    }
+
+    private static String line(String name, PhaseTimer t, long total)
+    {
+        return String.format("%5.1f%% %s - %d calls, %.2fms mean, %.2fms p99, %.1fs total", 100.0D * t.getTotalNanos() / Math.max(1, total), name,
+            t.getCount(), (double)t.getMeanNanos() / 1000000, (double)t.getP99Nanos() / 1000000, (double)t.getTotalNanos() / 1000000000);
+    }
+}
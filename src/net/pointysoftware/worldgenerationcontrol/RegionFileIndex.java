@@ -0,0 +1,193 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package net.pointysoftware.worldgenerationcontrol;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+// Knows which chunks already exist on disk, by reading the location table at
+// the start of each region file rather than asking the server to load them.
+//
+// A region file (r.X.Z.mca, or .mcr before anvil) holds 32x32 chunks. Its
+// first 4KiB is 1024 big-endian ints, one per chunk, giving the sector offset
+// and sector count of that chunk's data - zero if the chunk was never saved.
+//
+// The next 4KiB is another 1024 ints, the time each chunk was last saved
+// in seconds since the epoch, which isModifiedSince() uses to pick out
+// chunks touched lately.
+//
+// Region files are read the first time a chunk in them is asked about, so
+// a generation only ever reads the files its next section touches rather
+// than every file in its area up front. Each is a snapshot: chunks saved
+// after we read a region file are still reported missing, which is what a
+// generation wants (the server will just load them the slow way, same as it
+// always did).
+class RegionFileIndex
+{
+    private final static int HEADER_SIZE = 4096;
+
+    private File folder;
+    // Region coordinates packed into a long -> 1024 presence bits, then
+    // 1024 bits for saved since this.since
+    private HashMap<Long, long[]> regions = new HashMap<Long, long[]>();
+    private int scanned = 0;
+    private int present = 0;
+    private int modified = 0;
+    private long since = 0;
+
+    RegionFileIndex(File regionFolder)
+    {
+        this.folder = regionFolder;
+    }
+
+    // Only count chunks saved at or after this as modified, in seconds
+    // since the epoch. 0, the default, counts every chunk that exists. Has
+    // to be set before anything's scanned.
+    RegionFileIndex(File regionFolder, long since)
+    {
+        this.folder = regionFolder;
+        this.since = since;
+    }
+
+    public boolean exists(int x, int z)
+    {
+        long bits[] = this.getRegion(x >> 5, z >> 5);
+        int i = ((z & 31) << 5) | (x & 31);
+        return (bits[i >> 6] & (1L << (i & 63))) != 0;
+    }
+
+    public boolean isModifiedSince(int x, int z)
+    {
+        long bits[] = this.getRegion(x >> 5, z >> 5);
+        int i = 1024 + (((z & 31) << 5) | (x & 31));
+        return (bits[i >> 6] & (1L << (i & 63))) != 0;
+    }
+
+    // Region files we've read, and chunks found in them
+    public int getScanned() { return this.scanned; }
+    public int getPresent() { return this.present; }
+    public int getModified() { return this.modified; }
+
+    // Region coordinates of every region file in the folder, packed with
+    // ChunkBatch.pack
+    public static long[] listRegions(File folder)
+    {
+        String names[] = folder.list();
+        if (names == null)
+            return new long[0];
+        long found[] = new long[names.length];
+        int n = 0;
+        for (String name:names)
+        {
+            // r.X.Z.mca or r.X.Z.mcr
+            String v[] = name.split("\\.");
+            if (v.length != 4 || !v[0].equals("r") || !(v[3].equals("mca") || v[3].equals("mcr")))
+                continue;
+            try
+            {
+                long key = ChunkBatch.pack(Integer.parseInt(v[1]), Integer.parseInt(v[2]));
+                boolean dupe = false;
+                for (int i = 0; i < n && !dupe; i++)
+                    dupe = found[i] == key;
+                if (!dupe)
+                    found[n++] = key;
+            }
+            catch (NumberFormatException e) {}
+        }
+        long result[] = new long[n];
+        System.arraycopy(found, 0, result, 0, n);
+        return result;
+    }
+
+    public static File getRegionFile(File folder, int rx, int rz)
+    {
+        File f = new File(folder, "r." + rx + "." + rz + ".mca");
+        if (!f.exists())
+        {
+            File old = new File(folder, "r." + rx + "." + rz + ".mcr");
+            if (old.exists())
+                return old;
+        }
+        return f;
+    }
+
+    private long[] getRegion(int rx, int rz)
+    {
+        Long key = ((long)rx << 32) | (rz & 0xFFFFFFFFL);
+        long bits[] = this.regions.get(key);
+        if (bits == null)
+        {
+            bits = new long[32];
+            this.read(getRegionFile(this.folder, rx, rz), bits);
+            this.regions.put(key, bits);
+        }
+        return bits;
+    }
+
+    private void read(File f, long bits[])
+    {
+        if (!f.exists() || f.length() < HEADER_SIZE)
+            return;
+        try
+        {
+            RandomAccessFile raf = new RandomAccessFile(f, "r");
+            try
+            {
+                // Old or truncated files may not have timestamps, then
+                // everything in them counts as modified
+                boolean timestamps = this.since > 0 && f.length() >= HEADER_SIZE * 2;
+                // Read, not mapped. Mappings hang around until they're
+                // garbage collected, and keep RegionReset from deleting the
+                // file on Windows until then.
+                byte bytes[] = new byte[timestamps ? HEADER_SIZE * 2 : HEADER_SIZE];
+                raf.readFully(bytes);
+                ByteBuffer header = ByteBuffer.wrap(bytes);
+                for (int i = 0; i < 1024; i++)
+                {
+                    if (header.getInt(i << 2) != 0)
+                    {
+                        bits[i >> 6] |= 1L << (i & 63);
+                        this.present++;
+                        if (!timestamps || (header.getInt(HEADER_SIZE + (i << 2)) & 0xFFFFFFFFL) >= this.since)
+                        {
+                            bits[(1024 + i) >> 6] |= 1L << (i & 63);
+                            this.modified++;
+                        }
+                    }
+                }
+                this.scanned++;
+            }
+            finally
+            {
+                raf.close();
+            }
+        }
+        catch (IOException e)
+        {
+            // Unreadable, treat everything in it as missing and let the
+            // server sort it out when it loads them
+        }
+    }
+}
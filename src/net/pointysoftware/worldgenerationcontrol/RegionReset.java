@@ -0,0 +1,255 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+
+package net.pointysoftware.worldgenerationcontrol;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+// Throws away an area's chunks by editing the region files directly, for
+// /destroyAndRegenerateArea /bulk, instead of regenerating them one at a time
+// through the server.
+//
+// A region file holding nothing but chunks in the area is deleted outright.
+// Otherwise the area's entries in its header (see RegionFileIndex) are
+// zeroed, which is all it takes for the server to consider them never
+// generated - their old data is left as unused sectors, which the server
+// reuses as it saves new chunks into the file.
+//
+// plan() works out what would happen without changing anything, which is
+// all a dry run does. Backups are copies of every file about to be changed,
+// made by backupNext() one file at a time so they can be spread over ticks.
+// apply() then makes the changes, and the server mustn't have any of the
+// files open or any of the area's chunks loaded while it does.
+//
+// The server can save into the area, new region files included, for as long
+// as it has its chunks loaded, so plan() is run again just before apply().
+// Files backed up by then aren't copied again.
+class RegionReset
+{
+    private final static int HEADER_SIZE = 4096;
+
+    private static class Region
+    {
+        File file;
+        // Every chunk in it is in the area
+        boolean whole;
+        // Header entries in the area, and the bytes their data takes up
+        int chunks;
+        long bytes;
+    }
+
+    private File folder;
+    private ChunkShape shape;
+    private File backups;
+    private ArrayList<Region> regions = new ArrayList<Region>();
+    private HashSet<File> backedup = new HashSet<File>();
+    private int wholefiles = 0;
+    private int chunks = 0;
+    private long bytes = 0;
+
+    // backups may be null for none
+    RegionReset(File regionFolder, ChunkShape shape, File backups)
+    {
+        this.folder = regionFolder;
+        this.shape = shape;
+        this.backups = backups;
+    }
+
+    // Find every region file with chunks in the area
+    public void plan() throws IOException
+    {
+        this.regions.clear();
+        this.wholefiles = this.chunks = 0;
+        this.bytes = 0;
+        int spans[] = new int[this.shape.getMaxSpans() * 2];
+        for (int rz = this.shape.getZMin() >> 5; rz <= this.shape.getZMax() >> 5; rz++)
+        {
+            for (int rx = this.shape.getXMin() >> 5; rx <= this.shape.getXMax() >> 5; rx++)
+            {
+                File f = RegionFileIndex.getRegionFile(this.folder, rx, rz);
+                if (!f.exists() || this.shape.count(rx << 5, rz << 5, (rx << 5) + 31, (rz << 5) + 31) == 0)
+                    continue;
+                Region r = new Region();
+                r.file = f;
+                r.whole = this.shape.count(rx << 5, rz << 5, (rx << 5) + 31, (rz << 5) + 31) == 1024;
+                if (f.length() >= HEADER_SIZE)
+                {
+                    ByteBuffer header = this.read(f);
+                    for (int z = 0; z < 32; z++)
+                    {
+                        int n = this.shape.getSpans((rz << 5) + z, spans);
+                        for (int s = 0; s < n; s++)
+                        {
+                            for (int x = Math.max(spans[s * 2], rx << 5); x <= Math.min(spans[s * 2 + 1], (rx << 5) + 31); x++)
+                            {
+                                int entry = header.getInt(((z << 5) | (x & 31)) << 2);
+                                if (entry == 0)
+                                    continue;
+                                r.chunks++;
+                                r.bytes += (long)(entry & 0xFF) * HEADER_SIZE;
+                            }
+                        }
+                    }
+                }
+                if (r.whole)
+                    r.bytes = f.length();
+                else if (r.chunks == 0)
+                    continue;
+                this.regions.add(r);
+                this.chunks += r.chunks;
+                this.bytes += r.bytes;
+                if (r.whole)
+                    this.wholefiles++;
+            }
+        }
+    }
+
+    // Region files that will be changed, how many of those are deleted,
+    // the chunks thrown away and the disk they took up
+    public int getRegions() { return this.regions.size(); }
+    public int getWholeFiles() { return this.wholefiles; }
+    public int getChunks() { return this.chunks; }
+    public long getBytes() { return this.bytes; }
+    public File getBackups() { return this.backups; }
+
+    // Whether every file about to be changed has a backup, if we make them
+    public boolean isBackedUp()
+    {
+        return this.getNextBackup() == null;
+    }
+
+    // Copy the next file into the backup folder. Returns false once
+    // they're all done, or straight away if there's no backup folder.
+    public boolean backupNext() throws IOException
+    {
+        File from = this.getNextBackup();
+        if (from == null)
+            return false;
+        this.backedup.add(from);
+        this.backups.mkdirs();
+        FileInputStream in = new FileInputStream(from);
+        try
+        {
+            FileOutputStream out = new FileOutputStream(new File(this.backups, from.getName()));
+            try
+            {
+                FileChannel src = in.getChannel();
+                long size = src.size();
+                for (long done = 0; done < size;)
+                    done += src.transferTo(done, size - done, out.getChannel());
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        return this.getNextBackup() != null;
+    }
+
+    private File getNextBackup()
+    {
+        if (this.backups == null)
+            return null;
+        for (Region r:this.regions)
+            if (!this.backedup.contains(r.file))
+                return r.file;
+        return null;
+    }
+
+    // Delete or clear everything plan() found
+    public void apply() throws IOException
+    {
+        int spans[] = new int[this.shape.getMaxSpans() * 2];
+        for (Region r:this.regions)
+        {
+            if (r.whole)
+            {
+                if (!r.file.delete() && r.file.exists())
+                    throw new IOException("Couldn't delete " + r.file);
+                continue;
+            }
+            String name[] = r.file.getName().split("\\.");
+            int rx = Integer.parseInt(name[1]), rz = Integer.parseInt(name[2]);
+            // Timestamps go too, if it has them
+            boolean timestamps = r.file.length() >= HEADER_SIZE * 2;
+            MappedByteBuffer header = this.map(r.file, timestamps ? HEADER_SIZE * 2 : HEADER_SIZE);
+            for (int z = 0; z < 32; z++)
+            {
+                int n = this.shape.getSpans((rz << 5) + z, spans);
+                for (int s = 0; s < n; s++)
+                {
+                    for (int x = Math.max(spans[s * 2], rx << 5); x <= Math.min(spans[s * 2 + 1], (rx << 5) + 31); x++)
+                    {
+                        int i = ((z << 5) | (x & 31)) << 2;
+                        header.putInt(i, 0);
+                        if (timestamps)
+                            header.putInt(HEADER_SIZE + i, 0);
+                    }
+                }
+            }
+            header.force();
+        }
+    }
+
+    // Read, not mapped, since the file may be about to be deleted, which a
+    // mapping can keep from happening until it's garbage collected
+    private ByteBuffer read(File f) throws IOException
+    {
+        byte header[] = new byte[HEADER_SIZE];
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try
+        {
+            raf.readFully(header);
+            return ByteBuffer.wrap(header);
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    private MappedByteBuffer map(File f, int size) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try
+        {
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package net.pointysoftware.worldgenerationcontrol;
+
+// Watches how many chunks are waiting on the server's save thread, and slows
+// generation down as that grows.
+//
+// Since 1.3 the server writes chunks out from a single background thread
+// (FileIOThread, ThreadedFileIOBase in MCP names), which counts how many
+// writes have been queued and how many it has done. The difference is the
+// backlog. There's no API for any of this, so it comes from the
+// ServerAdapter, and if that can't see it nothing is throttled.
+//
+// Below LOW waiting chunks we run flat out, above HIGH the budget is at its
+// minimum, and it's scaled linearly in between. Like MemoryGovernor it slows
+// down immediately and speeds back up gradually.
+class SaveQueueMonitor
+{
+    public final static int LOW = 250;
+    public final static int HIGH = 2500;
+    private final static double RECOVER = 0.02D;
+
+    private ServerAdapter server;
+    private boolean available;
+    private double factor = 1.0D;
+    private long depth = -1;
+
+    SaveQueueMonitor(ServerAdapter server)
+    {
+        this.server = server;
+        this.available = server.getSaveQueueDepth() >= 0;
+    }
+
+    public boolean isAvailable() { return this.available; }
+
+    // Chunks waiting to be written, -1 if we can't tell
+    public long getDepth() { return this.depth; }
+    public double getFactor() { return this.factor; }
+
+    // Call once per tick, returns the fraction of the budget we may use
+    public double update()
+    {
+        if (!this.available)
+            return 1.0D;
+        this.depth = this.server.getSaveQueueDepth();
+        if (this.depth < 0)
+        {
+            this.available = false;
+            return 1.0D;
+        }
+        double target = Math.max(0.0D, Math.min(1.0D, (double)(HIGH - this.depth) / (HIGH - LOW)));
+        this.factor = target < this.factor ? target : Math.min(target, this.factor + RECOVER);
+        return this.factor;
+    }
+}
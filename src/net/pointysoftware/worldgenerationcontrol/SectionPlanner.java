@@ -0,0 +1,524 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package net.pointysoftware.worldgenerationcontrol;
+
+// Cuts an area into sections, one at a time.
+//
+// Nothing is precomputed - the planner is a cursor over section coordinates,
+// so a job of any size costs the same handful of ints. All values are in
+// chunk coordinates.
+//
+// Each section is three rectangles sharing the same x range: the chunks to
+// load, the chunks that will have all their neighbours loaded and so can be
+// lit, and the chunks we're done with and can unload.
+//
+// Normally sections overlap by 2 so block populators and lighting can run
+// (edge chunks wont work in either). Put another way, the chunks each section
+// actually finishes - its non-edge chunks - tile the area exactly, and the
+// section is that tile plus a one chunk rim, clipped to the area. Each
+// section loads, lights and unloads the same rectangle.
+//
+// Tiles normally start at the corner of the area. Aligned, they're sized to
+// divide the 32x32 chunk region files evenly and laid on the world's region
+// grid instead, so all but the last tile along each side of a region file
+// fit in it rim and all. Tiles can be visited in rows, or along a Morton
+// (Z-order) or Hilbert curve, which finish a whole block of nearby tiles
+// before moving on and so keep each region file's chunks together. See
+// bench/ for what these do to region file I/O.
+//
+// In frontier mode the area is instead cut into wide strips (still
+// overlapping by 2 with each other), and each strip is walked a band of rows
+// at a time without any overlap. The last two rows of each band stay loaded
+// into the next one, where they're lit and unloaded once their neighbours
+// have been loaded, so inside a strip every chunk is only loaded once.
+// Strips alternate direction so each one starts next to where the last
+// ended.
+//
+// Walking in rows, the section size can be changed partway through at the
+// end of a row of sections (or a strip), where what's left of the area is a
+// rectangle. That rectangle, starting with the rim of the row before, is cut
+// again at the new size, and sections keep counting on from where they were.
+//
+// Areas that aren't rectangles are given as a ChunkShape inside the
+// rectangle. Sections with none of the shape in them are passed over without
+// being handed out, and the chunks of a section are read off as spans of each
+// row rather than testing each one.
+class SectionPlanner
+{
+    public enum Order
+    {
+        ROWS,
+        MORTON,
+        HILBERT
+    }
+
+    private final static int OVERLAP = 2;
+    private final static int REGION_SIZE = 32;
+    // Width of a frontier strip. The frontier is two rows of this many
+    // chunks, and every strip seam costs two columns of reloads.
+    public final static int FRONTIER_WIDTH = 64;
+
+    private int xStart, zStart, xEnd, zEnd;
+    // Where the current cut of the area starts, see resize()
+    private int xFrom, zFrom;
+    // null for the whole rectangle
+    private ChunkShape shape;
+    // Spans of the row last asked for, clipped to the current section
+    private int spans[];
+    private int spancount;
+    private boolean frontier;
+    private boolean align;
+    private Order order;
+    // Width of a tile - the chunks a section finishes, without its rim
+    private int tile;
+    // Frontier mode only: rows loaded per section
+    private int band;
+    private int columns, rows;
+    // Tile 0 covers chunks from here. Aligned, this is on the region grid
+    // and tile 0 is the one the area starts in.
+    private int xOrigin, zOrigin;
+    // Where tile 0 falls in its region file, in tiles - curves start from
+    // the region file's corner so their blocks line up with the files
+    private int xOffset, zOffset;
+    // Side of the (power of two) square the curve covers
+    private int side;
+    // Index of the next section, and of the last one handed out
+    private int next = 0;
+    private int last = -1;
+    // Sections handed out before the current cut, and whether its strips
+    // start off walking the other way
+    private int base = 0;
+    private boolean flip = false;
+    // Position along the curve, including cells outside the area
+    private long curve = 0;
+    private int column, row;
+    // Current section
+    private int x1, x2;
+    private int loadZ1, loadZ2, lightZ1, lightZ2, unloadZ1, unloadZ2;
+
+    // shape may be null for the whole rectangle, otherwise only the parts of
+    // it inside the rectangle are generated
+    SectionPlanner(int xStart, int zStart, int xEnd, int zEnd, ChunkShape shape, int sectionSize, boolean frontier, boolean align, Order order)
+    {
+        this.xStart = this.xFrom = xStart;
+        this.zStart = this.zFrom = zStart;
+        this.xEnd = xEnd;
+        this.zEnd = zEnd;
+        this.shape = shape;
+        this.spans = new int[shape == null ? 2 : shape.getMaxSpans() * 2];
+        this.frontier = frontier;
+        this.align = align;
+        this.order = frontier ? Order.ROWS : order;
+        this.cut(sectionSize);
+    }
+
+    // Cut the area from xFrom, zFrom into tiles
+    private void cut(int sectionSize)
+    {
+        sectionSize = Math.max(sectionSize, OVERLAP + 1);
+        int size = this.frontier ? Math.max(FRONTIER_WIDTH, sectionSize) : sectionSize;
+        this.tile = this.align ? alignTile(size - OVERLAP) : size - OVERLAP;
+
+        this.xOrigin = origin(this.xFrom, this.xEnd, this.tile, this.align);
+        this.columns = count(this.xFrom, this.xEnd, this.xOrigin, this.tile);
+        if (this.frontier)
+        {
+            // Keep about as many chunks coming in per section as the
+            // normal section size would
+            this.band = Math.max(1, sectionSize * sectionSize / (this.tile + OVERLAP));
+            this.rows = (this.zEnd - this.zStart + this.band) / this.band;
+        }
+        else
+        {
+            this.zOrigin = origin(this.zFrom, this.zEnd, this.tile, this.align);
+            this.rows = count(this.zFrom, this.zEnd, this.zOrigin, this.tile);
+            if (this.align && this.tile < REGION_SIZE)
+            {
+                int perRegion = REGION_SIZE / this.tile;
+                this.xOffset = floorDiv(this.xOrigin, this.tile) & (perRegion - 1);
+                this.zOffset = floorDiv(this.zOrigin, this.tile) & (perRegion - 1);
+            }
+            this.side = 1;
+            while (this.side < this.columns + this.xOffset || this.side < this.rows + this.zOffset)
+                this.side <<= 1;
+        }
+    }
+
+    // Closest tile size that divides region files evenly, or is a multiple
+    // of them
+    private static int alignTile(int tile)
+    {
+        if (tile >= REGION_SIZE)
+            return Math.max(1, (tile + REGION_SIZE / 2) / REGION_SIZE) * REGION_SIZE;
+        int t = 1;
+        while (t * 2 <= tile)
+            t <<= 1;
+        // Round up if that's closer
+        return tile - t < t * 2 - tile ? t : t * 2;
+    }
+
+    // Where tile 0 starts along one axis
+    private static int origin(int start, int end, int tile, boolean align)
+    {
+        // The first and last chunks are rim, the tiles cover what's between
+        int first = start + 1;
+        if (!align || first > end - 1)
+            return first;
+        // Tiles start one chunk into a region file, so the rim on their
+        // low side is still in the same file
+        return floorDiv(first - 1, tile) * tile + 1;
+    }
+
+    // Division rounding towards negative infinity, for negative coordinates
+    private static int floorDiv(int a, int b)
+    {
+        return a >= 0 ? a / b : -((-a + b - 1) / b);
+    }
+
+    // Tiles needed along one axis
+    private static int count(int start, int end, int origin, int tile)
+    {
+        // Too narrow to have anything but rim, one section covers it
+        if (start + 1 > end - 1)
+            return 1;
+        return (end - 1 - origin) / tile + 1;
+    }
+
+    public int getTotal() { return this.base + this.columns * this.rows; }
+    // Sections handed out so far
+    public int getPosition() { return this.next; }
+    public boolean hasNext() { return this.next < this.getTotal(); }
+    public boolean isFrontier() { return this.frontier; }
+
+    // Largest section we'll ever hand out, in chunks
+    public int getMaxChunks()
+    {
+        int width = this.tile + OVERLAP;
+        if (this.frontier)
+            return width * (this.band + OVERLAP * 2 + 2);
+        return width * width;
+    }
+
+    // Cut what's left of the area into sections of a new size, returns
+    // false if we can't here. Only between sections, and only at the end of
+    // a row of them (a strip, in frontier mode) and not along a curve.
+    public boolean resize(int sectionSize)
+    {
+        int per = this.frontier ? this.rows : this.columns;
+        if (this.order != Order.ROWS || !this.hasNext() || (this.next - this.base) % per != 0)
+            return false;
+        int done = (this.next - this.base) / per;
+        if (done > 0)
+        {
+            // What's left starts with the last row (or column) done, as rim
+            if (this.frontier)
+            {
+                this.xFrom = this.getStart(done, this.xFrom, this.xEnd, this.xOrigin);
+                this.flip ^= (done & 1) == 1;
+            }
+            else
+                this.zFrom = this.getStart(done, this.zFrom, this.zEnd, this.zOrigin);
+        }
+        this.base = this.next;
+        this.last = -1;
+        this.cut(sectionSize);
+        return true;
+    }
+
+    // Moves to the next section with any of the shape in it, returns false if
+    // there are none left. Sections passed over still count towards
+    // getPosition().
+    public boolean next()
+    {
+        do
+        {
+            if (!this.step())
+                return false;
+            this.setBounds();
+        }
+        while (!this.overlapsShape());
+        return true;
+    }
+
+    private boolean overlapsShape()
+    {
+        if (this.shape == null)
+            return true;
+        for (int z = this.getZ1(); z <= this.getZ2(); z++)
+            if (this.getSpans(z) > 0)
+                return true;
+        return false;
+    }
+
+    // Work out the current section's rectangles from its tile
+    private void setBounds()
+    {
+        this.x1 = this.getStart(this.column, this.xFrom, this.xEnd, this.xOrigin);
+        this.x2 = this.getEnd(this.column, this.xFrom, this.xEnd, this.xOrigin);
+        if (this.frontier)
+        {
+            int strip = this.column;
+            int b = this.row;
+
+            // Work in rows from the start of the strip, flipped below for
+            // strips walking the other way
+            int length = this.zEnd - this.zStart + 1;
+            int u1 = b * this.band;
+            int u2 = Math.min(u1 + this.band - 1, length - 1);
+            boolean lastband = u2 == length - 1;
+            int load1 = u1;
+            // Picking up partway down a strip - the rows the last band would
+            // have left loaded for us aren't
+            if (b > 0 && this.last != this.next - 2)
+                load1 = Math.max(0, u1 - OVERLAP);
+            // The first and last rows are the edge of the area, never lit
+            int light1 = Math.max(1, u1 - 1);
+            int light2 = Math.min(lastband ? u2 : u2 - 1, length - 2);
+            int unload1 = Math.max(0, u1 - OVERLAP);
+            int unload2 = lastband ? u2 : u2 - OVERLAP;
+
+            if (((strip & 1) == 0) != this.flip)
+            {
+                this.loadZ1 = this.zStart + load1;
+                this.loadZ2 = this.zStart + u2;
+                this.lightZ1 = this.zStart + light1;
+                this.lightZ2 = this.zStart + light2;
+                this.unloadZ1 = this.zStart + unload1;
+                this.unloadZ2 = this.zStart + unload2;
+            }
+            else
+            {
+                this.loadZ1 = this.zEnd - u2;
+                this.loadZ2 = this.zEnd - load1;
+                this.lightZ1 = this.zEnd - light2;
+                this.lightZ2 = this.zEnd - light1;
+                this.unloadZ1 = this.zEnd - unload2;
+                this.unloadZ2 = this.zEnd - unload1;
+            }
+        }
+        else
+        {
+            this.loadZ1 = this.unloadZ1 = this.getStart(this.row, this.zFrom, this.zEnd, this.zOrigin);
+            this.loadZ2 = this.unloadZ2 = this.getEnd(this.row, this.zFrom, this.zEnd, this.zOrigin);
+            this.lightZ1 = this.loadZ1 + 1;
+            this.lightZ2 = this.loadZ2 - 1;
+        }
+        this.last = this.next - 1;
+    }
+
+    // First and last chunk of a section along one axis - its tile plus the
+    // rim, clipped to the area
+    private int getStart(int i, int start, int end, int origin)
+    {
+        if (start + 1 > end - 1)
+            return start;
+        return Math.max(origin + i * this.tile, start + 1) - 1;
+    }
+    private int getEnd(int i, int start, int end, int origin)
+    {
+        if (start + 1 > end - 1)
+            return end;
+        return Math.min(origin + i * this.tile + this.tile - 1, end - 1) + 1;
+    }
+
+    // Find the tile of the next section, without working out its bounds
+    private boolean step()
+    {
+        if (!this.hasNext())
+            return false;
+        if (this.order == Order.ROWS)
+        {
+            // Frontier strips go down a column at a time
+            int i = this.next - this.base;
+            if (this.frontier)
+            {
+                this.column = i / this.rows;
+                this.row = i % this.rows;
+            }
+            else
+            {
+                this.column = i % this.columns;
+                this.row = i / this.columns;
+            }
+        }
+        else
+        {
+            // The curve covers a square at least as big as the area, skip
+            // the parts of it that are outside
+            do
+            {
+                if (this.order == Order.MORTON)
+                    this.mortonCell(this.curve++);
+                else
+                    this.hilbertCell(this.curve++);
+                this.column -= this.xOffset;
+                this.row -= this.zOffset;
+            }
+            while (this.column < 0 || this.row < 0 || this.column >= this.columns || this.row >= this.rows);
+        }
+        this.next++;
+        return true;
+    }
+
+    private void mortonCell(long d)
+    {
+        int x = 0, z = 0;
+        for (int bit = 0; bit < 31 && (d >> (bit * 2)) != 0; bit++)
+        {
+            x |= (int)((d >> (bit * 2)) & 1) << bit;
+            z |= (int)((d >> (bit * 2 + 1)) & 1) << bit;
+        }
+        this.column = x;
+        this.row = z;
+    }
+
+    private void hilbertCell(long d)
+    {
+        int x = 0, z = 0;
+        for (int s = 1; s < this.side; s <<= 1)
+        {
+            int rx = (int)(d >> 1) & 1;
+            int rz = (int)(d ^ rx) & 1;
+            if (rz == 0)
+            {
+                if (rx == 1)
+                {
+                    x = s - 1 - x;
+                    z = s - 1 - z;
+                }
+                int t = x;
+                x = z;
+                z = t;
+            }
+            x += s * rx;
+            z += s * rz;
+            d >>= 2;
+        }
+        this.column = x;
+        this.row = z;
+    }
+
+    // Skip ahead so the next section handed out is the given one. It's
+    // treated as a fresh start, so frontier mode reloads the rows it would
+    // otherwise have been carrying.
+    public void seek(int section)
+    {
+        this.last = -1;
+        section = Math.max(this.base, Math.min(section, this.getTotal()));
+        if (this.order == Order.ROWS)
+        {
+            this.next = section;
+            return;
+        }
+        if (section < this.next)
+        {
+            this.next = 0;
+            this.curve = 0;
+        }
+        while (this.next < section)
+            this.step();
+    }
+
+    public int getX1() { return this.x1; }
+    public int getX2() { return this.x2; }
+    // Rows of the current section that need loading
+    public int getLoadZ1() { return this.loadZ1; }
+    public int getLoadZ2() { return this.loadZ2; }
+    // Rows of the current section that can be lit. Edge columns never are.
+    public int getLightZ1() { return this.lightZ1; }
+    public int getLightZ2() { return this.lightZ2; }
+    // Rows of the current section we're done with
+    public int getUnloadZ1() { return this.unloadZ1; }
+    public int getUnloadZ2() { return this.unloadZ2; }
+    // Frontier mode only: the rows the section loads but leaves loaded for
+    // the next one, z1 > z2 if there are none. Whoever stops partway down a
+    // strip has to unload them, nothing else will.
+    public int getCarriedZ1()
+    {
+        if (!this.isCarrying())
+            return 0;
+        return this.loadZ1 < this.unloadZ1 ? this.loadZ1 : this.unloadZ2 + 1;
+    }
+    public int getCarriedZ2()
+    {
+        if (!this.isCarrying())
+            return -1;
+        return this.loadZ1 < this.unloadZ1 ? this.unloadZ1 - 1 : this.loadZ2;
+    }
+    // Only the section just handed out carries anything, not one we've
+    // seek()ed away from
+    private boolean isCarrying() { return this.frontier && this.next > 0 && this.last == this.next - 1; }
+    // All the rows the current section touches
+    public int getZ1() { return Math.min(this.loadZ1, Math.min(this.lightZ1, this.unloadZ1)); }
+    public int getZ2() { return Math.max(this.loadZ2, Math.max(this.lightZ2, this.unloadZ2)); }
+    // The chunks the current section finishes - every chunk of the area is
+    // finished by exactly one section
+    public int getOwnedX1() { return this.x1 == this.xStart ? this.x1 : this.x1 + 1; }
+    public int getOwnedX2() { return this.x2 == this.xEnd ? this.x2 : this.x2 - 1; }
+    public int getOwnedZ1()
+    {
+        if (this.frontier)
+            return this.unloadZ1;
+        return this.loadZ1 == this.zStart ? this.loadZ1 : this.loadZ1 + 1;
+    }
+    public int getOwnedZ2()
+    {
+        if (this.frontier)
+            return this.unloadZ2;
+        return this.loadZ2 == this.zEnd ? this.loadZ2 : this.loadZ2 - 1;
+    }
+    // Bounds of the whole area
+    public int getZStart() { return this.zStart; }
+    public int getZEnd() { return this.zEnd; }
+
+    // Spans of row z within the current section, read back with
+    // getSpanX1/X2. Returns how many there are.
+    public int getSpans(int z)
+    {
+        if (this.shape == null)
+        {
+            this.spans[0] = this.x1;
+            this.spans[1] = this.x2;
+            return this.spancount = 1;
+        }
+        int n = z < this.shape.getZMin() || z > this.shape.getZMax() ? 0 : this.shape.getSpans(z, this.spans);
+        this.spancount = 0;
+        for (int i = 0; i < n; i++)
+        {
+            int a = Math.max(this.spans[i * 2], this.x1), b = Math.min(this.spans[i * 2 + 1], this.x2);
+            if (a > b)
+                continue;
+            this.spans[this.spancount * 2] = a;
+            this.spans[this.spancount * 2 + 1] = b;
+            this.spancount++;
+        }
+        return this.spancount;
+    }
+    public int getSpanX1(int i) { return this.spans[i * 2]; }
+    public int getSpanX2(int i) { return this.spans[i * 2 + 1]; }
+
+    // Is this chunk too close to the rim of the current section to be lit?
+    public boolean isEdge(int x, int z)
+    {
+        return x <= this.x1 || x >= this.x2 || z < this.lightZ1 || z > this.lightZ2;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+
+package net.pointysoftware.worldgenerationcontrol;
+
+import org.bukkit.Chunk;
+import org.bukkit.Server;
+import org.bukkit.World;
+
+// Everything the plugin needs from the server that Bukkit doesn't provide.
+//
+// Which implementation is used is decided once, when the plugin is enabled,
+// by forServer(). Implementations do all their looking up then, so the
+// calls made while generating are plain method calls. Anything an
+// implementation can't do is reported by canX()/-1 rather than by failing,
+// and Generic, which can't do any of it, is what unknown servers get.
+abstract class ServerAdapter
+{
+    // Shown in the enable message
+    public abstract String getName();
+
+    // Lighting
+    //
+    // Whether relight() works on this server
+    public boolean canRelight() { return false; }
+    // Whether new chunks come without lighting, so /lighting:normal has to
+    // relight everything where there's no sky for SkyLightCheck to go by
+    public boolean isForcedLightingRequired() { return false; }
+    // Throws away a loaded chunk's lighting and works it out again from
+    // scratch. Errors from inside the server are passed on as
+    // RuntimeExceptions.
+    public void relight(Chunk chunk) { throw new UnsupportedOperationException(); }
+
+    // Scheduled block updates
+    //
+    // How many block updates the world has waiting, -1 if we can't tell
+    public int getTickListSize(World world) { return -1; }
+    // Has the world run one batch of its waiting block updates, as it would
+    // in a tick, returning false if we can't
+    public boolean tickPending(World world) { return false; }
+
+    // Saving
+    //
+    // Chunks waiting on the server's save thread, -1 if we can't tell
+    public long getSaveQueueDepth() { return -1; }
+
+    // Region files
+    //
+    // Has the server close every region file it has open and forget what
+    // it read from their headers, so they can be changed under it. Returns
+    // false if we can't.
+    public boolean closeRegionFiles() { return false; }
+    public boolean canCloseRegionFiles() { return false; }
+
+    // Picks the adapter for the server we're running on
+    public static ServerAdapter forServer(Server server)
+    {
+        ServerAdapter adapter = CraftBukkitAdapter.create(server);
+        if (adapter != null)
+            return adapter;
+        return new Generic(server.getClass().getName());
+    }
+
+    // Plain Bukkit, none of the extras
+    static class Generic extends ServerAdapter
+    {
+        private String name;
+        Generic(String name) { this.name = name; }
+        public String getName() { return "Bukkit (" + this.name + ")"; }
+    }
+}
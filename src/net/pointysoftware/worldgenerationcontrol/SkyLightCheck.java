@@ -0,0 +1,100 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+
+package net.pointysoftware.worldgenerationcontrol;
+
+import java.util.concurrent.Callable;
+
+import org.bukkit.ChunkSnapshot;
+
+// Works out from a snapshot whether a chunk's lighting needs redoing, so it
+// can be done away from the main thread and only chunks that need it get
+// the (expensive) relight.
+//
+// Every column's heightmap says where the sky starts. The block there should
+// have full sky light, and in a chunk whose lighting was thrown away it
+// won't. Any column that disagrees means the chunk needs relighting.
+//
+// That alone misses what the server's fast lighting pass leaves behind,
+// which lights each column straight down and nothing else: the pitch black
+// shadows under overhangs and trees. Below the heightmap, light spreads
+// sideways, so air never has less than one less than its neighbours. Air
+// that does is in a shadow that was never filled in. Neighbours in other
+// chunks aren't in the snapshot, so the edges are only compared inwards.
+//
+// The snapshot must include the heightmap, getChunkSnapshot(true, ...).
+class SkyLightCheck implements Callable<Boolean>
+{
+    private final static int FULL = 15;
+    private final static int AIR = 0;
+
+    private ChunkSnapshot snapshot;
+    private int maxheight;
+
+    SkyLightCheck(ChunkSnapshot snapshot, int maxheight)
+    {
+        this.snapshot = snapshot;
+        this.maxheight = maxheight;
+    }
+
+    // True if the chunk needs relighting
+    public Boolean call()
+    {
+        int top = 0;
+        for (int z = 0; z < 16; z++)
+        {
+            for (int x = 0; x < 16; x++)
+            {
+                int y = this.snapshot.getHighestBlockYAt(x, z);
+                if (y < this.maxheight && this.snapshot.getBlockSkyLight(x, y, z) != FULL)
+                    return Boolean.TRUE;
+                top = Math.max(top, y);
+            }
+        }
+        // Everything above the highest column is open sky
+        for (int y = 0; y < Math.min(top, this.maxheight); y++)
+        {
+            for (int z = 0; z < 16; z++)
+            {
+                for (int x = 0; x < 16; x++)
+                {
+                    if (this.snapshot.getBlockTypeId(x, y, z) == AIR && this.isShadowed(x, y, z))
+                        return Boolean.TRUE;
+                }
+            }
+        }
+        return Boolean.FALSE;
+    }
+
+    // Air at x, y, z is darker than a neighbour's light can explain
+    private boolean isShadowed(int x, int y, int z)
+    {
+        int light = this.snapshot.getBlockSkyLight(x, y, z) + 1;
+        if (light > FULL)
+            return false;
+        return (x > 0 && this.snapshot.getBlockSkyLight(x - 1, y, z) > light)
+            || (x < 15 && this.snapshot.getBlockSkyLight(x + 1, y, z) > light)
+            || (z > 0 && this.snapshot.getBlockSkyLight(x, y, z - 1) > light)
+            || (z < 15 && this.snapshot.getBlockSkyLight(x, y, z + 1) > light)
+            || (y + 1 < this.maxheight && this.snapshot.getBlockSkyLight(x, y + 1, z) > light);
+    }
+}
@@ -0,0 +1,113 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+
+package net.pointysoftware.worldgenerationcontrol;
+
+// Keeps a world's list of scheduled block updates from running away from us,
+// for /forceKeepUp.
+//
+// Generating schedules block updates (water, lava, falling sand...) far
+// faster than the server gets through them, and on older builds it only
+// gets through a fixed number a tick. Between sections we run the server's
+// own tick of them until the list is back under the limit, but only as many
+// times as the scheduler's budget allows each tick, rather than until it's
+// done - with millions waiting that could hold up the server for minutes.
+//
+// Besides what it costs, this keeps track of how fast our drains take
+// entries off, and of the trend in the list's size across everything (the
+// server's ticks, our drains, and the generating adding more). A trend that
+// stays above zero means generating is outpacing block updates.
+//
+// Like GenerationScheduler this doesn't talk to Bukkit, the caller does the
+// draining and reports what happened.
+class TickListDrain
+{
+    // Over how long rates are averaged
+    private final static long RATE_WINDOW = 30000000000L;
+    // What a drain call is assumed to cost until we've timed one
+    private final static long DEFAULT_COST = 1000000L;
+
+    private int limit;
+    // Decaying sums of entries our drains removed and wall time, for the rate
+    private double drained = 0, elapsed = 0;
+    private long lastdrain = 0;
+    // Smoothed entries per second the list grew by, negative if shrinking
+    private double trend = 0;
+    private long lastsize = -1, lastsample = 0;
+    // Smoothed nanoseconds per drain call
+    private double cost = DEFAULT_COST;
+    private long calls = 0;
+
+    TickListDrain(int limit) { this.limit = limit; }
+
+    public int getLimit() { return this.limit; }
+    public void setLimit(int limit) { this.limit = limit; }
+
+    // The list had size entries at now. Call this once a tick or so while
+    // it's being watched, it's where the trend comes from.
+    public void sample(int size, long now)
+    {
+        if (this.lastsize >= 0 && now > this.lastsample)
+        {
+            long dt = now - this.lastsample;
+            double rate = (double)(size - this.lastsize) * 1000000000L / dt;
+            this.trend += (rate - this.trend) * (1 - Math.exp(-(double)dt / RATE_WINDOW));
+        }
+        this.lastsize = size;
+        this.lastsample = now;
+        this.decay(now);
+    }
+
+    // Whether a list of this size needs draining
+    public boolean isOver(int size) { return size > this.limit; }
+
+    // One drain call took the list from before to after entries, in nanos
+    public void drained(int before, int after, long nanos, long now)
+    {
+        this.decay(now);
+        this.drained += Math.max(0, before - after);
+        this.calls++;
+        this.cost += (nanos - this.cost) * 0.1D;
+    }
+
+    private void decay(long now)
+    {
+        if (this.lastdrain != 0 && now > this.lastdrain)
+        {
+            double f = Math.exp(-(double)(now - this.lastdrain) / RATE_WINDOW);
+            this.drained *= f;
+            this.elapsed = this.elapsed * f + (now - this.lastdrain);
+        }
+        this.lastdrain = now;
+    }
+
+    // Expected nanoseconds per drain call, for the scheduler's allowance
+    public long getCost() { return Math.max(1, (long)this.cost); }
+    public long getCalls() { return this.calls; }
+    // Entries our drains removed per second, lately
+    public double getDrainRate() { return this.elapsed > 0 ? this.drained * 1000000000L / this.elapsed : 0; }
+    // Entries per second the list has been growing by lately, negative if
+    // it's shrinking
+    public double getTrend() { return this.trend; }
+    // Last size seen, -1 if never
+    public long getSize() { return this.lastsize; }
+}
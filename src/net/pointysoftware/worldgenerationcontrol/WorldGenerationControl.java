@@ -21,18 +21,31 @@
 
 package net.pointysoftware.worldgenerationcontrol;
 
-import java.lang.reflect.Field;
-import java.lang.reflect.Method;
-import java.lang.reflect.Modifier;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.text.SimpleDateFormat;
 
 import java.util.logging.Logger;
-import java.util.Iterator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
 import java.util.ArrayList;
-import java.util.TreeSet;
-import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import javax.management.JMException;
 
 import org.bukkit.plugin.Plugin;
 import org.bukkit.plugin.PluginManager;
@@ -40,6 +53,7 @@ import org.bukkit.plugin.java.JavaPlugin;
 
 import org.bukkit.Bukkit;
 import org.bukkit.Chunk;
+import org.bukkit.ChunkSnapshot;
 import org.bukkit.block.Block;
 import org.bukkit.block.BlockState;
 import org.bukkit.Material;
@@ -58,34 +72,63 @@ import org.bukkit.command.CommandSender;
 
 import org.bukkit.scheduler.BukkitScheduler;
 
-// Plugin *Does not* require craftbukkit, but lighting wont be available
-// otherwise as Bukkit doesn't currently provide the right calls.
-// (Our old method was a hack that relied on CraftBukkit quirks anyway)
-import org.bukkit.craftbukkit.v1_6_R3.CraftChunk;
-// This is used by checkCWTickList to work around a CW bug
-import org.bukkit.craftbukkit.v1_6_R3.CraftWorld;
-
 public class WorldGenerationControl extends JavaPlugin implements Runnable
 {
     private final static String VERSION = "2.6";
+    // Default for /maxHeap, where the MemoryGovernor starts slowing us down
+    private final static int DEFAULT_MAX_HEAP = (int)(MemoryGovernor.LOW * 100);
+    // Default for /cache, in MiB
+    private final static int DEFAULT_CACHE = 64;
+    // What we assume a chunk costs until HeapCostModel knows better
+    private final static long DEFAULT_CHUNK_BYTES = 512 * 1024;
+    // Most cached chunks we'll evict in one tick
+    private final static int EVICT_BATCH = 64;
+    // Scheduled block updates /forceKeepUp lets build up before draining
+    private final static int TICKLIST_LIMIT = 200000;
+    // Most region files we'll read in one tick looking for a section that
+    // isn't all there already
+    private final static int SCAN_BATCH = 8;
+    // Most chunks we'll have snapshots of waiting on a SkyLightCheck
+    private final static int LIGHT_AHEAD = 64;
+    // How much wider sections have to be allowed before a generation that
+    // has started grows them, so they don't change with every collection
+    private final static int GROW_STEP = 4;
     
+    // Each speed is a budget profile - how many milliseconds of each 50ms
+    // server tick we may spend generating, the TPS below which we start
+    // backing off, and how large a section we load at once.
     public enum GenerationSpeed
     {
-        // Only pause two ticks between regions, unplayable
+        // No budget, a section every tick. Unplayable
         // lag, but gets the job done quickest.
-        ALLATONCE,
-        // Do a lot of processing on 3s intervals. Very laggy
+        ALLATONCE(-1, 0.0D, 32),
+        // Most of every tick. Very laggy
         // even on good systems.
-        VERYFAST,
-        // Less processing on 3s intervals, fairly laggy.
-        FAST,
+        VERYFAST(40, 15.0D, 32),
+        // Less processing, fairly laggy.
+        FAST(25, 17.0D, 24),
         // Even less processing. Mild lag.
-        NORMAL,
+        NORMAL(12, 19.0D, 12),
         // Less - little lag
-        SLOW,
+        SLOW(6, 19.5D, 8),
         // tiny regions, very minimal lag, will
         // take *forever*.
-        VERYSLOW
+        VERYSLOW(3, 19.8D, 6);
+
+        private final int budget;
+        private final double tps;
+        private final int regionsize;
+        GenerationSpeed(int budgetMillis, double targetTps, int regionSize)
+        {
+            this.budget = budgetMillis;
+            this.tps = targetTps;
+            this.regionsize = regionSize;
+        }
+        // Milliseconds per tick, -1 for unlimited
+        public int getBudget() { return this.budget; }
+        // 0 if we should never back off
+        public double getTargetTps() { return this.tps; }
+        public int getRegionSize() { return this.regionsize; }
     }
     public enum GenerationLighting
     {
@@ -93,7 +136,7 @@ public class WorldGenerationControl extends JavaPlugin implements Runnable
         // we pass over
         EXTREME,
         // Update unprocessed lighting on chunks we
-        // pass over
+        // pass over, see SkyLightCheck
         NORMAL,
         // Don't force lighting. Generated areas
         // will have invalid lighting until a
@@ -104,561 +147,1698 @@ public class WorldGenerationControl extends JavaPlugin implements Runnable
         // in lighting a chunk out of the way.
         NONE
     }
-    public class GenerationRegion
+    // What a section is doing. Sections move through these in order,
+    // skipping those that don't apply.
+    private enum SectionPhase
+    {
+        // Kick players and unload, for /destroyAndRegenerateArea
+        CLEAR(GenerationMetrics.Phase.UNLOAD),
+        LOAD(GenerationMetrics.Phase.LOAD),
+        // Load (not regenerate) the outer edge, for /destroyAndRegenerateArea
+        RIM(GenerationMetrics.Phase.LOAD),
+        LIGHT(GenerationMetrics.Phase.LIGHT),
+        UNLOAD(GenerationMetrics.Phase.UNLOAD);
+        
+        // Which timer its work counts towards
+        private GenerationMetrics.Phase timedas;
+        SectionPhase(GenerationMetrics.Phase timedas) { this.timedas = timedas; }
+        public GenerationMetrics.Phase getTimedAs() { return this.timedas; }
+    }
+    // Steps of a /bulk reset, see runReset
+    private enum ResetStage
+    {
+        // Work out what's going to be thrown away
+        PLAN,
+        // Kick players and unload the area's chunks without saving them
+        UNLOAD,
+        // Wait for the server to finish writing what it had queued
+        SAVE,
+        // Copy the region files about to be changed, for /backup
+        BACKUP,
+        // Close the server's region files and clear the area out of them
+        APPLY
+    }
+    // One of the generations merged into a GenerationRegion, so its progress
+    // can still be reported on its own
+    private class GenerationPart
+    {
+        private ChunkShape.Union shape = new ChunkShape.Union();
+        // Chunks in it, -1 until counted
+        private long total = -1;
+        private long done = 0;
+        private boolean reported = false;
+        
+        public void add(ChunkShape piece)
+        {
+            this.shape.add(piece);
+            this.total = -1;
+        }
+        public long getTotal()
+        {
+            if (this.total < 0)
+                this.total = this.shape.count(this.shape.getXMin(), this.shape.getZMin(), this.shape.getXMax(), this.shape.getZMax());
+            return this.total;
+        }
+    }
+    
+    public class GenerationRegion implements GenerationQueue.Job
     {
-        private ArrayDeque<QueuedRegion> queuedregions = new ArrayDeque<QueuedRegion>();
+        // Areas that touch are merged into one cluster and walked by one
+        // planner, so ground they share is only generated once
+        private ArrayList<ChunkShape.Union> clusters = new ArrayList<ChunkShape.Union>();
+        private ArrayList<SectionPlanner> planners = new ArrayList<SectionPlanner>();
+        private int currentplanner = 0;
+        // Generations merged into this one, see absorb()
+        private ArrayList<GenerationPart> parts = new ArrayList<GenerationPart>();
+        // Sections handed out so far, including empty ones we skipped
+        private int position = 0;
         private World world;
         private GenerationLighting fixlighting = GenerationLighting.NORMAL;
         private GenerationSpeed speed = GenerationSpeed.NORMAL;
         private int totalregions = 0;
         private int regionsize;
+        // What sizeGeneration wants sections to be from the next section
+        // boundary the planner can change them at, 0 for no change
+        private int nextsize = 0;
+        // Size the area was first planned at, and each change since as
+        // position and size, so a restored generation is cut the same way
+        private int plannedsize;
+        private ArrayList<int[]> resizes = new ArrayList<int[]>();
+        private int budget;
+        private double targettps;
+        // Running average of what a chunk costs us in each phase, in
+        // nanoseconds. Starts out as a pessimistic guess for freshly
+        // generated chunks.
+        private long[] phasecost = { 1000000L, 20000000L, 5000000L, 2000000L, 1000000L };
+        // Whether each chunk of the section needs relighting, worked out off
+        // the main thread. Checks are started up to LIGHT_AHEAD chunks ahead
+        // of the cursor, lightahead is where the next one starts.
+        private Future<?> lightchecks[] = null;
+        private int lightahead = 0;
+        private long relit = 0, lightskipped = 0;
+        // Same for saving a chunk we created
+        private long savecost = 2000000L;
+        // Chunks we created, saved and unloaded behind the section
+        private ChunkSaveQueue saves = null;
+        // Set by advance() when the save queue is full
+        private boolean blocked = false;
+        // Chunks kept loaded after their section, for the next to find,
+        // up to this many MiB worth
+        private ChunkCache cache = new ChunkCache();
+        private int cachesize = DEFAULT_CACHE;
+        // Sections finished, and how many of those the journal knows about.
+        // It's only told once what they created has been saved, so chunks
+        // in the save queue and cache are tagged with the position of the
+        // section waiting on them. See recordProgress.
+        private int completed = 0, journaled = 0;
+        // Tags of created chunks taken back out of the cache and not yet
+        // unloaded again, including any a frontier is carrying along
+        private HashMap<Long, Integer> taken = new HashMap<Long, Integer>();
+        // No more sections, everything cached has to go
+        private boolean finishing = false;
+        // The section in progress, reused from one section to the next
+        private ChunkBatch chunks = null;
+        private boolean insection = false;
+        private SectionPhase phase;
+        private int cursor;
+        private long sectionwork;
+        private int sectionticks;
         private long starttime = 0;
         private boolean debug = false;
         private boolean forceregeneration = false;
         private boolean onlywhenempty = false;
         private long lastnag = 0;
         private long lastdebugnag = 0;
-        private TreeSet ticklist = null;
-        private long memwait = -1;
-        private boolean iscraftbukkit = false;
         private boolean forcekeepup = false;
+        private TickListDrain ticks = new TickListDrain(TICKLIST_LIMIT);
+        // Journal id, 0 until queued
+        private long jobid = 0;
+        // Everything passed to _addRegion, so the journal can rebuild us
+        private ArrayList<String> areas = new ArrayList<String>();
+        // Bounding box of all of the above, in chunk coordinates
+        private int xMin = Integer.MAX_VALUE, zMin = Integer.MAX_VALUE, xMax = Integer.MIN_VALUE, zMax = Integer.MIN_VALUE;
+        // Skip chunks the region files say already exist
+        private boolean prescan = true;
+        private RegionFileIndex existing = null;
+        // Set by nextSection() when it stopped looking for now
+        private boolean skipping = false;
+        // Only relight chunks that exist, saved at or after since (seconds
+        // since the epoch, 0 for all of them), never generating any
+        private boolean repair = false;
+        private long since = 0;
+        // Throw the area away in the region files, then generate it as if it
+        // had never existed, instead of regenerating it chunk by chunk. See
+        // RegionReset.
+        private boolean bulk = false;
+        private boolean backup = false;
+        private boolean dryrun = false;
+        private ResetStage resetstage = ResetStage.PLAN;
+        private RegionReset reset = null;
+        // Chunks in the area the server wouldn't unload, spawn chunks usually
+        private HashSet<Long> pinned = new HashSet<Long>();
+        // Time the world's populators while we run, for /profile
+        private boolean profile = false;
+        private PopulatorProfiler profiler = null;
+        // Walk the area as a rolling frontier instead of overlapping sections
+        private boolean frontier = false;
+        // Line sections up with region files, and the order to visit them in
+        private boolean align = false;
+        private SectionPlanner.Order order = SectionPlanner.Order.ROWS;
+        private int priority = GenerationQueue.DEFAULT_PRIORITY;
+        // Percent of the heap sections are sized to stay under, see sizeGeneration
+        private int maxheap = DEFAULT_MAX_HEAP;
+        // Chunks we've loaded and not yet unloaded, for HeapCostModel
+        private int held = 0;
+        // Chunks loaded so far, for throughput
+        private long loaded = 0;
+        // When runStep last ran, for pause time. 0 if we weren't active.
+        private long lastrun = 0;
+        // Put in front of status messages while other worlds are generating too
+        private String label = "";
         public GenerationRegion(World world)
         {
             this.world = world;
-            this.iscraftbukkit = this.world instanceof CraftWorld;
             this.setSpeed(GenerationSpeed.NORMAL);
-            
-            if (this.iscraftbukkit)
-            {
-                // Find ticklist handle
-                Class cw;
-                try
-                {
-                    cw = ((CraftWorld)this.world).getHandle().getClass().forName("net.minecraft.server.World");
-                }
-                catch (ClassNotFoundException e) { cw = null; }
-                if (cw != null)
-                {
-                    Field fields[] = cw.getDeclaredFields();
-                    for (int i = 0; i < fields.length; i++)
-                    {
-                        // The ticklist is a private treeset. With a whitelist
-                        // of what variable names it may be, and the fact that
-                        // no other TreeSets exist in world, this is pretty
-                        // safe.
-                        // 1.2.3 - H
-                        // b1.9p5 through 1.1: K
-                        // b1.8.1 - N
-                        // No other treesets in the world fields, so this is pretty safe.
-			// FIXME in 1.3.1 CB this is a (protected) "chunkTickList", a org.bukkit.craftbukkit.util.LongHashset (FFS)
-			//       - It has a .size() we'll need to grab...
-                        if (fields[i].getName() == "K" || fields[i].getName() == "H" || fields[i].getName() == "N")
-                        {
-                            fields[i].setAccessible(true);
-                            Object f;
-                            try { f = fields[i].get(((CraftWorld)this.world).getHandle()); }
-                            catch (IllegalAccessException e) { continue; }
-                            if (f instanceof TreeSet)
-                            {
-                                ticklist = (TreeSet)f;
-                                break;
-                            }
-                        }
-                    }
-                }
-            }
         }
         public void setForceKeepup(boolean v) { this.forcekeepup = v; }
         public void setDebug(boolean v) { this.debug = v; }
         public void setLighting(GenerationLighting v) { this.fixlighting = v; }
         public void setForceRegen(boolean v) { this.forceregeneration = v; }
         public void setOnlyWhenEmpty(boolean v) { this.onlywhenempty = v; }
+        public void setPrescan(boolean v) { this.prescan = v; }
+        // Only affects areas added after this
+        public void setFrontier(boolean v) { this.frontier = v; }
+        public void setAlign(boolean v) { this.align = v; }
+        public void setOrder(SectionPlanner.Order v) { this.order = v; }
+        public void setPriority(int v) { this.priority = Math.max(GenerationQueue.MIN_PRIORITY, Math.min(GenerationQueue.MAX_PRIORITY, v)); }
+        public int getPriority() { return this.priority; }
+        public void setMaxHeap(int percent) { this.maxheap = percent; }
+        public int getMaxHeap() { return this.maxheap; }
+        // Only affects areas added after this, use resize() otherwise
+        public void setRegionSize(int size) { this.regionsize = size; }
+        public int getRegionSize() { return this.regionsize; }
+        public int getHeld() { return this.held; }
+        // Most heap the cache will take up, see sizeGeneration
+        public long getCacheBytes() { return this.forceregeneration || this.cachesize <= 0 ? 0 : this.cachesize * 1024L * 1024L; }
+        
+        // Change the section size of a generation that hasn't started,
+        // returns false if there's nothing to change
+        public boolean resize(int size)
+        {
+            if (size == this.regionsize || this.starttime != 0 || this.position != 0)
+                return false;
+            this.regionsize = size;
+            this.plan();
+            return true;
+        }
+        // Change the section size of one that has, from the next section
+        // boundary where the planner can
+        public void resizeLater(int size) { this.nextsize = size != this.regionsize ? size : 0; }
+        
+        // Cut the rest of the area into sections of a new size, returns
+        // false if the current planner can't do it here
+        private boolean replan(int size)
+        {
+            if (this.insection || this.currentplanner >= this.planners.size())
+                return false;
+            SectionPlanner p = this.planners.get(this.currentplanner);
+            int total = p.getTotal();
+            if (!p.resize(size))
+                return false;
+            this.totalregions += p.getTotal() - total;
+            // The ones we haven't got to start over at the new size
+            for (int i = this.currentplanner + 1; i < this.planners.size(); i++)
+            {
+                total = this.planners.get(i).getTotal();
+                this.planners.set(i, this.newPlanner(this.clusters.get(i), size));
+                this.totalregions += this.planners.get(i).getTotal() - total;
+            }
+            for (SectionPlanner q:this.planners)
+            {
+                if (this.lightchecks != null && q.getMaxChunks() > this.lightchecks.length)
+                    this.lightchecks = new Future<?>[q.getMaxChunks()];
+            }
+            this.regionsize = size;
+            this.resizes.add(new int[] { this.position, size });
+            return true;
+        }
+        
+        // Between sections, take up the size sizeGeneration asked for if we
+        // can
+        private void applyResize()
+        {
+            int size = this.nextsize;
+            if (size <= 0 || !this.replan(size))
+                return;
+            this.nextsize = 0;
+            if (journal != null && this.jobid != 0)
+                journal.recordSpec(this.jobid, this.getSpec());
+            statusMsg(this.label + "Using " + size + "x" + size + " chunk sections from section " + (this.position + 1));
+        }
+        
+        // Position and size pairs from getSpec, for skipSections to cut the
+        // area the way it was
+        public void restoreResizes(String v)
+        {
+            for (String pair:v.split(","))
+            {
+                int colon = pair.indexOf(':');
+                this.resizes.add(new int[] { Integer.parseInt(pair.substring(0, colon)), Integer.parseInt(pair.substring(colon + 1)) });
+            }
+        }
         public void setSpeed(GenerationSpeed v)
         {
             this.speed = v;
-            if (this.speed == GenerationSpeed.VERYFAST) regionsize = 32;
-            else if (this.speed == GenerationSpeed.FAST) regionsize = 24;
-            else if (this.speed == GenerationSpeed.NORMAL) regionsize = 12;
-            else if (this.speed == GenerationSpeed.SLOW) regionsize = 8;
-            else if (this.speed == GenerationSpeed.VERYSLOW) regionsize = 6;
-            else if (this.speed == GenerationSpeed.ALLATONCE)
-            {
-                regionsize = 32;
+            this.regionsize = v.getRegionSize();
+            this.budget = v.getBudget();
+            this.targettps = v.getTargetTps();
+            if (this.speed == GenerationSpeed.ALLATONCE)
                 this.setForceKeepup(false);
-            }
+        }
+        // Override the speed profile's budget, in milliseconds per tick
+        public void setBudget(int millis) { this.budget = millis; }
+        // Override the speed profile's target TPS, 0 to never back off
+        public void setTargetTps(double tps) { this.targettps = tps; }
+        
+        public void configureScheduler(GenerationScheduler s)
+        {
+            s.configure(this.budget > 0 ? this.budget * 1000000L : -1, this.targettps, this.targettps > 0);
         }
         
         public boolean shouldRunAllAtOnce() { return this.speed == GenerationSpeed.ALLATONCE; }
         
-        public void cancelRemaining()
+        public World getWorld() { return this.world; }
+        public long getJobId() { return this.jobid; }
+        public void setJobId(long id) { this.jobid = id; }
+        public ArrayList<String> getAreas() { return this.areas; }
+        public boolean isStarted() { return this.starttime != 0; }
+        public long getChunksLoaded() { return this.loaded; }
+        public double getProgress() { return (double)this.position / Math.max(1, this.totalregions); }
+        public int getPosition() { return this.position; }
+        // What runStep is up to, for GenerationTrace
+        public String getStage()
         {
-            this.queuedregions.clear();
+            if (this.bulk)
+                return this.resetstage.name();
+            return this.insection ? this.phase.name() : "BETWEEN";
         }
-
-        private void printDebug() { this.printDebug(-1); }
-        private void printDebug(long since)
+        public void setLabel(String v) { this.label = v; }
+        
+        // Only one generation of a world runs at a time
+        public String getQueueKey() { return this.world.getName(); }
+        public boolean isBusy() { return this.insection || (this.saves != null && !this.saves.isEmpty()); }
+        public ChunkSaveQueue getSaveQueue() { return this.saves; }
+        public ChunkCache getCache() { return this.cache; }
+        public void setCacheSize(int mib) { this.cachesize = mib; }
+        public void setRepair(boolean v) { this.repair = v; }
+        public void setSince(long seconds) { this.since = seconds; }
+        public void setBulk(boolean v) { this.bulk = v; }
+        public void setBackup(boolean v) { this.backup = v; }
+        public void setDryRun(boolean v) { this.dryrun = v; }
+        public void setProfile(boolean v) { this.profile = v; }
+        public void setActive(boolean active)
         {
-            double pctusedmem = ((double)(runtime.totalMemory() - runtime.freeMemory()) / runtime.maxMemory());
-            long freemem = runtime.maxMemory() - runtime.totalMemory() + runtime.freeMemory();
-            String memstr = String.format("%.02f", 100*pctusedmem) + "% memory in use, " + String.format("%.02f", (double)freemem/(1024*1024)) + "MiB free";
-            String elapsed = since < 0 ? "" : String.format("%.2f", (double)(System.nanoTime() - since) / 1000000) + "ms elapsed. ";
-            // It'll always be 0 in allatonce mode since we force-clean it --v
-            int ticksize = ticklist != null ? ticklist.size() : 0;
-            String tickstr = ticksize > 0 ? " - NextTickList at " + ticksize + " entries" : "";
-            statusMsg("-- " + elapsed + world.getLoadedChunks().length + " chunks now loaded - " + memstr + tickstr);
+            // Don't leave what a frontier was carrying along loaded while
+            // we're switched out, it's loaded again when we're back
+            if (!active && this.currentplanner < this.planners.size())
+            {
+                this.dropCarried();
+                SectionPlanner p = this.planners.get(this.currentplanner);
+                p.seek(p.getPosition());
+            }
+            // We won't be back for a while, so don't keep anything around
+            if (!active)
+            {
+                this.flushCache();
+                this.lastrun = 0;
+            }
         }
         
-        // returns true if complete
-        // queued is number of generations the plugin intends to run after this
-        // or -1 if the plugin intends to shutdown the server after this!
-        public boolean runStep(int queued)
+        // How many chunks the cache may hold right now. Memory pressure
+        // shrinks it along with everything else.
+        private int getCacheCapacity()
         {
-            long now = System.nanoTime();
-            if (this.starttime == 0)
-                this.starttime = System.nanoTime();
-            
-            // Status message
-            String queuedtext = "";
-            if (queued > 0)
-                queuedtext = ChatColor.DARK_GRAY + " {" + ChatColor.GRAY + queued + " generations in queue" + ChatColor.DARK_GRAY + "}";
-            if (queued == -1)
-                queuedtext = ChatColor.DARK_GRAY + " {" + ChatColor.DARK_RED + "shutdown scheduled" + ChatColor.DARK_GRAY + "}";
-
-            if (this.forcekeepup)
+            if (this.finishing || this.forceregeneration || this.cachesize <= 0)
+                return 0;
+            long cost = getHeapCost(this.getQueueKey()).getBytesPerChunk();
+            long chunks = this.cachesize * 1024L * 1024L / (cost > 0 ? cost : DEFAULT_CHUNK_BYTES);
+            return (int)Math.min(Integer.MAX_VALUE, (long)(chunks * memory.getFactor()));
+        }
+        
+        // Evict the oldest cached chunks down to capacity, a batch at a time
+        // as the budget allows. Chunks we created go through the save queue.
+        private void trimCache()
+        {
+            int capacity = this.getCacheCapacity();
+            while (this.cache.size() > capacity)
             {
-                if (this.iscraftbukkit)
+                int allowance = Math.min(EVICT_BATCH, scheduler.getAllowance(this.phasecost[SectionPhase.UNLOAD.ordinal()]));
+                if (allowance == 0)
+                    break;
+                long start = clock.nanoTime();
+                int done = 0;
+                while (done < allowance && this.cache.size() > capacity)
                 {
-                    // See if this is CraftBukkit and we can fix the NextTickList leak
-                    // otherwise it can mean lots of useless idle time while the server
-                    // catches up slowly, see: https://github.com/Bukkit/CraftBukkit/pull/501
-                    if (this.ticklist != null)
-                    {
-                        try
-                        {
-                            // Flush the list
-                            // In CB1.1 processing will ramp up as the list grows to 5% of the list per tick
-                            // but equilibrium isn't reached until the millions, so this is still of use for
-                            // users with memory concerns.
-                            // FIXME We shouldn't be linking directly against CraftWorld here
-                            while (ticklist.size() > (this.speed == GenerationSpeed.ALLATONCE ? 0 : 200000))
-                                ((CraftWorld)this.world).getHandle().a(true);
-                        }
-                        catch(Exception e)
-                        {
-                            // Probably CB version mismatch.
-                            if (debug) statusMsg("-- Warning: Failed to force server to keep up on ticklist processing. Probably unknown CraftBukkit version :(");
-                        }
-                    }
-                    // In 1.9+ the async chunk loader takes its sweet fuckin' time
-                    try
+                    Map.Entry<Long, Integer> oldest = this.cache.getOldest();
+                    int x = ChunkBatch.unpackX(oldest.getKey()), z = ChunkBatch.unpackZ(oldest.getKey());
+                    if (oldest.getValue() != 0)
                     {
-                        ((CraftWorld)this.world).getHandle().save(true, null);
-                        ((CraftWorld)this.world).getHandle().saveLevel();
+                        if (!this.saves.offer(x, z, oldest.getValue()))
+                            break;
                     }
-                    catch (Exception e)
+                    else
                     {
-                        statusMsg("Warning: Unrecognized CraftBukkit build, cannot force saving. Async chunk loader will slow things down!");
-                        this.iscraftbukkit = false;
+                        this.unloadChunk(x, z, false);
+                        this.held = Math.max(0, this.held - 1);
                     }
+                    this.cache.remove(oldest.getKey());
+                    done++;
                 }
-                // With default java options, a moderately loaded server
-                // will simply not invoke the GC until it really needs
-                // to, meaning we can just sit above our memory limits
-                // forever if we don't force it
-                System.runFinalization();
-                System.gc();
-            }
-            
-            // Check memory
-            String nag = null;
-            double pctusedmem = ((double)(runtime.totalMemory() - runtime.freeMemory()) / runtime.maxMemory());
-            // max - total memory is how much memory is allowed to be used but not allocated,
-            // freeMemory is amount of allocated memory not in use. So not yet allocated + allocated but free == total free
-            long freemem = runtime.maxMemory() - runtime.totalMemory() + runtime.freeMemory();
-            // > 80% in use, or <200Megs free.
-            // Until we have better incremental generation, each step needs at least 200megs to not
-            // crash and burn.
-            if ((this.memwait > -1 && pctusedmem > 0.70D) || pctusedmem > 0.80D || freemem < (200 * 1024 * 1024))
-            {
-                nag = "Insufficient free memory ("+String.format("%.02f", (double)freemem/(1024*1024))+"MiB)-- taking a break to let the server catch up";
-                if (this.memwait > -1 && this.memwait + 30000000000L < now)
-                {
-                    this.memwait = now;
-                    // It's fully possible for java, with default settings, to just sit at 85%
-                    // memory without invoking GC. Even without /forceKeepUp, we should
-                    // nudge the GC if its taking a while
-                    if (debug) statusMsg("-- Been waiting on memory for a while, invoking a GC");
-                    System.runFinalization();
-                    System.gc();
-                }
-                if (this.memwait == -1) this.memwait = now;
-            }
-            else
-                this.memwait = -1;
-            
-            // Check for /onlyWhenEmpty
-            if (this.onlywhenempty && getServer().getOnlinePlayers().length > 0)
-                nag = "Paused while players are present";
-            
-            // Status message
-            double pct = 1 - (double)queuedregions.size() / totalregions;
-            int region = totalregions - queuedregions.size() + 1;
-            String prefix = ChatColor.DARK_GRAY + "[" + ChatColor.GOLD + String.format("%.2f", 100*pct) + "%" + ChatColor.DARK_GRAY + "]" + ChatColor.GRAY + " ";
-            
-            if (nag != null)
-            {
-                // Should bail out
-                if (this.lastnag + 300000000000L < now)
-                {
-                    this.lastnag = now;
-                    statusMsg(prefix + nag + queuedtext);
-                }
-                if (this.lastdebugnag + 3000000000L < now)
-                {
-                    if (debug) printDebug();
-                    this.lastdebugnag = now;
-                }
-                return false;
-            }
-            else
-                this.lastnag = 0;
-            
-            // Compute this before popping regions off stack
-            String statusmsg = prefix + ChatColor.GRAY + "Section " + ChatColor.WHITE + region + ChatColor.GRAY + "/" + ChatColor.WHITE + totalregions + queuedtext;
-            
-            // Get next region
-            ArrayDeque<GenerationChunk> chunks = null;
-            while (queuedregions.size() > 0 && chunks == null)
-                chunks = queuedregions.pop().getChunks(this.world);
-            
-            if (chunks == null)
-            {
-                // Generation complete
-                long millis = (System.nanoTime() - this.starttime) / 1000000;
-                long seconds = millis / 1000;
-                long minutes = seconds / 60;
-                long hours = minutes / 60;
-                long days = hours / 24;
-                String took = (days > 0 ? String.format("%d days, ", days) : "")
-                    + (hours > 0 ? String.format("%d hours, ", hours % 24) : "")
-                    + (minutes > 0 ? String.format("%d minutes, ", minutes % 60) : "")
-                    + String.format("%d seconds", seconds % 60);
-                    
-                statusMsg("Generation complete in " + took + ". " + (queued > 0 ? "Loading next generation job" : "Have a nice day!") + queuedtext);
-                if (debug) printDebug();
-                return true;
+                long elapsed = clock.nanoTime() - start;
+                scheduler.spend(elapsed);
+                metrics.getTimer(GenerationMetrics.Phase.UNLOAD).record(elapsed, done);
+                // Save queue is full
+                if (done < allowance && this.cache.size() > capacity)
+                    break;
             }
-            else
-                statusMsg(statusmsg);
-            
-            //
-            // Load Chunks
-            //
-            if (this.forceregeneration)
+        }
+        
+        // Unload everything cached right away
+        public void flushCache()
+        {
+            Map.Entry<Long, Integer> oldest;
+            while ((oldest = this.cache.getOldest()) != null)
             {
-                
-                // Force unload the area first, so all blocks only get populators
-                // run on them from their newly generated counterparts.
-                Iterator<GenerationChunk> i = chunks.iterator();
-                while (i.hasNext())
-                {
-                    GenerationChunk gc = i.next();
-		    gc.kickPlayers("The region you are in was regenerated. Please rejoin");
-		    gc.unload(true);
-                }
+                this.unloadChunk(ChunkBatch.unpackX(oldest.getKey()), ChunkBatch.unpackZ(oldest.getKey()), false);
+                this.held = Math.max(0, this.held - 1);
+                this.cache.remove(oldest.getKey());
             }
-            Iterator<GenerationChunk> iter = chunks.iterator();
-	    ArrayDeque<GenerationChunk> rim = new ArrayDeque<GenerationChunk>();
-            while (iter.hasNext())
+        }
+        
+        // Options as a journal spec, see restoreGeneration
+        public String getSpec()
+        {
+            String name;
+            try { name = URLEncoder.encode(this.world.getName(), "UTF-8"); }
+            catch (UnsupportedEncodingException e) { name = this.world.getName(); } // Can't happen
+            return "world=" + name + " speed=" + this.speed + " lighting=" + this.fixlighting
+                + " budget=" + this.budget + " tps=" + this.targettps + " debug=" + this.debug
+                + " regen=" + this.forceregeneration + " onlywhenempty=" + this.onlywhenempty
+                + " keepup=" + this.forcekeepup + " prescan=" + this.prescan + " frontier=" + this.frontier
+                + " align=" + this.align + " order=" + this.order + " priority=" + this.priority
+                + " size=" + (this.resizes.isEmpty() ? this.regionsize : this.plannedsize) + this.getResizeSpec() + " maxheap=" + this.maxheap + " cache=" + this.cachesize
+                + " repair=" + this.repair + " since=" + this.since
+                + " bulk=" + this.bulk + " backup=" + this.backup + " dryrun=" + this.dryrun + " profile=" + this.profile;
+        }
+        
+        private String getResizeSpec()
+        {
+            if (this.resizes.isEmpty())
+                return "";
+            StringBuilder b = new StringBuilder(" resized=");
+            for (int[] e:this.resizes)
+                b.append(b.length() > 9 ? "," : "").append(e[0]).append(':').append(e[1]);
+            return b.toString();
+        }
+        
+        // Re-add an area recorded by getAreas
+        public boolean restoreArea(String area)
+        {
+            // Areas of merged generations are tagged with which one they
+            // came from
+            int part = 0;
+            if (area.startsWith("part="))
             {
-                GenerationChunk c = iter.next();
-		// In force regeneration mode, we will load everything but the outer edge first, then load (not
-		// regenerate) that outer rim so populators trigger. Unless we're right at the edge of the requested
-		// generation area, those chunks will be non-edge-chunks in a QueuedRegion adjacent to this, due to
-		// overlap = 2
-		if (!this.forceregeneration || !c.isEdgeChunk())
-		{
-		    c.load(this.forceregeneration);
-		}
-		else
-		{
-		    rim.push(c);
-		}
+                int space = area.indexOf(' ');
+                if (space < 0) return false;
+                try { part = Integer.parseInt(area.substring(5, space)); }
+                catch (NumberFormatException e) { return false; }
+                if (part < 0) return false;
+                area = area.substring(space + 1);
             }
-
-	    // Now load rim if necessary
-	    iter = rim.iterator();
-	    while (iter.hasNext())
-	    {
-		iter.next().load(false);
-	    }
-	    
-            //
-            // Lighting
-            //
-            if (this.fixlighting != GenerationLighting.NONE)
+            if (area.startsWith("polygon "))
             {
-                iter = chunks.iterator();
-                while (iter.hasNext())
+                String v[] = area.substring(8).split(" ");
+                if (v.length < 6 || v.length % 2 != 0) return false;
+                double xs[] = new double[v.length / 2], zs[] = new double[v.length / 2];
+                try
                 {
-                    GenerationChunk c = iter.next();
-                    try
-                    {
-                        c.fixLighting(fixlighting == GenerationLighting.EXTREME);
-                    }
-                    catch (Exception e)
+                    for (int i = 0; i < xs.length; i++)
                     {
-                        // ClassCastException, MethodNotFound exception, or even an error inside craftbukkit.
-                        // Either way, stop lighting for this generation.
-                        if (e instanceof ClassCastException)
-                            statusMsg("Error: WorldGenerationControl only supports lighting on CraftBukkit due to Bukkit API limitations. Disabling lighting for this generation.");
-                        else
-                            statusMsg("Error: Error in CraftBukkit while generating lighting (probably an unsupported minecraft version). Disabling lighting for this generation.");
-                        this.fixlighting = GenerationLighting.NONE;
+                        xs[i] = Double.parseDouble(v[i * 2]);
+                        zs[i] = Double.parseDouble(v[i * 2 + 1]);
                     }
                 }
+                catch (NumberFormatException e) { return false; }
+                return this._addPolygon(xs, zs, part) > 0;
             }
-
-            //
-            // Cleanup Chunks
-            //
-            while (chunks.size() > 0)
+            String v[] = area.split(" ");
+            if (v.length != 7) return false;
+            int a[] = new int[7];
+            try
             {
-                chunks.pop().unload();
+                for (int i = 0; i < 7; i++)
+                    a[i] = Integer.parseInt(v[i]);
             }
-            
-            if (debug) this.printDebug(now);
-            
-            return false;
+            catch (NumberFormatException e) { return false; }
+            return this._addRegion(a[0], a[1], a[2], a[3], a[4], a[5], a[6], part) > 0;
         }
         
-        // Returns number of chunks queued
-        public int addCircularRegion(World world, int xCenter, int zCenter, int radius)
-        {
-            return this._addRegion(_toChunk(xCenter - radius), _toChunk(zCenter - radius), _toChunk(xCenter + radius), _toChunk(zCenter + radius), _toChunk(xCenter), _toChunk(zCenter), _toChunk(radius));
-        }
-        // Returns number of chunks queued
-        public int addSquareRegion(World world, int xStart, int zStart, int xEnd, int zEnd)
+        // Can other be merged into this generation? Only if neither has
+        // started and they'd be generated the same way.
+        public boolean canAbsorb(GenerationRegion other)
         {
-            return this._addRegion(_toChunk(xStart), _toChunk(zStart), _toChunk(xEnd), _toChunk(zEnd), 0, 0, 0);
+            return other != this && other.world == this.world && this.starttime == 0 && this.position == 0
+                && other.position == 0 && this.getSpec().equals(other.getSpec());
         }
         
-        // Returns number of chunks queued
-        // values are in *chunk coordinates* (see _toChunk)
-        private int _addRegion(int xStart, int zStart, int xEnd, int zEnd, int xCenter, int zCenter, int radius)
+        // Take over another generation's areas. They're kept as separate
+        // parts so each one's progress is still reported, but the ground
+        // they share with ours is only generated once. Returns the areas
+        // added, as getAreas() would record them.
+        public ArrayList<String> absorb(GenerationRegion other)
         {
-            if (debug) statusMsg("-- Preparing to generate region, in chunk coordinates: xStart: " + xStart + ", zStart: " + zStart + " xEnd: " + xEnd + ", zEnd: " + zEnd + ", xCenter: " + xCenter + ", zCenter: " + zCenter + ", radius: " + radius);
-            if (xStart > xEnd || zStart > zEnd || radius < 0)
-                return 0;
-            
-            // Break into regions
-            
-            // Regions need to overlap by 2 so block populators
-            // and lighting can run. (edge chunks wont work in either)
-            int overlap = 2;
-            
-            int zNext = zStart;
-            int xNext = xStart;
-            
-            while (zNext <= zEnd)
+            int first = this.areas.size();
+            int base = this.parts.size();
+            for (String area:other.getAreas())
             {
-                if (zNext == zStart) zNext += overlap;
-                if (xNext == xStart) xNext += overlap;
-                
-                int x1 = xNext - overlap;
-                int x2 = Math.min(x1 + regionsize - 1, xEnd);
-                int z1 = zNext - overlap;
-                int z2 = Math.min(z1 + regionsize - 1, zEnd);
-                
-                queuedregions.add(new QueuedRegion(x1, z1, x2, z2, xCenter, zCenter, radius));
-                this.totalregions++;
-                
-                xNext = x2 + 1;
-                
-                if (xNext > xEnd)
+                int part = 0;
+                if (area.startsWith("part="))
                 {
-                    xNext = xStart + overlap;
-                    zNext = z2 + 1;
+                    int space = area.indexOf(' ');
+                    part = Integer.parseInt(area.substring(5, space));
+                    area = area.substring(space + 1);
                 }
+                this.restoreArea("part=" + (base + part) + " " + area);
             }
-            return (xEnd - xStart + 1) * (zEnd - zStart + 1);
+            return new ArrayList<String>(this.areas.subList(first, this.areas.size()));
         }
         
-        private int _toChunk(int worldCoordinate)
-        {
-            // -1 through -16 are chunk -1,
-            // 0 through 15 are chunk 0,
-            // 16 through 32 are chunk 1...
-            if (worldCoordinate < 0)
-                return (worldCoordinate + 1)/16 - 1;
-            else
-                return worldCoordinate/16;
-        }
+        public int getPartCount() { return this.parts.size(); }
         
-        private class QueuedRegion
+        // Skip sections a previous run already finished
+        public void skipSections(int done)
         {
-            private int xStart, zStart, xEnd, zEnd, xCenter, zCenter, radius;
-            QueuedRegion(int xStart, int zStart, int xEnd, int zEnd, int xCenter, int zCenter, int radius)
+            // Resizes past what was finished are forgotten, the sections
+            // after it will be sized again
+            ArrayList<int[]> resizes = this.resizes;
+            this.resizes = new ArrayList<int[]>();
+            int r = 0;
+            // Step through rather than seeking, so merged generations get
+            // credit for what was finished
+            while (this.position < done && this.currentplanner < this.planners.size())
+            {
+                for (; r < resizes.size() && resizes.get(r)[0] <= this.position; r++)
+                    this.replan(resizes.get(r)[1]);
+                SectionPlanner p = this.planners.get(this.currentplanner);
+                int before = p.getPosition();
+                boolean more = p.next();
+                this.position += p.getPosition() - before;
+                if (!more)
+                {
+                    this.currentplanner++;
+                    continue;
+                }
+                this.creditSection(p, false);
+            }
+            for (; r < resizes.size() && resizes.get(r)[0] <= this.position; r++)
+                this.replan(resizes.get(r)[1]);
+            this.completed = this.journaled = done;
+            // Whatever we were carrying along is long gone
+            if (this.currentplanner < this.planners.size())
             {
-                this.xCenter = xCenter;
-                this.zCenter = zCenter;
-                this.xStart = xStart;
-                this.zStart = zStart;
-                this.xEnd = xEnd;
-                this.zEnd = zEnd;
-                this.radius = radius;
+                SectionPlanner p = this.planners.get(this.currentplanner);
+                p.seek(p.getPosition());
             }
-            
-            public ArrayDeque<GenerationChunk> getChunks(World world)
+        }
+        
+        // Count what the current section finished towards each merged
+        // generation, and say so when one is complete
+        private void creditSection(SectionPlanner p, boolean announce)
+        {
+            if (this.parts.size() < 2)
+                return;
+            for (int i = 0; i < this.parts.size(); i++)
             {
-                ArrayDeque<GenerationChunk> ret = new ArrayDeque<GenerationChunk>();
-                int x = xStart, z = zStart;
-                while (z <= zEnd)
+                GenerationPart part = this.parts.get(i);
+                part.done += part.shape.count(p.getOwnedX1(), p.getOwnedZ1(), p.getOwnedX2(), p.getOwnedZ2());
+                if (!part.reported && part.done >= part.getTotal())
                 {
-                    // Skip chunks outside circle radius
-                    if ((radius == 0) || (radius >= Math.sqrt((Math.pow(Math.abs(x - xCenter),2) + Math.pow(Math.abs(z - zCenter),2)))))
-		    {
-			boolean edge = (x == this.xStart) || (z == this.zStart) || (x == this.xEnd) || (z == this.zEnd);
-                        ret.push(new GenerationChunk(x, z, world, edge));
-		    }
-                    
-                    x++;
-                    if (x > xEnd)
-                    {
-                        x = xStart;
-                        z++;
-                    }
+                    part.reported = true;
+                    if (announce) statusMsg("Merged generation " + (i + 1) + " of " + this.parts.size() + " complete");
                 }
-                return ret.size() > 0 ? ret : null;
             }
-            
-            // Chunks this represents
-            public int getSize() { return (xEnd - xStart + 1) * (zEnd - zStart + 1); }
         }
-    }
-    private class GenerationChunk
-    {
-        private int x, z;
-        private World world;
-        private Chunk chunk;
-        private boolean wascreated;
-	private boolean edge;
-        GenerationChunk(int x, int z, World world, boolean edge)
-	{
-	    this.x = x;
-	    this.z = z;
-	    this.world = world;
-	    this.wascreated = false;
-	    this.edge = edge;
-	}
-        public int getX() { return x; }
-        public int getZ() { return z; }
-        public boolean wasCreated() { return this.wascreated; }
-        public boolean isEdgeChunk() { return this.edge; }
-        public int kickPlayers(String msg)
+        
+        public void cancelRemaining()
         {
-            int kicked = 0;
-            if (world.isChunkLoaded(this.x, this.z))
+            this.dropCarried();
+            this.currentplanner = this.planners.size();
+            // Don't wait for the section in progress to finish, just clean up
+            // whatever it has loaded so far.
+            if (this.insection)
             {
-                for (Entity ent:world.getChunkAt(this.x, this.z).getEntities())
-                    if (ent instanceof Player)
-                    {
-                        ((Player)ent).kickPlayer(msg);
-                        kicked++;
-                    }
+                this.chunks.unloadAll();
+                this.setPhase(SectionPhase.UNLOAD);
             }
-            return kicked;
         }
         
-        // Try to call the craftbukkit lighting update.
-        // This will throw exceptions if: Server isn't craftbukkit, craftbukkit isn't the expected version, craftbukkit has an error...
-        // *catch exceptions* if you don't want to assume we're running on compatible craftbukkit.
-        public void fixLighting(boolean force)
+        // Between sections, unload (saving what we made) the rows a frontier
+        // band left loaded for the next one, when there won't be a next one
+        private void dropCarried()
         {
-            if (this.chunk == null) return;
-            
-            if (WorldGenerationControl.lightingFixMethod instanceof Method)
+            if (this.insection || this.currentplanner >= this.planners.size())
+                return;
+            SectionPlanner p = this.planners.get(this.currentplanner);
+            for (int z = p.getCarriedZ1(); z <= p.getCarriedZ2(); z++)
             {
-                // initLighting 'resets' the lighting for a chunk, doing fast lighting on everything and marking them all as needing full lighting
-                // Don't do it on chunks without their adjacents loaded, since the h() will then fail to fix them and we're actually breaking
-                // potentially good lighting.
-
-                net.minecraft.server.v1_6_R3.Chunk rawchunk = ((CraftChunk)this.chunk).getHandle();
-
-		// We skip the edge chunks - with overlap=2, they will be a non-edge chunk in at least one region,
-		// where we can also guarantee their peers are loaded for proper loading
-                if (force && !this.edge)
+                int n = p.getSpans(z);
+                for (int i = 0; i < n; i++)
                 {
-                    rawchunk.initLighting();
-		    try
-		    {
-			WorldGenerationControl.lightingFixMethod.invoke(rawchunk);
-		    }
-		    catch (Exception e)
-		    {
-			// This shouldn't happen, as we checked access earlier.
-			statusMsg("ERROR: Lighting failure. /lighting will not function - likely due to an unsupported CraftBukkit version");
-		        WorldGenerationControl.lightingFixMethod = null;
-		    }
+                    for (int x = p.getSpanX1(i); x <= p.getSpanX2(i); x++)
+                    {
+                        this.taken.remove(ChunkBatch.pack(x, z));
+                        if (!this.world.isChunkLoaded(x, z))
+                            continue;
+                        this.unloadChunk(x, z, false);
+                        this.held = Math.max(0, this.held - 1);
+                    }
                 }
             }
         }
         
-        public void load() { this.load(false); }
-        public void load(boolean regenerateChunk)
+        // Moves on to the next section with anything in it, returns false
+        // once there are none left. Passing over sections with nothing to
+        // do means reading their region files, so after SCAN_BATCH of those
+        // it sets skipping and returns false to carry on next tick.
+        private boolean nextSection()
         {
-            this.chunk = this.world.getChunkAt(this.x, this.z);
-            if (!this.chunk.isLoaded())
+            this.skipping = false;
+            int scanned = this.existing != null ? this.existing.getScanned() : 0;
+            while (this.currentplanner < this.planners.size())
             {
-                // Try to load it without allowing generation.
-                // to determine if it already existed
-                if (this.chunk.load(false))
-                    this.wascreated = false;
-                else
+                this.applyResize();
+                SectionPlanner p = this.planners.get(this.currentplanner);
+                int before = p.getPosition();
+                boolean more = p.next();
+                // Sections outside the area's shape are passed over by next()
+                this.position += p.getPosition() - before;
+                if (!more)
+                {
+                    this.currentplanner++;
+                    continue;
+                }
+                if (this.chunks.fill(p, this.existing, this.repair) > 0)
+                    return true;
+                // Nothing to do, but it still counts as done
+                this.creditSection(p, true);
+                if (this.existing != null && this.existing.getScanned() - scanned >= SCAN_BATCH)
                 {
-                    this.chunk.load(true);
-                    this.wascreated = true;
+                    this.skipping = true;
+                    return false;
                 }
             }
-            else
-                this.wascreated = false;
-            
-            if (regenerateChunk && !this.wascreated)
+            return false;
+        }
+
+        // Runs the server's block updates until the list is back under its
+        // limit or this tick's budget runs out, returning true once it's
+        // under. Flushing the list otherwise can mean lots of useless idle time
+        // while the server catches up slowly, see:
+        // https://github.com/Bukkit/CraftBukkit/pull/501
+        // In CB1.1 processing will ramp up as the list grows to 5% of the list per tick
+        // but equilibrium isn't reached until the millions, so this is still of use for
+        // users with memory concerns.
+        private boolean drainTickList(long now)
+        {
+            int size = adapter.getTickListSize(this.world);
+            if (size < 0)
+                return true;
+            this.ticks.setLimit(this.speed == GenerationSpeed.ALLATONCE ? 0 : TICKLIST_LIMIT);
+            this.ticks.sample(size, now);
+            for (int n = scheduler.getAllowance(this.ticks.getCost()); n > 0 && this.ticks.isOver(size); n--)
             {
-                this.world.regenerateChunk(this.x, this.z);
-                this.wascreated = true;
+                long start = clock.nanoTime();
+                trace.drainBegin();
+                if (!adapter.tickPending(this.world))
+                {
+                    // Probably CB version mismatch.
+                    if (debug) statusMsg("-- Warning: Failed to force server to keep up on ticklist processing. Probably unknown CraftBukkit version :(");
+                    return true;
+                }
+                int after = adapter.getTickListSize(this.world);
+                trace.drainEnd(size, after);
+                long took = clock.nanoTime() - start;
+                scheduler.spend(took);
+                metrics.getTimer(GenerationMetrics.Phase.TICKDRAIN).record(took, 1);
+                metrics.drained(size - after);
+                this.ticks.drained(size, after, took, now);
+                size = after;
             }
+            return !this.ticks.isOver(size);
         }
         
-        public void unload() { this.unload(false); }
-        public void unload(boolean force)
+        private String getTickTrend()
         {
-            if (this.world.isChunkLoaded(this.x, this.z))
-                this.world.unloadChunk(x, z, !force, !force);
+            double trend = this.ticks.getTrend();
+            return (trend > 0 ? "growing " : "shrinking ") + String.format("%.0f", Math.abs(trend)) + "/s";
         }
-    }
-    
-    // *very* simple class the parse arguments with quoting
-    private class NiceArgsParseIntException extends Throwable
-    {
-        private final static long serialVersionUID = -5360208863240437042L;
-        private String argName, badValue;
-        NiceArgsParseIntException(String argName, String badValue)
+        
+        private void printDebug() { this.printDebug(-1, 0); }
+        private void printDebug(long worknanos, int ticks)
         {
-            this.argName = argName;
-            this.badValue = badValue;
+            double pctusedmem = ((double)(runtime.totalMemory() - runtime.freeMemory()) / runtime.maxMemory());
+            long freemem = runtime.maxMemory() - runtime.totalMemory() + runtime.freeMemory();
+            String memstr = String.format("%.02f", 100*pctusedmem) + "% memory in use, " + String.format("%.02f", (double)freemem/(1024*1024)) + "MiB free, "
+                + String.format("%.02f", 100*memory.getOccupancy()) + "% " + (memory.getPoolName() != null ? memory.getPoolName() : "heap") + " after GC";
+            String elapsed = worknanos < 0 ? "" : String.format("%.2f", (double)worknanos / 1000000) + "ms of work over " + ticks + " ticks. ";
+            // It'll always be 0 in allatonce mode since we force-clean it --v
+            int ticksize = adapter.getTickListSize(this.world);
+            String tickstr = ticksize > 0 ? " - NextTickList at " + ticksize + " entries" : "";
+            if (ticksize > 0 && this.ticks.getCalls() > 0)
+                tickstr += ", " + this.getTickTrend() + ", " + String.format("%.0f", this.ticks.getDrainRate()) + "/s drained at "
+                    + String.format("%.2f", (double)this.ticks.getCost() / 1000000) + "ms a go";
+            String budgetstr = scheduler.getBudget() > 0 ? " - " + String.format("%.1f", (double)scheduler.getEffectiveBudget() / 1000000) + "ms/tick budget at " + String.format("%.1f", scheduler.getTps()) + " TPS"
+                + (memory.getFactor() < 1 ? ", " + String.format("%.0f", 100*memory.getFactor()) + "% for memory" : "")
+                + (saveio.getFactor() < 1 ? ", " + String.format("%.0f", 100*saveio.getFactor()) + "% for saving" : "") : "";
+            String iostr = saveio.getDepth() >= 0 ? " - " + saveio.getDepth() + " chunks in the server's save queue" : "";
+            String coststr = " - " + String.format("%.2f", (double)this.phasecost[SectionPhase.LOAD.ordinal()] / 1000000) + "ms/chunk load, "
+                + String.format("%.2f", (double)this.phasecost[SectionPhase.LIGHT.ordinal()] / 1000000) + "ms/chunk lighting, "
+                + this.relit + " relit, " + this.lightskipped + " skipped";
+            String savestr = this.saves == null ? "" : " - " + this.saves.size() + "/" + this.saves.getCapacity() + " chunks waiting to save, "
+                + this.saves.getSaved() + " saved, " + String.format("%.2f", (double)this.saves.getRegionGrowth() / (1024*1024)) + "MiB region growth";
+            String scanstr = this.existing == null ? "" : " - " + this.existing.getScanned() + " region files read, " + this.existing.getPresent() + " existing chunks"
+                + (this.repair ? ", " + this.existing.getModified() + " to relight" : "");
+            String cachestr = " - " + this.cache.size() + "/" + this.getCacheCapacity() + " chunks cached, "
+                + String.format("%.1f", 100 * this.cache.getHitRate()) + "% hits (" + this.cache.getHits() + " hits, " + this.cache.getMisses() + " misses)";
+            statusMsg("-- " + elapsed + this.held + " chunks held by this generation - " + memstr + tickstr + budgetstr + coststr + savestr + cachestr + scanstr + iostr);
+        }
+        
+        private void setPhase(SectionPhase p)
+        {
+            this.phase = p;
+            this.cursor = 0;
+            this.lightahead = 0;
+        }
+        
+        // returns true if complete
+        // queued is number of generations the plugin intends to run after this
+        // or -1 if the plugin intends to shutdown the server after this!
+        //
+        // Called every tick. Starts a new section if there isn't one in
+        // progress, then advances the current one as far as the scheduler's
+        // budget allows this tick.
+        public boolean runStep(int queued)
+        {
+            long now = clock.nanoTime();
+            long sincelast = this.lastrun > 0 ? now - this.lastrun : 0;
+            this.lastrun = now;
+            if (this.bulk)
+                return this.runReset(now);
+            if (this.starttime == 0)
+            {
+                this.starttime = clock.nanoTime();
+                // Look at what already exists, a section's region files at a
+                // time as it's filled. Regenerating wants everything, as
+                // does forcing lighting.
+                // Repairing works the other way around, it only wants what's there.
+                if ((this.prescan || this.repair) && !this.forceregeneration && this.xMin <= this.xMax)
+                    this.existing = new RegionFileIndex(getRegionFolder(this.world), this.repair ? this.since : 0);
+                int capacity = 0;
+                for (SectionPlanner p:this.planners)
+                    capacity = Math.max(capacity, p.getMaxChunks());
+                this.chunks = new ChunkBatch(capacity);
+                this.lightchecks = new Future<?>[capacity];
+                this.saves = new ChunkSaveQueue(getRegionFolder(this.world), Math.max(256, capacity));
+                if (this.profile)
+                {
+                    this.profiler = new PopulatorProfiler(this.world);
+                    this.profiler.install();
+                }
+            }
+            
+            // Saving what we've already made comes first, it's what frees
+            // up memory
+            this.drainSaves();
+            this.trimCache();
+            this.recordProgress();
+            
+            // Status message
+            String queuedtext = "";
+            if (queued > 0)
+                queuedtext = ChatColor.DARK_GRAY + " {" + ChatColor.GRAY + queued + " generations in queue" + ChatColor.DARK_GRAY + "}";
+            if (queued == -1)
+                queuedtext = ChatColor.DARK_GRAY + " {" + ChatColor.DARK_RED + "shutdown scheduled" + ChatColor.DARK_GRAY + "}";
+
+            if (!this.insection)
+            {
+                //
+                // Between sections - the only place we take a break or
+                // force the server to catch up, so we never sit on a
+                // half-loaded section.
+                //
+                
+                // Check memory. The governor slows us down as the old
+                // generation fills up, and stops new sections entirely once
+                // it's nearly full, until the server's own collections free
+                // some up.
+                String nag = null;
+                GenerationMetrics.Pause pause = null;
+                if (memory.isPaused())
+                {
+                    nag = "Insufficient free memory (" + String.format("%.02f", (double)memory.getHeadroom()/(1024*1024)) + "MiB after the last GC)-- taking a break to let the server catch up";
+                    pause = GenerationMetrics.Pause.MEMORY;
+                }
+                
+                // Check for /onlyWhenEmpty
+                if (this.onlywhenempty && getServer().getOnlinePlayers().length > 0)
+                {
+                    nag = "Paused while players are present";
+                    pause = GenerationMetrics.Pause.PLAYERS;
+                }
+                if (pause != null)
+                    metrics.paused(pause, sincelast);
+                
+                // Make the server keep up with its scheduled block updates,
+                // see TickListDrain
+                if (nag == null && this.forcekeepup && !this.drainTickList(now))
+                    nag = "Waiting for the server to catch up on " + this.ticks.getSize() + " scheduled block updates ("
+                        + String.format("%.0f", this.ticks.getDrainRate()) + "/s drained, " + this.getTickTrend() + ")";
+                
+                // Let saving catch up before making more to save. Only a
+                // tick or two normally, so not worth a message.
+                if (nag == null && this.saves.size() > this.saves.getCapacity() / 2)
+                    return false;
+                
+                // Status message
+                double pct = (double)this.position / totalregions;
+                int region = this.position + 1;
+                String prefix = ChatColor.DARK_GRAY + "[" + ChatColor.GOLD + String.format("%.2f", 100*pct) + "%" + ChatColor.DARK_GRAY + "]" + ChatColor.GRAY + " ";
+                
+                if (nag != null)
+                {
+                    this.nag(prefix + this.label + nag + queuedtext, now);
+                    return false;
+                }
+                else
+                    this.lastnag = 0;
+                
+                // Compute this before moving on to the next section
+                String partstext = "";
+                if (this.parts.size() > 1)
+                {
+                    for (GenerationPart part:this.parts)
+                        partstext += " " + String.format("%.0f", 100 * Math.min(1.0D, (double)part.done / Math.max(1, part.getTotal()))) + "%";
+                    partstext = ChatColor.DARK_GRAY + " {" + ChatColor.GRAY + "merged:" + partstext + ChatColor.DARK_GRAY + "}";
+                }
+                String statusmsg = prefix + this.label + ChatColor.GRAY + "Section " + ChatColor.WHITE + region + ChatColor.GRAY + "/" + ChatColor.WHITE + totalregions + partstext + queuedtext;
+                
+                // Get next region
+                this.insection = this.nextSection();
+                if (this.insection)
+                    trace.sectionBegin();
+                else if (this.skipping)
+                {
+                    scheduler.spend(clock.nanoTime() - now);
+                    return false;
+                }
+                
+                // Not done until everything we made is saved
+                if (!this.insection)
+                    this.finishing = true;
+                if (!this.insection && (!this.cache.isEmpty() || !this.saves.isEmpty()))
+                    return false;
+                if (!this.insection)
+                {
+                    // Generation complete
+                    long millis = (clock.nanoTime() - this.starttime) / 1000000;
+                    long seconds = millis / 1000;
+                    long minutes = seconds / 60;
+                    long hours = minutes / 60;
+                    long days = hours / 24;
+                    String took = (days > 0 ? String.format("%d days, ", days) : "")
+                        + (hours > 0 ? String.format("%d hours, ", hours % 24) : "")
+                        + (minutes > 0 ? String.format("%d minutes, ", minutes % 60) : "")
+                        + String.format("%d seconds", seconds % 60);
+                        
+                    statusMsg(this.label + "Generation complete in " + took + ". " + (queued > 0 ? "Loading next generation job" : "Have a nice day!") + queuedtext);
+                    if (debug) printDebug();
+                    this.stopProfiling();
+                    return true;
+                }
+                else
+                    statusMsg(statusmsg);
+                
+                // In force regeneration mode, force unload the area first, so all blocks only get populators
+                // run on them from their newly generated counterparts.
+                this.setPhase(this.forceregeneration ? SectionPhase.CLEAR : SectionPhase.LOAD);
+                this.sectionwork = clock.nanoTime() - now;
+                this.sectionticks = 0;
+                // Forcing saves above can be a good chunk of a tick on its own
+                scheduler.spend(this.sectionwork);
+            }
+            else if (this.onlywhenempty && this.phase != SectionPhase.UNLOAD && getServer().getOnlinePlayers().length > 0)
+            {
+                // Someone joined partway through a section. Hold on to what we have loaded and
+                // pick up where we left off once they're gone.
+                metrics.paused(GenerationMetrics.Pause.PLAYERS, sincelast);
+                this.nag(this.label + "Paused while players are present", now);
+                return false;
+            }
+            
+            //
+            // Advance the section by as many chunks as this tick's budget allows
+            //
+            this.sectionticks++;
+            while (this.insection)
+            {
+                SectionPhase p = this.phase;
+                int allowance = scheduler.getAllowance(this.phasecost[p.ordinal()]);
+                if (allowance == 0)
+                    break;
+                
+                long start = clock.nanoTime();
+                this.blocked = false;
+                int done = this.advance(allowance);
+                long elapsed = clock.nanoTime() - start;
+                scheduler.spend(elapsed);
+                metrics.getTimer(p.getTimedAs()).record(elapsed, done);
+                this.sectionwork += elapsed;
+                if (this.blocked)
+                    break;
+                
+                // Feed what this actually cost back into the estimate, weighted by how
+                // many chunks it covered so a single odd chunk doesn't swing it around
+                if (done > 0)
+                {
+                    double weight = Math.min(1.0D, done / 64.0D);
+                    this.phasecost[p.ordinal()] = (long)(this.phasecost[p.ordinal()] * (1 - weight) + (elapsed / done) * weight);
+                }
+            }
+            
+            return false;
+        }
+        
+        // /bulk: clear the whole area out of the region files in one go, a
+        // stage at a time, then carry on as a plain generation of what's now
+        // empty ground. Returns true if the job is over, which only happens
+        // for /dryRun or an error.
+        private boolean runReset(long now)
+        {
+            switch (this.resetstage)
+            {
+                case PLAN:
+                    if (!adapter.canCloseRegionFiles())
+                    {
+                        statusMsg(this.label + "Error: Can't close the server's region files on this build, /bulk isn't possible. Regenerating chunk by chunk instead.");
+                        this.bulk = false;
+                        return false;
+                    }
+                    ChunkShape.Union shape = new ChunkShape.Union();
+                    for (ChunkShape.Union c:this.clusters)
+                        shape.add(c);
+                    File backups = null;
+                    if (this.backup)
+                        backups = new File(getDataFolder(), "backups" + File.separator + this.world.getName() + "-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()));
+                    this.reset = new RegionReset(getRegionFolder(this.world), shape, backups);
+                    try { this.reset.plan(); }
+                    catch (IOException e)
+                    {
+                        statusMsg(this.label + "Error: Couldn't read the region files of \"" + this.world.getName() + "\" (" + e.getMessage() + "), generation stopped.");
+                        return true;
+                    }
+                    statusMsg(this.label + (this.dryrun ? "Dry run: would throw away " : "Throwing away ") + this.reset.getChunks() + " chunks ("
+                        + String.format("%.1f", (double)this.reset.getBytes() / (1024 * 1024)) + "MiB) in " + this.reset.getRegions() + " region files, "
+                        + this.reset.getWholeFiles() + " of them deleted outright" + (backups != null ? ", backing them up to " + backups : ""));
+                    scheduler.spend(clock.nanoTime() - now);
+                    if (this.dryrun)
+                        return true;
+                    this.resetstage = ResetStage.UNLOAD;
+                    return false;
+                case UNLOAD:
+                    int kept = 0;
+                    for (Chunk c:this.world.getLoadedChunks())
+                    {
+                        int x = c.getX(), z = c.getZ();
+                        if (x < this.xMin || x > this.xMax || z < this.zMin || z > this.zMax || !this.contains(x, z))
+                            continue;
+                        if (this.pinned.contains(ChunkBatch.pack(x, z)))
+                            continue;
+                        this.kickPlayers(x, z, "The region you are in was regenerated. Please rejoin");
+                        this.unloadChunk(x, z, true);
+                        if (this.world.isChunkLoaded(x, z))
+                        {
+                            this.pinned.add(ChunkBatch.pack(x, z));
+                            kept++;
+                        }
+                    }
+                    // Spawn chunks, usually. The server will write them back
+                    // over the cleared entries when it saves them.
+                    if (kept > 0)
+                        statusMsg(this.label + "Warning: " + kept + " chunks in the area couldn't be unloaded and will keep their old terrain");
+                    scheduler.spend(clock.nanoTime() - now);
+                    this.resetstage = ResetStage.SAVE;
+                    return false;
+                case SAVE:
+                    // Anything still queued would be written into the files
+                    // after we've cleared them
+                    if (adapter.getSaveQueueDepth() > 0)
+                    {
+                        this.nag(this.label + "Waiting for the server to finish saving before clearing the area", now);
+                        return false;
+                    }
+                    this.resetstage = ResetStage.BACKUP;
+                    return false;
+                case BACKUP:
+                    try
+                    {
+                        while (scheduler.getAllowance(this.savecost) > 0)
+                        {
+                            long start = clock.nanoTime();
+                            boolean more = this.reset.backupNext();
+                            scheduler.spend(clock.nanoTime() - start);
+                            if (!more)
+                            {
+                                this.resetstage = ResetStage.APPLY;
+                                break;
+                            }
+                        }
+                    }
+                    catch (IOException e)
+                    {
+                        statusMsg(this.label + "Error: Couldn't back up region files to " + this.reset.getBackups() + " (" + e.getMessage() + "), generation stopped without changing anything.");
+                        return true;
+                    }
+                    return false;
+                case APPLY:
+                    // Players and plugins can load chunks again while we
+                    // back up, and the server save them. Checked in the same
+                    // tick as the files are changed, so nothing can slip in
+                    // between.
+                    if (this.isAreaLoaded())
+                    {
+                        this.nag(this.label + "Chunks in the area were loaded again, unloading them before clearing it", now);
+                        this.resetstage = ResetStage.UNLOAD;
+                        return false;
+                    }
+                    if (adapter.getSaveQueueDepth() > 0)
+                    {
+                        this.resetstage = ResetStage.SAVE;
+                        return false;
+                    }
+                    // What it saved may have started new region files in the
+                    // area, or added chunks to ones that had none in it
+                    try { this.reset.plan(); }
+                    catch (IOException e)
+                    {
+                        statusMsg(this.label + "Error: Couldn't read the region files of \"" + this.world.getName() + "\" (" + e.getMessage() + "), generation stopped without changing anything.");
+                        return true;
+                    }
+                    if (!this.reset.isBackedUp())
+                    {
+                        this.resetstage = ResetStage.BACKUP;
+                        return false;
+                    }
+                    // All in the one tick, so the server can't open a file
+                    // again in between
+                    try
+                    {
+                        if (!adapter.closeRegionFiles())
+                            throw new IOException("the server wouldn't close its region files");
+                        this.reset.apply();
+                    }
+                    catch (IOException e)
+                    {
+                        statusMsg(this.label + "Error: Couldn't clear the area out of the region files (" + e.getMessage() + "), generation stopped.");
+                        return true;
+                    }
+                    scheduler.spend(clock.nanoTime() - now);
+                    statusMsg(this.label + "Cleared " + this.reset.getChunks() + " chunks in " + String.format("%.2f", (double)(clock.nanoTime() - now) / 1000000) + "ms, generating the area again");
+                    // From here on it's an ordinary generation, which is
+                    // what a resumed job should pick up as
+                    this.bulk = false;
+                    this.forceregeneration = false;
+                    this.reset = null;
+                    this.pinned.clear();
+                    this.plan();
+                    if (journal != null && this.jobid != 0)
+                        journal.recordSpec(this.jobid, this.getSpec());
+                    return false;
+            }
+            return false;
+        }
+        
+        // Put the world's populators back and report what they cost, for
+        // /profile
+        public void stopProfiling()
+        {
+            if (this.profiler == null)
+                return;
+            this.profiler.uninstall();
+            statusMsg(this.label + "Generation costs in \"" + this.world.getName() + "\", costliest first:");
+            for (String line:this.profiler.getReport())
+                statusMsg(this.label + "  " + line);
+            this.profiler = null;
+        }
+        
+        // Are any of the area's chunks loaded, other than pinned ones
+        private boolean isAreaLoaded()
+        {
+            for (Chunk c:this.world.getLoadedChunks())
+            {
+                int x = c.getX(), z = c.getZ();
+                if (x >= this.xMin && x <= this.xMax && z >= this.zMin && z <= this.zMax && this.contains(x, z)
+                    && !this.pinned.contains(ChunkBatch.pack(x, z)))
+                    return true;
+            }
+            return false;
+        }
+        
+        // Is the chunk in any of our areas
+        private boolean contains(int x, int z)
+        {
+            for (ChunkShape.Union c:this.clusters)
+                if (c.contains(x, z))
+                    return true;
+            return false;
+        }
+        
+        private void nag(String msg, long now)
+        {
+            if (this.lastnag + 300000000000L < now)
+            {
+                this.lastnag = now;
+                statusMsg(msg);
+            }
+            if (this.lastdebugnag + 3000000000L < now)
+            {
+                if (debug) printDebug();
+                this.lastdebugnag = now;
+            }
+        }
+        
+        // Do up to max chunks' worth of work on the current phase, moving
+        // on to the next phase when this one runs out of chunks. Returns
+        // how many chunks were actually worked on - chunks a phase doesn't
+        // apply to are skipped for free.
+        private int advance(int max)
+        {
+            int done = 0;
+            int size = this.chunks.size();
+            while (done < max && this.cursor < size)
+            {
+                int i = this.cursor++;
+                int x = this.chunks.getX(i), z = this.chunks.getZ(i);
+                switch (this.phase)
+                {
+                    case CLEAR:
+                        if (!this.chunks.is(i, ChunkBatch.LOAD))
+                            break;
+                        this.kickPlayers(x, z, "The region you are in was regenerated. Please rejoin");
+                        this.unloadChunk(x, z, true);
+                        done++;
+                        break;
+                    case LOAD:
+                        // In force regeneration mode, we will load everything but the outer edge first, then load (not
+                        // regenerate) that outer rim so populators trigger. Unless we're right at the edge of the requested
+                        // generation area, those chunks will be non-edge-chunks in a section adjacent to this, due to
+                        // overlap = 2
+                        if (this.chunks.is(i, ChunkBatch.LOAD) && (!this.forceregeneration || !this.chunks.isEdge(i)))
+                        {
+                            Integer cached = this.cache.take(x, z);
+                            if (cached != null && this.world.isChunkLoaded(x, z))
+                            {
+                                // Still here from an earlier section, whose
+                                // journal record now waits on us
+                                if (cached != 0)
+                                {
+                                    this.chunks.setCreated(i);
+                                    this.taken.put(ChunkBatch.pack(x, z), cached);
+                                }
+                            }
+                            else
+                            {
+                                if (cached != null)
+                                    this.held = Math.max(0, this.held - 1); // Server unloaded it under us
+                                else if (!this.world.isChunkLoaded(x, z))
+                                    this.cache.miss();
+                                trace.loadBegin();
+                                boolean created = this.loadChunk(x, z, this.forceregeneration);
+                                trace.loadEnd(x, z, created, this.forceregeneration, this.chunks.isEdge(i));
+                                if (created)
+                                    this.chunks.setCreated(i);
+                                metrics.loaded(created);
+                                this.held++;
+                            }
+                            this.loaded++;
+                            done++;
+                        }
+                        break;
+                    case RIM:
+                        if (this.chunks.is(i, ChunkBatch.LOAD) && this.chunks.isEdge(i))
+                        {
+                            trace.loadBegin();
+                            boolean created = this.loadChunk(x, z, false);
+                            trace.loadEnd(x, z, created, false, true);
+                            if (created)
+                                this.chunks.setCreated(i);
+                            metrics.loaded(created);
+                            this.loaded++;
+                            this.held++;
+                            done++;
+                        }
+                        break;
+                    case LIGHT:
+                        if (!this.chunks.is(i, ChunkBatch.LIGHT))
+                            break;
+                        trace.lightBegin();
+                        try
+                        {
+                            // /lighting:force relights everything, otherwise
+                            // only what SkyLightCheck says is unlit, see
+                            // isLightingChecked for what it doesn't look at
+                            boolean relight = this.fixlighting == GenerationLighting.EXTREME;
+                            if (!relight && !this.isLightingChecked(i))
+                                relight = adapter.isForcedLightingRequired();
+                            else if (!relight)
+                            {
+                                this.checkLighting(i);
+                                if (this.lightchecks[i] != null && !this.lightchecks[i].isDone())
+                                {
+                                    // Workers are behind, give them a tick
+                                    this.cursor = i;
+                                    this.blocked = true;
+                                    return done;
+                                }
+                                relight = this.needsLighting(i);
+                            }
+                            if (relight)
+                                relight = this.fixLighting(x, z);
+                            else
+                            {
+                                this.lightskipped++;
+                                metrics.lightSkipped();
+                            }
+                            trace.lightEnd(x, z, relight);
+                        }
+                        catch (Exception e)
+                        {
+                            // ClassCastException, MethodNotFound exception, or even an error inside craftbukkit.
+                            // Either way, stop lighting for this generation.
+                            if (e instanceof ClassCastException)
+                                statusMsg("Error: WorldGenerationControl only supports lighting on CraftBukkit due to Bukkit API limitations. Disabling lighting for this generation.");
+                            else
+                                statusMsg("Error: Error in CraftBukkit while generating lighting (probably an unsupported minecraft version). Disabling lighting for this generation.");
+                            this.fixlighting = GenerationLighting.NONE;
+                            this.cursor = size;
+                        }
+                        done++;
+                        break;
+                    case UNLOAD:
+                        if (!this.chunks.is(i, ChunkBatch.UNLOAD))
+                            break;
+                        Integer was = this.taken.remove(ChunkBatch.pack(x, z));
+                        int tag = was != null ? earliest(this.position, was) : this.position;
+                        // Kept around for the next section, trimCache unloads
+                        // it later if it isn't wanted
+                        if (this.getCacheCapacity() > 0)
+                        {
+                            if (this.cache.size() >= 2 * this.getCacheCapacity())
+                            {
+                                // Eviction can't keep up, wait for it
+                                this.cursor = i;
+                                this.blocked = true;
+                                return done;
+                            }
+                            // Rows a frontier carried in from the last band
+                            // may have been created there, and are ours now
+                            this.cache.put(x, z, this.chunks.wasCreated(i) || !this.chunks.is(i, ChunkBatch.LOAD) ? tag : 0);
+                        }
+                        // Chunks we made are saved behind us by drainSaves
+                        else if (!this.chunks.wasCreated(i))
+                        {
+                            this.unloadChunk(x, z, false);
+                            this.held = Math.max(0, this.held - 1);
+                        }
+                        else if (!this.saves.offer(x, z, tag))
+                        {
+                            // Full, pick up here once it's caught up
+                            this.cursor = i;
+                            this.blocked = true;
+                            return done;
+                        }
+                        done++;
+                        break;
+                }
+            }
+            
+            if (this.cursor >= size)
+            {
+                switch (this.phase)
+                {
+                    case CLEAR:
+                        this.setPhase(SectionPhase.LOAD);
+                        break;
+                    case LOAD:
+                    case RIM:
+                    case LIGHT:
+                        SectionPhase next = this.nextPhase(this.phase);
+                        if (next == SectionPhase.UNLOAD)
+                            Arrays.fill(this.lightchecks, null);
+                        this.setPhase(next);
+                        break;
+                    case UNLOAD:
+                        // Section complete
+                        SectionPlanner planner = this.planners.get(this.currentplanner);
+                        trace.sectionEnd(this.world.getName(), this.position, planner.getX1(), planner.getZ1(), planner.getX2(), planner.getZ2(), size, this.sectionticks);
+                        this.insection = false;
+                        this.chunks.clear();
+                        this.creditSection(planner, true);
+                        this.completed = this.position;
+                        this.recordProgress();
+                        if (debug) this.printDebug(this.sectionwork, this.sectionticks);
+                        break;
+                }
+            }
+            return done;
+        }
+        
+        // The phase after LOAD, RIM or LIGHT, passing over the ones this
+        // generation doesn't do: the rim is only for /destroyAndRegenerateArea
+        // and lighting only if it's wanted and the server can do it
+        private SectionPhase nextPhase(SectionPhase phase)
+        {
+            if (phase == SectionPhase.LOAD && this.forceregeneration)
+                return SectionPhase.RIM;
+            if (phase != SectionPhase.LIGHT && this.fixlighting != GenerationLighting.NONE && adapter.canRelight())
+                return SectionPhase.LIGHT;
+            return SectionPhase.UNLOAD;
+        }
+        
+        // Tell the journal how many sections are done, as far as the first
+        // one with created chunks still waiting in the save queue or cache,
+        // or loaded again by a later section
+        private void recordProgress()
+        {
+            if (journal == null || this.jobid == 0 || this.completed <= this.journaled)
+                return;
+            int waiting = earliest(this.saves.getEarliest(), this.cache.getEarliest());
+            for (Integer tag:this.taken.values())
+                waiting = earliest(waiting, tag);
+            int done = waiting == 0 ? this.completed : Math.min(this.completed, waiting - 1);
+            if (done > this.journaled)
+            {
+                journal.recordDone(this.jobid, done);
+                this.journaled = done;
+            }
+        }
+        
+        // Save and unload queued chunks, as many as the budget allows
+        private void drainSaves()
+        {
+            while (!this.saves.isEmpty())
+            {
+                int allowance = scheduler.getAllowance(this.savecost);
+                if (allowance == 0)
+                    break;
+                long start = clock.nanoTime();
+                trace.saveBegin();
+                int done = 0, stuck = 0;
+                while (done < allowance && stuck < this.saves.size())
+                {
+                    int tag = this.saves.peekTag();
+                    long key = this.saves.poll();
+                    int x = ChunkBatch.unpackX(key), z = ChunkBatch.unpackZ(key);
+                    done++;
+                    if (this.world.isChunkLoaded(x, z))
+                    {
+                        this.saves.saving(x, z);
+                        trace.unloadBegin();
+                        boolean saved = this.world.unloadChunk(x, z, true, true);
+                        trace.unloadEnd(x, z, saved);
+                        if (!saved)
+                        {
+                            // In use, someone's standing in it. Nothing was
+                            // saved, so it goes round again, still holding
+                            // up its section's journal record.
+                            this.saves.offer(x, z, tag);
+                            stuck++;
+                            continue;
+                        }
+                        this.saves.saved();
+                        metrics.unloaded(true);
+                    }
+                    this.held = Math.max(0, this.held - 1);
+                }
+                long elapsed = clock.nanoTime() - start;
+                scheduler.spend(elapsed);
+                metrics.getTimer(GenerationMetrics.Phase.SAVE).record(elapsed, done);
+                trace.saveEnd(done, this.saves.size());
+                double weight = Math.min(1.0D, done / 64.0D);
+                this.savecost = (long)(this.savecost * (1 - weight) + (elapsed / done) * weight);
+                if (stuck > 0 && stuck >= this.saves.size())
+                {
+                    // Everything left is in use. At the end of the generation
+                    // that could be forever, so save the whole world instead
+                    // and leave them loaded.
+                    if (this.finishing)
+                        this.saveInUse();
+                    break;
+                }
+            }
+        }
+        
+        // Saves the chunks in the save queue that can't be unloaded, along
+        // with everything else the world has loaded, and lets go of them
+        private void saveInUse()
+        {
+            long start = clock.nanoTime();
+            trace.saveBegin();
+            int done = 0;
+            while (!this.saves.isEmpty())
+            {
+                long key = this.saves.poll();
+                this.saves.saving(ChunkBatch.unpackX(key), ChunkBatch.unpackZ(key));
+                done++;
+            }
+            this.world.save();
+            for (int i = 0; i < done; i++)
+                this.saves.saved();
+            this.held = Math.max(0, this.held - done);
+            long elapsed = clock.nanoTime() - start;
+            scheduler.spend(elapsed);
+            metrics.getTimer(GenerationMetrics.Phase.SAVE).record(elapsed, done);
+            trace.saveEnd(done, 0);
+        }
+        
+        private int kickPlayers(int x, int z, String msg)
+        {
+            int kicked = 0;
+            if (this.world.isChunkLoaded(x, z))
+            {
+                for (Entity ent:this.world.getChunkAt(x, z).getEntities())
+                    if (ent instanceof Player)
+                    {
+                        ((Player)ent).kickPlayer(msg);
+                        kicked++;
+                    }
+            }
+            return kicked;
+        }
+        
+        // Starts SkyLightChecks on the section's LIGHT chunks, up to
+        // LIGHT_AHEAD past chunk i. Snapshots have to be taken here on the
+        // main thread, but are only a copy, the looking is done by the
+        // plugin's lighting workers.
+        private void checkLighting(int i)
+        {
+            int size = this.chunks.size();
+            for (this.lightahead = Math.max(this.lightahead, i); this.lightahead < Math.min(size, i + LIGHT_AHEAD); this.lightahead++)
+            {
+                int j = this.lightahead;
+                this.lightchecks[j] = null;
+                if (!this.chunks.is(j, ChunkBatch.LIGHT) || !this.isLightingChecked(j) || !this.world.isChunkLoaded(this.chunks.getX(j), this.chunks.getZ(j)))
+                    continue;
+                ChunkSnapshot snapshot = this.world.getChunkAt(this.chunks.getX(j), this.chunks.getZ(j)).getChunkSnapshot(true, false, false);
+                this.lightchecks[j] = getLightingPool().submit(new SkyLightCheck(snapshot, this.world.getMaxHeight()));
+            }
+        }
+        
+        // Whether chunk i is worth a SkyLightCheck. Servers that don't light
+        // new chunks (1.3+) only ever give them the fast pass, so those are
+        // relit without looking. The nether and the end have no sky to
+        // check, so there every chunk is relit if the server doesn't light
+        // new chunks and none are if it does.
+        private boolean isLightingChecked(int i)
+        {
+            if (this.world.getEnvironment() != World.Environment.NORMAL)
+                return false;
+            return !this.chunks.wasCreated(i) || !adapter.isForcedLightingRequired();
+        }
+        
+        // What chunk i's SkyLightCheck found, which must be done
+        private boolean needsLighting(int i)
+        {
+            Future<?> check = this.lightchecks[i];
+            this.lightchecks[i] = null;
+            if (check == null)
+                return false;
+            try
+            {
+                return (Boolean)check.get();
+            }
+            catch (Exception e)
+            {
+                // Couldn't tell, better to relight
+                return true;
+            }
+        }
+        
+        // Try to call the craftbukkit lighting update.
+        // This will throw exceptions if: Server isn't craftbukkit, craftbukkit isn't the expected version, craftbukkit has an error...
+        // *catch exceptions* if you don't want to assume we're running on compatible craftbukkit.
+        //
+        // Returns true if it was relit.
+        private boolean fixLighting(int x, int z)
+        {
+            if (!this.world.isChunkLoaded(x, z) || !adapter.canRelight()) return false;
+            
+            // relight 'resets' the lighting for a chunk, doing fast lighting on everything and marking them all as needing full lighting
+            // Don't do it on chunks without their adjacents loaded, since it will then fail to fix them and we're actually breaking
+            // potentially good lighting. Edge chunks never make it here - with overlap=2, they will be a non-edge chunk in at least one
+            // region, where we can also guarantee their peers are loaded (and so the chunk populated), but the server may have
+            // unloaded one since.
+            for (int dx = -1; dx <= 1; dx++)
+            {
+                for (int dz = -1; dz <= 1; dz++)
+                {
+                    if (!this.world.isChunkLoaded(x + dx, z + dz))
+                    {
+                        this.lightskipped++;
+                        metrics.lightSkipped();
+                        return false;
+                    }
+                }
+            }
+            adapter.relight(this.world.getChunkAt(x, z));
+            this.relit++;
+            metrics.relit();
+            return true;
+        }
+        
+        // Returns true if the chunk didn't exist before
+        private boolean loadChunk(int x, int z, boolean regenerateChunk)
+        {
+            if (this.profiler != null)
+                this.profiler.loadBegin();
+            boolean wascreated = false;
+            if (!this.world.isChunkLoaded(x, z))
+            {
+                // Try to load it without allowing generation.
+                // to determine if it already existed. Repairs never generate.
+                if (!this.world.loadChunk(x, z, false) && !this.repair)
+                {
+                    this.world.loadChunk(x, z, true);
+                    wascreated = true;
+                }
+            }
+            
+            if (regenerateChunk && !wascreated)
+            {
+                this.world.regenerateChunk(x, z);
+                wascreated = true;
+            }
+            if (this.profiler != null)
+                this.profiler.loadEnd(wascreated);
+            return wascreated;
+        }
+        
+        private void unloadChunk(int x, int z, boolean force)
+        {
+            if (this.world.isChunkLoaded(x, z))
+            {
+                trace.unloadBegin();
+                this.world.unloadChunk(x, z, !force, !force);
+                trace.unloadEnd(x, z, !force);
+                metrics.unloaded(false);
+            }
+        }
+        
+        // Returns number of chunks queued
+        public int addCircularRegion(World world, int xCenter, int zCenter, int radius)
+        {
+            return this._addRegion(_toChunk(xCenter - radius), _toChunk(zCenter - radius), _toChunk(xCenter + radius), _toChunk(zCenter + radius), _toChunk(xCenter), _toChunk(zCenter), _toChunk(radius));
+        }
+        // Returns number of chunks queued
+        public int addSquareRegion(World world, int xStart, int zStart, int xEnd, int zEnd)
+        {
+            return this._addRegion(_toChunk(xStart), _toChunk(zStart), _toChunk(xEnd), _toChunk(zEnd), 0, 0, 0);
+        }
+        
+        // Returns number of chunks queued
+        // Every region file the world has, for /genrelight. Runs of them
+        // along a row go in as one rectangle, to keep the shape small.
+        public int addRegionFiles()
+        {
+            long regions[] = RegionFileIndex.listRegions(getRegionFolder(this.world));
+            // By row then column. Unlike pack(), adding the signed x keeps
+            // negative columns in order.
+            for (int i = 0; i < regions.length; i++)
+                regions[i] = ((long)ChunkBatch.unpackZ(regions[i]) << 32) + ChunkBatch.unpackX(regions[i]);
+            Arrays.sort(regions);
+            int count = 0;
+            for (int i = 0; i < regions.length;)
+            {
+                int rx1 = (int)regions[i], rx2 = rx1;
+                int rz = (int)((regions[i] - rx1) >> 32);
+                for (i++; i < regions.length && regions[i] == regions[i - 1] + 1 && (int)regions[i] == rx2 + 1; i++)
+                    rx2++;
+                count += this._addRegion(rx1 << 5, rz << 5, (rx2 << 5) + 31, (rz << 5) + 31, 0, 0, 0);
+            }
+            return count;
+        }
+        
+        // Returns number of chunks queued
+        // Points are in block coordinates, and chunks are generated if their
+        // middle is inside the polygon
+        public int addPolygonRegion(World world, double xs[], double zs[])
+        {
+            return this._addPolygon(xs, zs, 0);
+        }
+        
+        private int _addPolygon(double xs[], double zs[], int part)
+        {
+            if (xs.length < 3 || xs.length != zs.length)
+                return 0;
+            ChunkShape shape = new ChunkShape.Polygon(xs, zs);
+            String area = "polygon";
+            for (int i = 0; i < xs.length; i++)
+                area += " " + xs[i] + " " + zs[i];
+            if (debug) statusMsg("-- Preparing to generate polygon with " + xs.length + " points, in chunk coordinates: xStart: " + shape.getXMin() + ", zStart: " + shape.getZMin() + " xEnd: " + shape.getXMax() + ", zEnd: " + shape.getZMax());
+            return this._addShape(shape.getXMin(), shape.getZMin(), shape.getXMax(), shape.getZMax(), shape, area, part);
+        }
+        
+        // Returns number of chunks queued
+        // values are in *chunk coordinates* (see _toChunk)
+        private int _addRegion(int xStart, int zStart, int xEnd, int zEnd, int xCenter, int zCenter, int radius)
+        {
+            return this._addRegion(xStart, zStart, xEnd, zEnd, xCenter, zCenter, radius, 0);
+        }
+        private int _addRegion(int xStart, int zStart, int xEnd, int zEnd, int xCenter, int zCenter, int radius, int part)
+        {
+            if (debug) statusMsg("-- Preparing to generate region, in chunk coordinates: xStart: " + xStart + ", zStart: " + zStart + " xEnd: " + xEnd + ", zEnd: " + zEnd + ", xCenter: " + xCenter + ", zCenter: " + zCenter + ", radius: " + radius);
+            if (radius < 0)
+                return 0;
+            return this._addShape(xStart, zStart, xEnd, zEnd, radius == 0 ? null : new ChunkShape.Ellipse(xCenter, zCenter, radius, radius),
+                xStart + " " + zStart + " " + xEnd + " " + zEnd + " " + xCenter + " " + zCenter + " " + radius, part);
+        }
+        
+        // Returns number of chunks queued
+        // The part of shape inside the rectangle, or all of it if shape is
+        // null. area is how to rebuild it for the journal, part which merged
+        // generation it belongs to.
+        private int _addShape(int xStart, int zStart, int xEnd, int zEnd, ChunkShape shape, String area, int part)
+        {
+            if (xStart > xEnd || zStart > zEnd)
+                return 0;
+            // Circles and polygons always fit their rectangle
+            ChunkShape piece = shape == null ? new ChunkShape.Rect(xStart, zStart, xEnd, zEnd) : shape;
+            long count = piece.count(xStart, zStart, xEnd, zEnd);
+            if (count == 0)
+                return 0;
+            this.areas.add(part == 0 ? area : "part=" + part + " " + area);
+            this.xMin = Math.min(this.xMin, piece.getXMin());
+            this.zMin = Math.min(this.zMin, piece.getZMin());
+            this.xMax = Math.max(this.xMax, piece.getXMax());
+            this.zMax = Math.max(this.zMax, piece.getZMax());
+            while (this.parts.size() <= part)
+                this.parts.add(new GenerationPart());
+            this.parts.get(part).add(piece);
+            
+            // Merge with every cluster it touches, and anything those now
+            // touch, keeping the place of the first
+            ChunkShape.Union cluster = new ChunkShape.Union();
+            cluster.add(piece);
+            int at = this.clusters.size();
+            boolean merged = true;
+            while (merged)
+            {
+                merged = false;
+                for (int i = 0; i < this.clusters.size(); i++)
+                {
+                    ChunkShape.Union c = this.clusters.get(i);
+                    if (c.getXMin() - 2 <= cluster.getXMax() && cluster.getXMin() - 2 <= c.getXMax()
+                        && c.getZMin() - 2 <= cluster.getZMax() && cluster.getZMin() - 2 <= c.getZMax())
+                    {
+                        cluster.add(c);
+                        this.clusters.remove(i);
+                        at = Math.min(at, i);
+                        merged = true;
+                        break;
+                    }
+                }
+            }
+            this.clusters.add(at, cluster);
+            this.plan();
+            
+            return (int)Math.min(count, Integer.MAX_VALUE);
+        }
+        
+        private void plan()
+        {
+            // Sections are handed out lazily as we go. Regenerating has to clear
+            // a whole section before loading any of it, which a frontier can't do
+            // without wiping the rows it's carrying.
+            this.planners.clear();
+            this.totalregions = 0;
+            this.plannedsize = this.regionsize;
+            for (ChunkShape.Union c:this.clusters)
+            {
+                SectionPlanner planner = this.newPlanner(c, this.regionsize);
+                this.planners.add(planner);
+                this.totalregions += planner.getTotal();
+            }
+        }
+        
+        private SectionPlanner newPlanner(ChunkShape.Union c, int size)
+        {
+            return new SectionPlanner(c.getXMin(), c.getZMin(), c.getXMax(), c.getZMax(), c, size, this.frontier && !this.forceregeneration, this.align, this.order);
+        }
+        
+        private int _toChunk(int worldCoordinate)
+        {
+            // -1 through -16 are chunk -1,
+            // 0 through 15 are chunk 0,
+            // 16 through 32 are chunk 1...
+            if (worldCoordinate < 0)
+                return (worldCoordinate + 1)/16 - 1;
+            else
+                return worldCoordinate/16;
+        }
+    }
+    
+    // *very* simple class the parse arguments with quoting. Static, so
+    // ArgsBench can use it without a plugin.
+    static class NiceArgsParseIntException extends Throwable
+    {
+        private final static long serialVersionUID = -5360208863240437042L;
+        private String argName, badValue;
+        NiceArgsParseIntException(String argName, String badValue)
+        {
+            this.argName = argName;
+            this.badValue = badValue;
         }
         public String getName() { return this.argName; }
         public String getBadValue() { return this.badValue; }
     }
-    private class NiceArgsParseException extends Throwable
+    static class NiceArgsParseException extends Throwable
     {
         private final static long serialVersionUID = -1873367217076514922L;
         private String error;
         NiceArgsParseException(String error) { this.error = error; }
         public String getError() { return this.error; }
     }
-    private class NiceArgs
+    static class NiceArgs
     {
         private ArrayList<String> cleanArgs;
         private HashMap<String, String> switches;
@@ -700,73 +1880,243 @@ public class WorldGenerationControl extends JavaPlugin implements Runnable
                     throw new NiceArgsParseException("Error - Mismatched/errant quotes in arguments. You can escape quotes in world names with backslashes, e.g. \\\"");
             }
         }
-        public int length() { return this.cleanArgs.size(); }
-        public String get(int x) { return this.cleanArgs.get(x); }
-        public String getSwitch(String key) { return switches.get(key.toLowerCase()); }
-        public int getInt(int i, String argName) throws NiceArgsParseIntException
+        public int length() { return this.cleanArgs.size(); }
+        public String get(int x) { return this.cleanArgs.get(x); }
+        public String getSwitch(String key) { return switches.get(key.toLowerCase()); }
+        public int getInt(int i, String argName) throws NiceArgsParseIntException
+        {
+            try
+                { return Integer.parseInt(this.cleanArgs.get(i)); }
+            catch (NumberFormatException e)
+                { throw new NiceArgsParseIntException(argName, this.cleanArgs.get(i)); }
+        }
+    }
+
+    private Logger logger = Bukkit.getLogger();
+    private Runtime runtime = Runtime.getRuntime();
+    private GenerationScheduler scheduler = new GenerationScheduler();
+    // What we run on, see GenerationHost
+    private GenerationHost host;
+    private MemoryGovernor memory;
+    private GenerationClock clock;
+    // What the server can do beyond the Bukkit API, found in onEnable
+    private ServerAdapter adapter = null;
+    private SaveQueueMonitor saveio = null;
+    // Counters and timings for JMX, see GenerationMetrics
+    private GenerationMetrics metrics = new GenerationMetrics();
+    // Spans for a profiler, see GenerationTrace. Found in onEnable.
+    private GenerationTrace trace = new GenerationTrace();
+    // Threads SkyLightChecks run on, see getLightingPool
+    private ExecutorService lightpool = null;
+    // What a held chunk costs in each world, see sizeGeneration
+    private HashMap<String, HeapCostModel> heapcosts = new HashMap<String, HeapCostModel>();
+    private int lastcollections = 0;
+    private GenerationQueue<GenerationRegion> jobs = new GenerationQueue<GenerationRegion>();
+    // The generation the scheduler's budget was last configured from
+    private GenerationRegion configured = null;
+    private int taskId = 0;
+    private boolean quitAfter = false;
+    private GenerationJournal journal = null;
+
+    public WorldGenerationControl()
+    {
+        this(new GenerationHost());
+    }
+
+    WorldGenerationControl(GenerationHost host)
+    {
+        this.host = host;
+        this.memory = host.getMemory();
+        this.clock = host.getClock();
+    }
+
+    public void onEnable()
+    {
+        statusMsg("v"+VERSION+" Loaded");
+        
+        // Everything we need from the server that isn't in Bukkit is looked up
+        // here, once
+        this.adapter = this.host.getAdapter(getServer());
+        statusMsg("Running on " + this.adapter.getName());
+        if (!this.adapter.canRelight())
+            statusMsg("WARNING: Failed to find lighting fix method, /lighting will not work for this CB build");
+        
+        this.memory.start();
+        this.loadHeapCosts();
+        // The save thread is shared by every world
+        this.saveio = new SaveQueueMonitor(this.adapter);
+        if (!this.saveio.isAvailable())
+            statusMsg("Warning: Can't see the server's chunk save queue on this build, generation won't slow down for it");
+        this.trace = GenerationTrace.forJvm();
+        if (this.trace.isAvailable())
+            statusMsg("Java Flight Recorder found, generation events will show up in its recordings");
+        try { this.metrics.register(); }
+        catch (JMException e) { statusMsg("Warning: Couldn't register with JMX (" + e.getMessage() + "), generation metrics won't be available"); }
+        
+        // Pick up any generations that were running when we were last unloaded
+        getDataFolder().mkdirs();
+        this.journal = new GenerationJournal(new File(getDataFolder(), "journal.txt"));
+        ArrayList<GenerationJournal.Entry> unfinished = this.journal.open();
+        this.checkJournal();
+        if (unfinished.size() > 0)
+        {
+            statusMsg("Resuming " + unfinished.size() + " unfinished generation" + (unfinished.size() > 1 ? "s" : ""));
+            for (GenerationJournal.Entry e:unfinished)
+                this.restoreGeneration(e);
+        }
+    }
+    
+    // The earlier of two ChunkSaveQueue or ChunkCache tags, where 0 is none
+    private static int earliest(int a, int b)
+    {
+        return a == 0 || (b != 0 && b < a) ? b : a;
+    }
+    
+    // /since: seconds since the epoch, or how long ago with a unit (s, m, h
+    // or d). -1 if it's neither.
+    private static long parseSince(String v)
+    {
+        if (v.length() == 0)
+            return -1;
+        long units[] = { 1, 60, 3600, 86400 };
+        int unit = "smhd".indexOf(Character.toLowerCase(v.charAt(v.length() - 1)));
+        try
+        {
+            if (unit < 0)
+                return Math.max(-1, Long.parseLong(v));
+            long ago = Long.parseLong(v.substring(0, v.length() - 1));
+            if (ago < 0)
+                return -1;
+            return Math.max(0, System.currentTimeMillis() / 1000 - ago * units[unit]);
+        }
+        catch (NumberFormatException e)
         {
-            try
-                { return Integer.parseInt(this.cleanArgs.get(i)); }
-            catch (NumberFormatException e)
-                { throw new NiceArgsParseIntException(argName, this.cleanArgs.get(i)); }
+            return -1;
         }
     }
-
-    private Logger logger = Bukkit.getLogger();
-    private GenerationRegion currentRegion;
-    private Runtime runtime = Runtime.getRuntime();
-    private static Method lightingFixMethod = null;
-    private boolean lightingRequiresForce = false;
-    private ArrayDeque<GenerationRegion> pendingRegions = new ArrayDeque<GenerationRegion>();
-    private int taskId = 0;
-    private boolean quitAfter = false;
-
-    public void onEnable()
+    
+    // Started the first time it's wanted. Daemon threads, so they never
+    // hold up a shutdown, and leaving a core for the server.
+    private ExecutorService getLightingPool()
     {
-        statusMsg("v"+VERSION+" Loaded");
+        if (this.lightpool == null)
+        {
+            int threads = Math.max(1, Math.min(4, runtime.availableProcessors() - 1));
+            this.lightpool = Executors.newFixedThreadPool(threads, new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r, "WorldGenerationControl lighting");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return this.lightpool;
+    }
+    
+    // Where the region files for this world live
+    private File getRegionFolder(World world)
+    {
+        File folder = world.getWorldFolder();
+        File region = null;
+        if (world.getEnvironment() == World.Environment.NETHER)
+            region = new File(folder, "DIM-1" + File.separator + "region");
+        else if (world.getEnvironment() == World.Environment.THE_END)
+            region = new File(folder, "DIM1" + File.separator + "region");
+        if (region == null || !region.isDirectory())
+            region = new File(folder, "region");
+        return region;
+    }
+    
+    // Rebuild a generation from its journal entry and queue it
+    private void restoreGeneration(GenerationJournal.Entry entry)
+    {
+        HashMap<String, String> spec = new HashMap<String, String>();
+        for (String kv:entry.getSpec().split(" "))
+        {
+            String st[] = kv.split("=", 2);
+            if (st.length == 2)
+                spec.put(st[0], st[1]);
+        }
         
-        if (WorldGenerationControl.lightingFixMethod == null)
-        {
-            // Find lighting fix method
-            // pre 1.0: h() calls i() (private) which relights all x/z columns
-	    //          marked as needing full lighting
-            // Post 1.0: i() is public and calls k()
-	    // 1.3+ This function is removed, but a new function, 'recheckGaps',
-	    //      exists to reprocess lighting for the chunk, which is
-	    //      obfuscated to private q()
-	    String names[] = { "i", "k", "q" };
-	    
-            Class cc;
-            try
+        GenerationRegion gen = null;
+        try
+        {
+            String name = URLDecoder.decode(spec.get("world"), "UTF-8");
+            World world = getServer().getWorld(name);
+            if (world == null)
             {
-                cc = Class.forName("net.minecraft.server.Chunk");
-		for (String n:names)
-		{
-		    try
-		    {
-			Method m = cc.getDeclaredMethod(n);
-			if ((m.getModifiers() & Modifier.PRIVATE) != 0)
-			{
-			    m.setAccessible(true); // bad touch!
-			    WorldGenerationControl.lightingFixMethod = m;
-			    statusMsg("Found lighting fix method '"+n+"'");
-			    // 1.3+ doesn't initialize lighting on new chunks at all, meaning calling
-			    // initLighting is required prior to get any lighting, so until we're smarter about
-			    // detecting this, always require force here
-			    if (n == "q")
-				this.lightingRequiresForce = true;
-			    break;
-			}
-		    }
-		    catch (Exception e) {} // various method not found exceptions
-		}
+                statusMsg("Warning: World \"" + ChatColor.GOLD + name + ChatColor.WHITE + "\" no longer exists, dropping its unfinished generation");
+                this.journal.recordEnd(entry.getId());
+                return;
+            }
+            gen = new GenerationRegion(world);
+            gen.setSpeed(GenerationSpeed.valueOf(spec.get("speed")));
+            gen.setLighting(GenerationLighting.valueOf(spec.get("lighting")));
+            gen.setBudget(Integer.parseInt(spec.get("budget")));
+            gen.setTargetTps(Double.parseDouble(spec.get("tps")));
+            gen.setDebug(Boolean.parseBoolean(spec.get("debug")));
+            gen.setForceRegen(Boolean.parseBoolean(spec.get("regen")));
+            gen.setOnlyWhenEmpty(Boolean.parseBoolean(spec.get("onlywhenempty")));
+            gen.setForceKeepup(Boolean.parseBoolean(spec.get("keepup")));
+            gen.setPrescan(Boolean.parseBoolean(spec.get("prescan")));
+            gen.setFrontier(Boolean.parseBoolean(spec.get("frontier")));
+            gen.setAlign(Boolean.parseBoolean(spec.get("align")));
+            if (spec.containsKey("order"))
+                gen.setOrder(SectionPlanner.Order.valueOf(spec.get("order")));
+            if (spec.containsKey("priority"))
+                gen.setPriority(Integer.parseInt(spec.get("priority")));
+            // Older journals only have the speed to go by
+            if (spec.containsKey("size"))
+                gen.setRegionSize(Integer.parseInt(spec.get("size")));
+            if (spec.containsKey("resized"))
+                gen.restoreResizes(spec.get("resized"));
+            if (spec.containsKey("maxheap"))
+                gen.setMaxHeap(Integer.parseInt(spec.get("maxheap")));
+            if (spec.containsKey("cache"))
+                gen.setCacheSize(Integer.parseInt(spec.get("cache")));
+            if (spec.containsKey("repair"))
+                gen.setRepair(Boolean.parseBoolean(spec.get("repair")));
+            if (spec.containsKey("since"))
+                gen.setSince(Long.parseLong(spec.get("since")));
+            if (spec.containsKey("bulk"))
+                gen.setBulk(Boolean.parseBoolean(spec.get("bulk")));
+            if (spec.containsKey("backup"))
+                gen.setBackup(Boolean.parseBoolean(spec.get("backup")));
+            if (spec.containsKey("dryrun"))
+                gen.setDryRun(Boolean.parseBoolean(spec.get("dryrun")));
+            if (spec.containsKey("profile"))
+                gen.setProfile(Boolean.parseBoolean(spec.get("profile")));
+            for (String area:entry.getAreas())
+            {
+                if (!gen.restoreArea(area))
+                    gen = null;
             }
-            catch (Exception e) {} // Failed to find class
-	    if (WorldGenerationControl.lightingFixMethod == null)
-	    {
-		statusMsg("WARNING: Failed to find lighting fix method, /lighting will not work for this CB build");
-	    }    
         }
+        // Bad enum names, numbers or a missing key
+        catch (RuntimeException e) { gen = null; }
+        catch (UnsupportedEncodingException e) { gen = null; }
+        
+        if (gen == null)
+        {
+            statusMsg("Warning: Couldn't make sense of an unfinished generation in the journal, dropping it");
+            this.journal.recordEnd(entry.getId());
+            return;
+        }
+        gen.setJobId(entry.getId());
+        gen.skipSections(entry.getDone());
+        // Resizes it didn't get to finish a section after
+        if (!gen.getSpec().equals(entry.getSpec()))
+            this.journal.recordSpec(entry.getId(), gen.getSpec());
+        this.queueGeneration(gen);
+    }
+    
+    private void checkJournal()
+    {
+        IOException e = this.journal.takeError();
+        if (e != null)
+            statusMsg("Warning: Failed to write generation journal, generations won't survive a restart: " + e.getMessage());
     }
     
     // Send a status message to all players
@@ -813,9 +2163,148 @@ public class WorldGenerationControl extends JavaPlugin implements Runnable
     {
         if (this.taskId != 0)
         {
-            statusMsg("Plugin unloaded, aborting generation.");
+            statusMsg("Plugin unloaded, pausing generation until next time.");
             this.endTask();
         }
+        // Anything we had running stays unfinished in the journal
+        if (this.journal != null)
+        {
+            this.journal.close();
+            this.journal = null;
+        }
+        this.configured = null;
+        // Populators have to be put back, we won't be here to time them
+        for (GenerationQueue.Entry<GenerationRegion> e:this.jobs.getEntries())
+            e.getJob().stopProfiling();
+        this.jobs.clear();
+        this.memory.stop();
+        this.metrics.unregister();
+        if (this.lightpool != null)
+        {
+            this.lightpool.shutdownNow();
+            this.lightpool = null;
+        }
+        this.saveHeapCosts();
+    }
+    
+    private HeapCostModel getHeapCost(String world)
+    {
+        HeapCostModel m = this.heapcosts.get(world);
+        if (m == null)
+        {
+            m = new HeapCostModel();
+            this.heapcosts.put(world, m);
+        }
+        return m;
+    }
+    
+    // What chunks cost is remembered between runs, so later generations
+    // don't have to start over at their speed setting's section size
+    private void loadHeapCosts()
+    {
+        File file = new File(getDataFolder(), "heapcost.properties");
+        if (!file.exists())
+            return;
+        Properties props = new Properties();
+        try
+        {
+            FileInputStream in = new FileInputStream(file);
+            try { props.load(in); }
+            finally { in.close(); }
+        }
+        catch (IOException e)
+        {
+            statusMsg("Warning: Failed to read " + file + ": " + e.getMessage());
+            return;
+        }
+        for (String world:props.stringPropertyNames())
+        {
+            try { this.getHeapCost(world).setPrior(Long.parseLong(props.getProperty(world))); }
+            catch (NumberFormatException e) {}
+        }
+    }
+    
+    private void saveHeapCosts()
+    {
+        Properties props = new Properties();
+        for (String world:this.heapcosts.keySet())
+        {
+            long cost = this.heapcosts.get(world).getBytesPerChunk();
+            if (cost > 0)
+                props.setProperty(world, Long.toString(cost));
+        }
+        if (props.isEmpty())
+            return;
+        File file = new File(getDataFolder(), "heapcost.properties");
+        try
+        {
+            FileOutputStream out = new FileOutputStream(file);
+            try { props.store(out, "Measured heap bytes per loaded chunk, by world"); }
+            finally { out.close(); }
+        }
+        catch (IOException e)
+        {
+            statusMsg("Warning: Failed to write " + file + ": " + e.getMessage());
+        }
+    }
+    
+    // Size a generation's sections so that, with what the heap holds now,
+    // its chunks and its cache fit under its /maxHeap. Left at its speed
+    // setting's size until we've measured what chunks in its world cost.
+    // Once it has started this is done again after every collection, and
+    // the new size is taken up at the next section boundary that can.
+    private void sizeGeneration(GenerationRegion r)
+    {
+        HeapCostModel m = this.getHeapCost(r.getQueueKey());
+        long ceiling = (long)((double)this.memory.getHeapMax() * r.getMaxHeap() / 100);
+        // What the heap holds without this generation's own chunks
+        long heap = Math.max(0, this.memory.getHeapAfterGc() - r.getHeld() * Math.max(0, m.getBytesPerChunk()));
+        int size = m.getSectionSize(ceiling - heap - r.getCacheBytes());
+        if (size < 0)
+            return;
+        if (r.isStarted())
+        {
+            // Shrink as soon as we can, but only grow for a good deal more
+            r.resizeLater(size < r.getRegionSize() || size >= r.getRegionSize() + GROW_STEP ? size : r.getRegionSize());
+            return;
+        }
+        if (!r.resize(size))
+            return;
+        if (this.journal != null && r.getJobId() != 0)
+            this.journal.recordSpec(r.getJobId(), r.getSpec());
+        statusMsg("Using " + size + "x" + size + " chunk sections, at about " + String.format("%.2f", (double)m.getBytesPerChunk() / (1024*1024)) + "MiB per chunk"
+            + (this.jobs.size() > 1 ? " for " + r.getWorld().getName() : ""));
+    }
+    
+    // After every collection, note how much heap is in use against how
+    // many chunks we're holding. Only one world can be holding any for the
+    // sample to be any use. Returns false if there hasn't been a collection
+    // since last time.
+    private boolean sampleHeapCost(ArrayList<GenerationQueue.Entry<GenerationRegion>> running)
+    {
+        int collections = this.memory.getCollections();
+        if (collections == this.lastcollections)
+            return false;
+        this.lastcollections = collections;
+        GenerationRegion holder = null;
+        for (GenerationQueue.Entry<GenerationRegion> e:running)
+        {
+            if (e.getJob().getHeld() == 0)
+                continue;
+            if (holder != null)
+                return true;
+            holder = e.getJob();
+        }
+        long heap = this.memory.getHeapAfterGc();
+        if (holder != null)
+            this.getHeapCost(holder.getQueueKey()).sample(holder.getHeld(), heap);
+        else
+        {
+            // Holding nothing is a sample for every world
+            for (GenerationQueue.Entry<GenerationRegion> e:running)
+                this.getHeapCost(e.getJob().getQueueKey()).sample(0, heap);
+        }
+        return true;
     }
 
     
@@ -834,7 +2323,9 @@ public class WorldGenerationControl extends JavaPlugin implements Runnable
         }
         
         boolean bCircular = commandLabel.compareToIgnoreCase("generatecircularregion") == 0 || commandLabel.compareToIgnoreCase("gencircle") == 0;
-        if (bCircular || commandLabel.compareToIgnoreCase("generateregion") == 0 || commandLabel.compareToIgnoreCase("genregion") == 0)
+        boolean bPolygon = commandLabel.compareToIgnoreCase("generatepolygonregion") == 0 || commandLabel.compareToIgnoreCase("genpolygon") == 0;
+        boolean bRelight = commandLabel.compareToIgnoreCase("generaterelight") == 0 || commandLabel.compareToIgnoreCase("genrelight") == 0;
+        if (bCircular || bPolygon || bRelight || commandLabel.compareToIgnoreCase("generateregion") == 0 || commandLabel.compareToIgnoreCase("genregion") == 0)
         {
             if (!sender.isOp() && !sender.hasPermission("worldgenerationcontrol.generate"))
             {
@@ -842,16 +2333,71 @@ public class WorldGenerationControl extends JavaPlugin implements Runnable
                 return true;
             }
             if     ((bCircular && (args.length() != 1 && args.length() != 4))
-                || !bCircular && (args.length() != 5))
+                || (bPolygon && args.length() < 6)
+                || (bRelight && args.length() > 1)
+                || (!bCircular && !bPolygon && !bRelight && args.length() != 5))
             {
                 return false;
             }
             
             World world = null;
             int xCenter = 0, zCenter = 0, xStart = 0, zStart = 0, xEnd = 0, zEnd = 0, radius = 0;
+            double xs[] = null, zs[] = null;
             try
             {
-                if (bCircular)
+                if (bRelight)
+                {
+                    if (args.length() == 0)
+                    {
+                        if (!(sender instanceof Player))
+                        {
+                            statusMsg("You're not a player, so you need to specify a world name.", sender);
+                            return true;
+                        }
+                        world = ((Player)sender).getWorld();
+                    }
+                    else
+                    {
+                        world = getServer().getWorld(args.get(0));
+                        if (world == null)
+                        {
+                            statusMsg("World \"" + ChatColor.GOLD + args.get(0) + ChatColor.WHITE + "\" does not exist.", sender);
+                            return true;
+                        }
+                    }
+                }
+                else if (bPolygon)
+                {
+                    // An odd number of arguments means a world name then points
+                    int first = args.length() % 2;
+                    if (first == 0)
+                    {
+                        if (!(sender instanceof Player))
+                        {
+                            statusMsg("You're not a player, so you need to specify a world name.", sender);
+                            return true;
+                        }
+                        world = ((Player)sender).getWorld();
+                    }
+                    else
+                    {
+                        world = getServer().getWorld(args.get(0));
+                        if (world == null)
+                        {
+                            statusMsg("World \"" + ChatColor.GOLD + args.get(0) + ChatColor.WHITE + "\" does not exist.", sender);
+                            return true;
+                        }
+                    }
+                    int points = (args.length() - first) / 2;
+                    xs = new double[points];
+                    zs = new double[points];
+                    for (int i = 0; i < points; i++)
+                    {
+                        xs[i] = args.getInt(first + i * 2, "x" + (i + 1));
+                        zs[i] = args.getInt(first + i * 2 + 1, "z" + (i + 1));
+                    }
+                }
+                else if (bCircular)
                 {
                     radius = args.getInt(0, "radius");
 
@@ -911,7 +2457,7 @@ public class WorldGenerationControl extends JavaPlugin implements Runnable
                 statusMsg("Circle radius must be > 0.", sender);
                 return true;
             }
-            else if (!bCircular && (xEnd - xStart < 1 || zEnd - zStart < 1))
+            else if (!bCircular && !bPolygon && !bRelight && (xEnd - xStart < 1 || zEnd - zStart < 1))
             {
                 statusMsg("xEnd and zEnd must be greater than xStart and zStart respectively.", sender);
                 return true;
@@ -943,7 +2489,7 @@ public class WorldGenerationControl extends JavaPlugin implements Runnable
                     lighting = GenerationLighting.EXTREME;
                 else if (lightswitch.equals("true") || lightswitch.equals("normal"))
 		{
-		    lighting = this.lightingRequiresForce ? GenerationLighting.EXTREME : GenerationLighting.NORMAL;
+		    lighting = GenerationLighting.NORMAL;
 		}
                 else
                 {
@@ -954,22 +2500,169 @@ public class WorldGenerationControl extends JavaPlugin implements Runnable
             else
                 lighting = GenerationLighting.NONE;
             
+            // Relighting existing chunks only, see ChunkBatch.fill
+            boolean repair = bRelight || args.getSwitch("relight") != null;
+            if (repair)
+            {
+                if (args.getSwitch("destroyAndRegenerateArea") != null || lighting == GenerationLighting.NONE)
+                {
+                    statusMsg("/relight can't be used with /destroyAndRegenerateArea or /lighting:none.", sender);
+                    return true;
+                }
+                lighting = GenerationLighting.EXTREME;
+            }
+            
             GenerationRegion gen = new GenerationRegion(world);
             gen.setSpeed(speed);
             gen.setLighting(lighting);
+            // Forcing lighting is about fixing what's already there, so don't skip it
+            if (lightswitch.equals("extreme") || lightswitch.equals("force"))
+                gen.setPrescan(false);
             if (args.getSwitch("debug") != null || args.getSwitch("verbose") != null)
                 gen.setDebug(true);
             if (args.getSwitch("destroyAndRegenerateArea") != null)
                 gen.setForceRegen(true);
+            // Clearing the region files first, see RegionReset
+            if (args.getSwitch("bulk") != null)
+            {
+                if (args.getSwitch("destroyAndRegenerateArea") == null)
+                {
+                    statusMsg("/bulk only works with /destroyAndRegenerateArea.", sender);
+                    return true;
+                }
+                gen.setBulk(true);
+                if (args.getSwitch("backup") != null)
+                    gen.setBackup(true);
+                if (args.getSwitch("dryRun") != null)
+                    gen.setDryRun(true);
+            }
+            else if (args.getSwitch("backup") != null || args.getSwitch("dryRun") != null)
+            {
+                statusMsg("/backup and /dryRun only work with /bulk.", sender);
+                return true;
+            }
             if (args.getSwitch("onlyWhenEmpty") != null)
                 gen.setOnlyWhenEmpty(true);
             if (args.getSwitch("forceSave") != null || args.getSwitch("forceKeepUp") != null)
                 gen.setForceKeepup(true);
+            if (args.getSwitch("frontier") != null)
+            {
+                if (args.getSwitch("destroyAndRegenerateArea") != null)
+                    statusMsg("Warning: /frontier can't be used with /destroyAndRegenerateArea, using normal sections.", sender);
+                else
+                    gen.setFrontier(true);
+            }
+            if (args.getSwitch("align") != null)
+                gen.setAlign(true);
+            if (args.getSwitch("profile") != null)
+                gen.setProfile(true);
+            if (repair)
+            {
+                gen.setRepair(true);
+                String since = args.getSwitch("since");
+                if (since != null)
+                {
+                    long seconds = parseSince(since);
+                    if (seconds < 0)
+                    {
+                        statusMsg("Invalid time \"" + since + "\" for /since, use seconds since 1970 or how long ago, e.g. /since:3d or /since:12h", sender);
+                        return true;
+                    }
+                    gen.setSince(seconds);
+                }
+            }
+            else if (args.getSwitch("since") != null)
+            {
+                statusMsg("/since only works with /relight or /genrelight.", sender);
+                return true;
+            }
+            String order = args.getSwitch("order");
+            if (order != null)
+            {
+                try { gen.setOrder(SectionPlanner.Order.valueOf(order.toUpperCase())); }
+                catch (IllegalArgumentException e)
+                {
+                    statusMsg("Invalid section order \"" + order + "\", must be one of rows, morton or hilbert", sender);
+                    return true;
+                }
+            }
+            try
+            {
+                String budget = args.getSwitch("budget");
+                if (budget != null)
+                {
+                    int ms = Integer.parseInt(budget);
+                    if (ms < 1)
+                    {
+                        statusMsg("Budget must be at least 1ms per tick.", sender);
+                        return true;
+                    }
+                    gen.setBudget(ms);
+                }
+                String priority = args.getSwitch("priority");
+                if (priority != null)
+                {
+                    int n = Integer.parseInt(priority);
+                    if (n < GenerationQueue.MIN_PRIORITY || n > GenerationQueue.MAX_PRIORITY)
+                    {
+                        statusMsg("Priority must be between " + GenerationQueue.MIN_PRIORITY + " and " + GenerationQueue.MAX_PRIORITY + ".", sender);
+                        return true;
+                    }
+                    gen.setPriority(n);
+                }
+                String maxheap = args.getSwitch("maxHeap");
+                if (maxheap != null)
+                {
+                    int pct = Integer.parseInt(maxheap);
+                    if (pct < 10 || pct > 95)
+                    {
+                        statusMsg("Max heap must be between 10 and 95 percent.", sender);
+                        return true;
+                    }
+                    gen.setMaxHeap(pct);
+                }
+                String cache = args.getSwitch("cache");
+                if (cache != null)
+                {
+                    int mib = Integer.parseInt(cache);
+                    if (mib < 0)
+                    {
+                        statusMsg("Cache size can't be negative.", sender);
+                        return true;
+                    }
+                    gen.setCacheSize(mib);
+                }
+                String tps = args.getSwitch("tps");
+                if (tps != null)
+                {
+                    double target = Double.parseDouble(tps);
+                    if (target < 0 || target > 20)
+                    {
+                        statusMsg("Target TPS must be between 0 and 20.", sender);
+                        return true;
+                    }
+                    gen.setTargetTps(target);
+                }
+            }
+            catch (NumberFormatException e)
+            {
+                statusMsg("Error: /budget, /tps, /priority, /maxHeap and /cache options must be numbers, e.g. /budget:10 /tps:19.5 /priority:8 /maxHeap:70 /cache:128", sender);
+                return true;
+            }
             
-            if (bCircular)
+            if (bRelight)
+                numChunks = gen.addRegionFiles();
+            else if (bCircular)
                 numChunks = gen.addCircularRegion(world, xCenter, zCenter, radius);
+            else if (bPolygon)
+                numChunks = gen.addPolygonRegion(world, xs, zs);
             else
                 numChunks = gen.addSquareRegion(world, xStart, zStart, xEnd, zEnd);
+            if (numChunks < 1 && bRelight)
+            {
+                statusMsg("World \"" + ChatColor.GOLD + world.getName() + ChatColor.WHITE + "\" has no region files to relight.", sender);
+                return true;
+            }
             if (numChunks < 1)
             {
                 // This shouldn't really be possible
@@ -979,7 +2672,8 @@ public class WorldGenerationControl extends JavaPlugin implements Runnable
             this.queueGeneration(gen);
             if (args.getSwitch("quitafter") != null)
                 this.quitAfterGeneration(true);
-            statusMsg((sender instanceof Player ? ("Player " + ChatColor.GOLD + ((Player)sender).getName() + ChatColor.WHITE) : "The console") + " queued generation of " + numChunks + " chunk region (" + (numChunks * 16) + " blocks).");
+            statusMsg((sender instanceof Player ? ("Player " + ChatColor.GOLD + ((Player)sender).getName() + ChatColor.WHITE) : "The console") + " queued "
+                + (repair ? "relighting of the existing chunks in a " : "generation of ") + numChunks + " chunk region (" + (numChunks * 16) + " blocks).");
         }
         else if (commandLabel.compareToIgnoreCase("cancelgeneration") == 0 || commandLabel.compareToIgnoreCase("cancelgen") == 0)
         {
@@ -994,28 +2688,155 @@ public class WorldGenerationControl extends JavaPlugin implements Runnable
                 this.cancelGeneration();
             }
         }
+        else if (commandLabel.compareToIgnoreCase("generationjobs") == 0 || commandLabel.compareToIgnoreCase("genjobs") == 0)
+        {
+            if (!sender.isOp() && !sender.hasPermission("worldgenerationcontrol.generate"))
+            {
+                statusMsg(ChatColor.RED + "Only server ops or those with the worldgenerationcontrol.generate permission may do that :<", sender);
+                return true;
+            }
+            String action = args.length() > 0 ? args.get(0).toLowerCase() : "list";
+            if (action.equals("list"))
+            {
+                if (this.jobs.isEmpty())
+                {
+                    statusMsg("There are no generations queued", sender);
+                    return true;
+                }
+                long now = clock.nanoTime();
+                ArrayList<String> worlds = new ArrayList<String>();
+                for (GenerationQueue.Entry<GenerationRegion> e:this.jobs.getEntries())
+                {
+                    GenerationRegion r = e.getJob();
+                    String state = e.isPaused() ? (e.isActive() ? "pausing" : "paused") : (e.isActive() ? "running" : "waiting");
+                    statusMsg("#" + e.getId() + " " + ChatColor.GOLD + r.getWorld().getName() + ChatColor.WHITE + " - " + state
+                        + ", priority " + r.getPriority() + ", " + String.format("%.2f", 100 * r.getProgress()) + "% done"
+                        + (e.isActive() ? ", " + String.format("%.1f", e.getRate().getChunksPerSecond(now)) + " chunks/s" : "")
+                        + (r.getSaveQueue() != null ? ", " + r.getSaveQueue().size() + " chunks waiting to save, "
+                            + String.format("%.2f", (double)r.getSaveQueue().getRegionGrowth() / (1024*1024)) + "MiB region growth" : "")
+                        + (r.getCache().getHits() + r.getCache().getMisses() > 0 ? ", " + String.format("%.1f", 100 * r.getCache().getHitRate()) + "% cache hits" : ""), sender);
+                    if (!worlds.contains(r.getQueueKey()))
+                        worlds.add(r.getQueueKey());
+                }
+                if (this.saveio.getDepth() >= 0)
+                    statusMsg(this.saveio.getDepth() + " chunks waiting in the server's save queue" + (this.saveio.getFactor() < 1 ? ", generating at " + String.format("%.0f", 100*this.saveio.getFactor()) + "% speed until it drains" : ""), sender);
+                for (String w:worlds)
+                    statusMsg(ChatColor.GOLD + w + ChatColor.WHITE + ": " + String.format("%.1f", this.jobs.getRate(w).getChunksPerSecond(now)) + " chunks/s, "
+                        + String.format("%.0f", 100 * this.jobs.getShare(w, now)) + "% of generation time lately", sender);
+                return true;
+            }
+            if (args.length() < 2 || (action.equals("priority") != (args.length() == 3)) || args.length() > 3)
+                return false;
+            
+            GenerationQueue.Entry<GenerationRegion> e;
+            int priority = 0;
+            try
+            {
+                e = this.jobs.get(args.getInt(1, "id"));
+                if (args.length() == 3)
+                    priority = args.getInt(2, "priority");
+            }
+            catch (NiceArgsParseIntException ex)
+            {
+                statusMsg("Error: " + ex.getName() + " argument must be a number, not \"" + ex.getBadValue() + "\"", sender);
+                return true;
+            }
+            if (e == null)
+            {
+                statusMsg("There is no generation #" + args.get(1) + ", see /genjobs list", sender);
+                return true;
+            }
+            
+            String who = sender instanceof Player ? ("player " + ChatColor.GOLD + ((Player)sender).getName() + ChatColor.WHITE) : "the console";
+            if (action.equals("pause"))
+            {
+                this.jobs.setPaused(e, true);
+                statusMsg("Generation #" + e.getId() + " paused by " + who + (e.getJob().isBusy() ? " after its current section" : ""));
+            }
+            else if (action.equals("resume"))
+            {
+                this.jobs.setPaused(e, false);
+                statusMsg("Generation #" + e.getId() + " resumed by " + who);
+            }
+            else if (action.equals("priority"))
+            {
+                if (priority < GenerationQueue.MIN_PRIORITY || priority > GenerationQueue.MAX_PRIORITY)
+                {
+                    statusMsg("Priority must be between " + GenerationQueue.MIN_PRIORITY + " and " + GenerationQueue.MAX_PRIORITY + ".", sender);
+                    return true;
+                }
+                e.getJob().setPriority(priority);
+                statusMsg("Generation #" + e.getId() + " set to priority " + priority + " by " + who);
+            }
+            else if (action.equals("cancel"))
+            {
+                statusMsg("Generation #" + e.getId() + " canceled by " + who);
+                this.cancelJob(e);
+            }
+            else
+                return false;
+        }
         return true;
     }
     
     public void queueGeneration(GenerationRegion region)
     {
-        if (this.currentRegion != null)
-            this.pendingRegions.push(region);
-        else
+        // Fold it into a waiting generation of the same world if we can, so
+        // overlapping areas are only generated once
+        for (GenerationQueue.Entry<GenerationRegion> e:this.jobs.getEntries())
+        {
+            GenerationRegion r = e.getJob();
+            if (!r.canAbsorb(region))
+                continue;
+            ArrayList<String> added = r.absorb(region);
+            if (this.journal != null && r.getJobId() != 0)
+            {
+                for (String area:added)
+                    this.journal.recordArea(r.getJobId(), area);
+                if (region.getJobId() != 0)
+                    this.journal.recordEnd(region.getJobId());
+            }
+            statusMsg("Merged with a queued generation of the same world, " + r.getPartCount() + " generations now share it");
+            return;
+        }
+        
+        if (this.journal != null && region.getJobId() == 0)
         {
-            this.currentRegion = region;
-            this.restartTask(region.shouldRunAllAtOnce() ? 2 : 60);
+            region.setJobId(this.journal.nextId());
+            this.journal.recordJob(region.getJobId(), region.getSpec(), region.getAreas());
         }
+        
+        this.jobs.add(region);
+        if (this.taskId == 0)
+            this.restartTask();
     }
 
     public void quitAfterGeneration() { this.quitAfterGeneration(true); }
-    public void quitAfterGeneration(boolean yesno) { if (this.currentRegion != null) this.quitAfter = yesno; }
+    public void quitAfterGeneration(boolean yesno) { if (!this.jobs.isEmpty()) this.quitAfter = yesno; }
     
     public void cancelGeneration()
     {
         this.quitAfter = false;
-        if (this.currentRegion != null) this.currentRegion.cancelRemaining();
-        this.pendingRegions.clear();
+        for (GenerationQueue.Entry<GenerationRegion> e:this.jobs.getEntries())
+            this.cancelJob(e);
+    }
+    
+    private void cancelJob(GenerationQueue.Entry<GenerationRegion> e)
+    {
+        GenerationRegion r = e.getJob();
+        r.flushCache();
+        r.cancelRemaining();
+        if (r.isBusy())
+        {
+            // Let it clean up the section it has loaded, run() drops it
+            // once that's done
+            this.jobs.setPaused(e, false);
+            return;
+        }
+        this.jobs.remove(e);
+        r.stopProfiling();
+        if (this.journal != null && r.getJobId() != 0)
+            this.journal.recordEnd(r.getJobId());
     }
     
     // use cancelGeneration to stop generation, this should only be used internally
@@ -1026,39 +2847,95 @@ public class WorldGenerationControl extends JavaPlugin implements Runnable
         this.taskId = 0;
     }
     
-    private void restartTask() { this.restartTask(60); }
-    private void restartTask(int period)
+    // We run every tick and let the GenerationScheduler decide how much work
+    // fits into it
+    private void restartTask()
     {
         this.endTask();
-        this.taskId = getServer().getScheduler().scheduleSyncRepeatingTask(this, this, period, period);
+        this.taskId = getServer().getScheduler().scheduleSyncRepeatingTask(this, this, 1, 1);
     }
 
     public void run()
     {
         if (this.taskId == 0) return; // Prevent inappropriate calls
 
-        int pending = this.pendingRegions.size();
-        // Pass -1 as pending if we're about to quit
-        if (this.currentRegion.runStep((pending == 0 && this.quitAfter) ? -1 : pending))
+        long now = clock.nanoTime();
+        this.scheduler.setMemoryFactor(this.memory.update());
+        this.scheduler.setSaveFactor(this.saveio.update());
+        this.scheduler.tick(now);
+        // Still paying off the last step
+        if (!this.scheduler.hasCredit()) return;
+
+        // One generation per world runs, the GenerationQueue decides which
+        ArrayList<GenerationQueue.Entry<GenerationRegion>> running = this.jobs.schedule();
+        boolean collected = this.sampleHeapCost(running);
+        // The budget is whatever the most important of them asked for
+        GenerationQueue.Entry<GenerationRegion> leader = this.jobs.getLeader();
+        if (leader != null && leader.getJob() != this.configured)
         {
-            if (pending > 0)
-            {
-                GenerationRegion next = this.pendingRegions.pop();
-                // Adjust scheduling if needed
-                if (this.currentRegion.shouldRunAllAtOnce() != next.shouldRunAllAtOnce())
-                    this.restartTask(next.shouldRunAllAtOnce() ? 2 : 60);
+            this.configured = leader.getJob();
+            this.configured.configureScheduler(this.scheduler);
+            // That starts the credit from scratch, so wait for the next tick
+            return;
+        }
 
-                this.currentRegion = next;
+        int weights = 0;
+        for (GenerationQueue.Entry<GenerationRegion> e:running)
+            weights += e.getJob().getPriority();
+        int queued = this.jobs.size() - 1;
+        this.metrics.setGenerations(this.jobs.size());
+        // Pass -1 as queued if we're about to quit
+        if (queued == 0 && this.quitAfter)
+            queued = -1;
+        for (GenerationQueue.Entry<GenerationRegion> e:running)
+        {
+            GenerationRegion r = e.getJob();
+            long credit = this.scheduler.getCredit();
+            if (credit <= 0)
+                break;
+            // Split what's left of the tick by priority between this one and
+            // the ones after it. Whatever it doesn't use goes to them.
+            if (credit != Long.MAX_VALUE)
+                this.scheduler.beginSlice(credit * r.getPriority() / weights);
+            weights -= r.getPriority();
+            
+            if (!r.isStarted())
+            {
+                this.sizeGeneration(r);
+                if (this.journal != null && r.getJobId() != 0)
+                    this.journal.recordStart(r.getJobId());
             }
-            else
+            else if (collected)
+                this.sizeGeneration(r);
+            r.setLabel(running.size() > 1 ? ChatColor.GOLD + r.getWorld().getName() + ChatColor.GRAY + ": " : "");
+            long start = clock.nanoTime();
+            long loaded = r.getChunksLoaded();
+            String stage = r.getStage();
+            this.trace.stepBegin();
+            boolean done = r.runStep(queued);
+            this.trace.stepEnd(r.getWorld().getName(), stage, r.getPosition(), (int)(r.getChunksLoaded() - loaded), done);
+            this.scheduler.endSlice();
+            this.jobs.charge(e, clock.nanoTime() - start, (int)(r.getChunksLoaded() - loaded), now);
+            if (done)
             {
-                this.currentRegion = null;
-                this.endTask();
-                if (this.quitAfter)
-                {
-                    statusMsg("/quitAfter specified, shutting down");
-                    getServer().shutdown();
-                }
+                this.jobs.remove(e);
+                if (this.journal != null && r.getJobId() != 0)
+                    this.journal.recordEnd(r.getJobId());
+            }
+        }
+        if (this.journal != null)
+        {
+            this.journal.sync(false);
+            this.checkJournal();
+        }
+        if (this.jobs.isEmpty())
+        {
+            this.configured = null;
+            this.endTask();
+            if (this.quitAfter)
+            {
+                statusMsg("/quitAfter specified, shutting down");
+                getServer().shutdown();
             }
         }
     }
@@ -0,0 +1,215 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+
+
+package net.pointysoftware.worldgenerationcontrol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.command.CommandSender;
+import org.bukkit.command.ConsoleCommandSender;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.PluginDescriptionFile;
+import org.bukkit.scheduler.BukkitScheduler;
+import org.junit.Before;
+import org.junit.Test;
+
+// /genpolygon from the console, through onCommand's argument checks to a
+// queued generation, against a stand-in server that only has what the
+// command needs
+public class GenPolygonCommandTest
+{
+    // What the server was told, shared by every test since Bukkit only ever
+    // has the one server
+    private static ArrayList<String> messages = new ArrayList<String>();
+    private static Runnable task = null;
+    private static Server server = null;
+
+    private WorldGenerationControl plugin;
+    private ConsoleCommandSender console;
+
+    @Before
+    public void setUp()
+    {
+        if (server == null)
+        {
+            server = (Server)stub(Server.class, new InvocationHandler()
+            {
+                private Logger logger = null;
+                private World world = (World)stub(World.class, new InvocationHandler()
+                {
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                    {
+                        if (method.getName().equals("getName"))
+                            return "world";
+                        if (method.getName().equals("getWorldFolder"))
+                            return new File("target", "world");
+                        return null;
+                    }
+                });
+                private BukkitScheduler scheduler = (BukkitScheduler)stub(BukkitScheduler.class, new InvocationHandler()
+                {
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                    {
+                        if (method.getName().equals("scheduleSyncRepeatingTask"))
+                        {
+                            task = (Runnable)args[1];
+                            return 1;
+                        }
+                        if (method.getName().equals("cancelTask"))
+                            task = null;
+                        return null;
+                    }
+                });
+                public Object invoke(Object proxy, Method method, Object[] args)
+                {
+                    String name = method.getName();
+                    if (name.equals("getLogger"))
+                    {
+                        if (this.logger == null)
+                        {
+                            this.logger = Logger.getAnonymousLogger();
+                            this.logger.setUseParentHandlers(false);
+                            this.logger.addHandler(new Handler()
+                            {
+                                public void publish(LogRecord r) { messages.add(r.getMessage()); }
+                                public void flush() {}
+                                public void close() {}
+                            });
+                        }
+                        return this.logger;
+                    }
+                    if (name.equals("getOnlinePlayers"))
+                        return new Player[0];
+                    if (name.equals("getWorld"))
+                        return "world".equals(args[0]) ? this.world : null;
+                    if (name.equals("getScheduler"))
+                        return this.scheduler;
+                    return null;
+                }
+            });
+            Bukkit.setServer(server);
+        }
+        messages.clear();
+        task = null;
+
+        // As the plugin loader would, without enabling it
+        this.plugin = new WorldGenerationControl()
+        {
+            {
+                this.initialize(null, server, new PluginDescriptionFile("WorldGenerationControl", "test", WorldGenerationControl.class.getName()), new File("target"), null, this.getClass().getClassLoader());
+            }
+        };
+        this.console = (ConsoleCommandSender)stub(ConsoleCommandSender.class, new InvocationHandler()
+        {
+            public Object invoke(Object proxy, Method method, Object[] args)
+            {
+                String name = method.getName();
+                if (name.equals("sendMessage"))
+                    messages.add((String)args[0]);
+                if (name.equals("isOp") || name.equals("hasPermission"))
+                    return true;
+                return null;
+            }
+        });
+    }
+
+    @Test
+    public void queuesPolygon()
+    {
+        String args[] = { "world", "0", "0", "320", "0", "160", "320", "/slow" };
+        assertTrue(this.plugin.onCommand(this.console, null, "genpolygon", args));
+        assertNull(this.find("must be greater than"));
+
+        // Every chunk whose center is inside the triangle
+        double xs[] = { 0, 320, 160 }, zs[] = { 0, 0, 320 };
+        long chunks = new ChunkShape.Polygon(xs, zs).count(-1, -1, 21, 21);
+        assertTrue(chunks > 0);
+        assertNotNull(this.find("generation of " + chunks + " chunk region"));
+        assertNotNull(task);
+    }
+
+    @Test
+    public void quotedWorldName()
+    {
+        String args[] = { "\"world\"", "-320", "-320", "0", "-320", "0", "0", "-320", "0" };
+        assertTrue(this.plugin.onCommand(this.console, null, "generatepolygonregion", args));
+        assertNotNull(this.find("generation of 400 chunk region"));
+    }
+
+    @Test
+    public void tooFewPoints()
+    {
+        // Usage
+        String args[] = { "world", "0", "0", "320", "0" };
+        assertFalse(this.plugin.onCommand(this.console, null, "genpolygon", args));
+        assertNull(task);
+    }
+
+    @Test
+    public void badCoordinate()
+    {
+        String args[] = { "world", "0", "0", "320", "zero", "160", "320" };
+        assertTrue(this.plugin.onCommand(this.console, null, "genpolygon", args));
+        assertNotNull(this.find("z2 argument must be a number"));
+        assertNull(task);
+    }
+
+    @Test
+    public void rectanglesStillChecked()
+    {
+        String args[] = { "world", "320", "0", "0", "320" };
+        assertTrue(this.plugin.onCommand(this.console, null, "genregion", args));
+        assertNotNull(this.find("must be greater than"));
+        assertNull(task);
+    }
+
+    // First message containing text, null if there isn't one
+    private String find(String text)
+    {
+        for (String m:messages)
+            if (m.contains(text))
+                return m;
+        return null;
+    }
+
+    private static Object stub(Class<?> type, InvocationHandler handler)
+    {
+        return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, handler);
+    }
+}
@@ -0,0 +1,223 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+
+
+package net.pointysoftware.worldgenerationcontrol;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+// RegionReset on region files written into a temporary folder, each with
+// every chunk present and a timestamp for each
+public class RegionResetTest
+{
+    private final static int HEADER_SIZE = 4096;
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private File folder;
+    private File backups;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        this.folder = this.temp.newFolder("region");
+        this.backups = new File(this.temp.getRoot(), "backups");
+        this.region(0, 0);
+        this.region(1, 0);
+    }
+
+    @Test
+    public void wholeFileDeleted() throws IOException
+    {
+        byte other[] = this.read(1, 0);
+        RegionReset reset = new RegionReset(this.folder, new ChunkShape.Rect(0, 0, 31, 31), null);
+        reset.plan();
+        assertEquals(1, reset.getRegions());
+        assertEquals(1, reset.getWholeFiles());
+        assertEquals(1024, reset.getChunks());
+        reset.apply();
+        assertFalse(this.file(0, 0).exists());
+        assertArrayEquals(other, this.read(1, 0));
+    }
+
+    @Test
+    public void partialEntriesZeroed() throws IOException
+    {
+        byte before[] = this.read(0, 0);
+        // Straddles the two files
+        RegionReset reset = new RegionReset(this.folder, new ChunkShape.Rect(28, 2, 33, 4), null);
+        reset.plan();
+        assertEquals(2, reset.getRegions());
+        assertEquals(0, reset.getWholeFiles());
+        assertEquals(18, reset.getChunks());
+        reset.apply();
+
+        ByteBuffer after = ByteBuffer.wrap(this.read(0, 0));
+        ByteBuffer original = ByteBuffer.wrap(before);
+        for (int z = 0; z < 32; z++)
+        {
+            for (int x = 0; x < 32; x++)
+            {
+                int i = ((z << 5) | x) << 2;
+                boolean cleared = x >= 28 && z >= 2 && z <= 4;
+                assertEquals(cleared ? 0 : original.getInt(i), after.getInt(i));
+                assertEquals(cleared ? 0 : original.getInt(HEADER_SIZE + i), after.getInt(HEADER_SIZE + i));
+            }
+        }
+        // Chunk data is left for the server to reuse
+        for (int i = HEADER_SIZE * 2; i < before.length; i++)
+            assertEquals(before[i], after.get(i));
+
+        ByteBuffer next = ByteBuffer.wrap(this.read(1, 0));
+        assertEquals(0, next.getInt(((3 << 5) | 1) << 2));
+        assertTrue(next.getInt(((3 << 5) | 2) << 2) != 0);
+    }
+
+    // A dry run only plans
+    @Test
+    public void planChangesNothing() throws IOException
+    {
+        HashMap<String, byte[]> before = this.readAll(this.folder);
+        RegionReset reset = new RegionReset(this.folder, new ChunkShape.Ellipse(20, 10, 25, 25), this.backups);
+        reset.plan();
+        assertTrue(reset.getChunks() > 0);
+        assertEquals(before.keySet(), this.readAll(this.folder).keySet());
+        for (String name:before.keySet())
+            assertArrayEquals(before.get(name), this.readAll(this.folder).get(name));
+        assertFalse(this.backups.exists());
+    }
+
+    @Test
+    public void backupsBeforeApply() throws IOException
+    {
+        HashMap<String, byte[]> before = this.readAll(this.folder);
+        RegionReset reset = new RegionReset(this.folder, new ChunkShape.Rect(0, 0, 40, 31), this.backups);
+        reset.plan();
+        assertFalse(reset.isBackedUp());
+        while (reset.backupNext());
+        assertTrue(reset.isBackedUp());
+        reset.apply();
+        assertFalse(this.file(0, 0).exists());
+        HashMap<String, byte[]> copies = this.readAll(this.backups);
+        assertEquals(before.keySet(), copies.keySet());
+        for (String name:before.keySet())
+            assertArrayEquals(before.get(name), copies.get(name));
+    }
+
+    // The server saved into the area after plan(), starting a new file
+    @Test
+    public void newFileFoundByPlanningAgain() throws IOException
+    {
+        RegionReset reset = new RegionReset(this.folder, new ChunkShape.Rect(0, 0, 95, 31), this.backups);
+        reset.plan();
+        assertEquals(2, reset.getRegions());
+        while (reset.backupNext());
+        this.region(2, 0);
+        reset.plan();
+        assertEquals(3, reset.getRegions());
+        assertFalse(reset.isBackedUp());
+        assertFalse(reset.backupNext());
+        assertTrue(reset.isBackedUp());
+        reset.apply();
+        assertFalse(this.file(0, 0).exists());
+        assertFalse(this.file(1, 0).exists());
+        assertFalse(this.file(2, 0).exists());
+        assertEquals(3, this.backups.list().length);
+    }
+
+    private File file(int rx, int rz)
+    {
+        return new File(this.folder, "r." + rx + "." + rz + ".mca");
+    }
+
+    // Every chunk in one sector of its own, with a distinct timestamp and
+    // sector contents
+    private void region(int rx, int rz) throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE * 2);
+        for (int i = 0; i < 1024; i++)
+        {
+            header.putInt(i << 2, ((2 + i) << 8) | 1);
+            header.putInt(HEADER_SIZE + (i << 2), 1000 + i);
+        }
+        FileOutputStream out = new FileOutputStream(this.file(rx, rz));
+        try
+        {
+            out.write(header.array());
+            byte sector[] = new byte[HEADER_SIZE];
+            for (int i = 0; i < 1024; i++)
+            {
+                sector[0] = (byte)i;
+                sector[1] = (byte)(i >> 8);
+                out.write(sector);
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    private byte[] read(int rx, int rz) throws IOException
+    {
+        return this.read(this.file(rx, rz));
+    }
+
+    private byte[] read(File f) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try
+        {
+            byte bytes[] = new byte[(int)raf.length()];
+            raf.readFully(bytes);
+            return bytes;
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    private HashMap<String, byte[]> readAll(File dir) throws IOException
+    {
+        HashMap<String, byte[]> files = new HashMap<String, byte[]>();
+        for (File f:dir.listFiles())
+            files.put(f.getName(), this.read(f));
+        return files;
+    }
+}
@@ -0,0 +1,184 @@
+/*
+   See README.markdown for more information
+
+   World Generation Control - Bukkit chunk preloader
+   Copyright (C) 2011 john@pointysoftware.net
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software Foundation,
+   Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+
+
+package net.pointysoftware.worldgenerationcontrol;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import org.bukkit.ChunkSnapshot;
+import org.junit.Before;
+import org.junit.Test;
+
+// SkyLightCheck against hand built chunks: flat ground with an overhang,
+// lit the way the server's fast pass leaves it and the way a full relight
+// does
+public class SkyLightCheckTest
+{
+    private final static int HEIGHT = 64;
+    private final static int STONE = 1;
+    private final static int GROUND = 10;
+    // The overhang's underside
+    private final static int ROOF = 20;
+
+    private int types[][][];
+    private int light[][][];
+
+    // Stone up to GROUND with open sky above it
+    @Before
+    public void setUp()
+    {
+        this.types = new int[16][HEIGHT][16];
+        this.light = new int[16][HEIGHT][16];
+        for (int x = 0; x < 16; x++)
+            for (int z = 0; z < 16; z++)
+                for (int y = 0; y < HEIGHT; y++)
+                {
+                    this.types[x][y][z] = y < GROUND ? STONE : 0;
+                    this.light[x][y][z] = y < GROUND ? 0 : 15;
+                }
+    }
+
+    @Test
+    public void litGround()
+    {
+        assertFalse(this.check());
+    }
+
+    @Test
+    public void unlitSky()
+    {
+        this.light[3][GROUND][7] = 0;
+        assertTrue(this.check());
+    }
+
+    // The fast pass lights each column straight down, so under a roof it's
+    // dark right up to the edge
+    @Test
+    public void fastLitOverhang()
+    {
+        this.roof(4, 9);
+        assertTrue(this.check());
+    }
+
+    // A relight spreads the light in from the open columns around it, one
+    // level darker per step
+    @Test
+    public void relitOverhang()
+    {
+        this.roof(4, 9);
+        for (int x = 4; x < 9; x++)
+            for (int z = 4; z < 9; z++)
+                for (int y = GROUND; y < ROOF; y++)
+                    this.light[x][y][z] = 15 - Math.min(Math.min(x - 3, 9 - x), Math.min(z - 3, 9 - z));
+        assertFalse(this.check());
+    }
+
+    // Under a roof over the chunk's edge the light comes from the next
+    // chunk over, which the snapshot doesn't have
+    @Test
+    public void lightFromNextChunk()
+    {
+        this.roof(0, 4);
+        for (int x = 0; x < 4; x++)
+            for (int z = 0; z < 4; z++)
+                for (int y = GROUND; y < ROOF; y++)
+                    this.light[x][y][z] = 15 - Math.min(4 - x, 4 - z);
+        assertFalse(this.check());
+    }
+
+    // A shadow deep under the roof, with its surroundings lit
+    @Test
+    public void unspreadPocket()
+    {
+        this.roof(4, 9);
+        for (int x = 4; x < 9; x++)
+            for (int z = 4; z < 9; z++)
+                for (int y = GROUND; y < ROOF; y++)
+                    this.light[x][y][z] = 15 - Math.min(Math.min(x - 3, 9 - x), Math.min(z - 3, 9 - z));
+        this.light[6][GROUND][6] = 0;
+        assertTrue(this.check());
+    }
+
+    // Solid blocks have no light of their own to check
+    @Test
+    public void darkStoneUnderRoof()
+    {
+        this.roof(4, 9);
+        for (int x = 4; x < 9; x++)
+            for (int z = 4; z < 9; z++)
+                for (int y = GROUND; y < ROOF; y++)
+                {
+                    this.types[x][y][z] = STONE;
+                    this.light[x][y][z] = 0;
+                }
+        assertFalse(this.check());
+    }
+
+    // A stone roof from..to-1 across both x and z, at ROOF, with nothing
+    // under it lit
+    private void roof(int from, int to)
+    {
+        for (int x = from; x < to; x++)
+            for (int z = from; z < to; z++)
+            {
+                this.types[x][ROOF][z] = STONE;
+                for (int y = GROUND; y <= ROOF; y++)
+                    this.light[x][y][z] = 0;
+            }
+    }
+
+    private boolean check()
+    {
+        return new SkyLightCheck(this.snapshot(), HEIGHT).call();
+    }
+
+    private ChunkSnapshot snapshot()
+    {
+        return (ChunkSnapshot)Proxy.newProxyInstance(ChunkSnapshot.class.getClassLoader(), new Class<?>[] { ChunkSnapshot.class }, new InvocationHandler()
+        {
+            public Object invoke(Object proxy, Method method, Object[] args)
+            {
+                String name = method.getName();
+                if (name.equals("getBlockTypeId"))
+                    return SkyLightCheckTest.this.types[(Integer)args[0]][(Integer)args[1]][(Integer)args[2]];
+                if (name.equals("getBlockSkyLight"))
+                    return SkyLightCheckTest.this.light[(Integer)args[0]][(Integer)args[1]][(Integer)args[2]];
+                if (name.equals("getHighestBlockYAt"))
+                {
+                    // Above the highest block, as the server's heightmap is
+                    int x = (Integer)args[0], z = (Integer)args[1];
+                    int y = HEIGHT;
+                    while (y > 0 && SkyLightCheckTest.this.types[x][y - 1][z] == 0)
+                        y--;
+                    return y;
+                }
+                throw new UnsupportedOperationException(name);
+            }
+        });
+    }
+}